@@ -0,0 +1,93 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bookkeeping for every file sent, apart from the link: a window's worth of files registered,
+ * marked sent and then acked, either all at once by a cumulative ack or one at a time. Each
+ * operation is one file, so tiny files on a fast link can't be sent faster than this.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AckDispatcherBenchmark {
+    private static final int FILES = 1024;
+
+    @Param({"1", "16", "64"})
+    public int window;
+
+    private AckDispatcher acks;
+    private Blackhole blackhole;
+    private int nextId;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        acks = new AckDispatcher(window, new PushOptions(), new AckDispatcher.Callbacks() {
+            @Override
+            public void retransmit(int id, Object attachment) {
+                throw new IllegalStateException("Nothing should time out");
+            }
+
+            @Override
+            public void retransmitChunk(int id, Object attachment, long offset, int length) {
+                throw new IllegalStateException("Nothing should be NAKed");
+            }
+
+            @Override
+            public void acked(int id, Object attachment) {
+                AckDispatcherBenchmark.this.blackhole.consume(attachment);
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public void cumulativeAcks() throws IOException {
+        for (int i = 0; i < FILES; i += window) {
+            int first = nextId;
+            for (int j = 0; j < window; j++) {
+                send(nextId++);
+            }
+            acks.ackUpTo(first + window - 1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public void selectiveAcks() throws IOException {
+        for (int i = 0; i < FILES; i += window) {
+            int first = nextId;
+            for (int j = 0; j < window; j++) {
+                send(nextId++);
+            }
+            // the receiver finishes them out of order, as with a pipelined receiver
+            for (int j = window - 1; j >= 0; j--) {
+                acks.ack(first + j);
+            }
+        }
+    }
+
+    private void send(int id) throws IOException {
+        acks.register(id, this);
+        acks.sent(id);
+    }
+}
@@ -0,0 +1,32 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks from the unit test task, which is how code in an Android module gets run
+ * on the JVM. Left out of normal test runs, {@code ./gradlew :app:testDebugUnitTest -Pjmh} runs
+ * all of them and {@code -Pjmh=Push} only those matching the pattern.
+ * <p>
+ * The results go to {@code app/build/jmh/<commit>.json}, so runs on different commits can be
+ * compared. The GC profiler adds the allocation rate, {@code gc.alloc.rate.norm} is the bytes
+ * allocated per operation.
+ */
+public class BenchmarkRunner {
+    @Test
+    public void runBenchmarks() throws Exception {
+        String results = System.getProperty("jmh.results", "build/jmh/results.json");
+        new File(results).getAbsoluteFile().getParentFile().mkdirs();
+        new Runner(new OptionsBuilder()
+                .include(System.getProperty("jmh", ".*Benchmark"))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(results)
+                .build()).run();
+    }
+}
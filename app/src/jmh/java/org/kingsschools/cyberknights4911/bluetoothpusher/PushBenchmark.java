@@ -0,0 +1,140 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes a synthetic tree through {@link ConnectedDevice} over a {@link SimulatedLink} to a
+ * {@link PushReceiver}, the whole send path: the walk, file and directory messages, compression,
+ * the window and acks, and resuming after the link drops. Each operation is one complete send.
+ * <p>
+ * Besides sends per second the results have {@code megabytes} and {@code files}, per second, and
+ * with the GC profiler the allocation rate, see {@link BenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class PushBenchmark {
+    private static final long SEED = 4911;
+
+    @Param({"TINY", "HUGE", "MIXED"})
+    public SyntheticTree.Shape tree;
+
+    @Param({"UNLIMITED", "BLUETOOTH", "LOSSY"})
+    public String link;
+
+    private File scratch;
+    private SyntheticTree source;
+    private SimulatedLink transport;
+    private TransportAcceptor acceptor;
+    private PushReceiver receiver;
+    private PushOptions options;
+
+    /**
+     * What each send moved, reported as rates alongside the sends per second
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Moved {
+        public double megabytes;
+        public long files;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+            files = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        scratch = File.createTempFile("pushbench", "");
+        if (!scratch.delete() || !scratch.mkdirs()) {
+            throw new IOException("Could not create " + scratch);
+        }
+        source = SyntheticTree.create(scratch, tree, SEED);
+
+        transport = new SimulatedLink(link, profile(link), SEED);
+        acceptor = transport.acceptor();
+        // without the manifest every send moves the whole tree, rather than finding it all there
+        receiver = new PushReceiver(new File(scratch, "received"), new ReceiverOptions().setFeatures(
+                Capabilities.FEATURE_RESUME | Capabilities.FEATURE_KEEP_ALIVE
+                        | Capabilities.FEATURE_UNBOUNDED_DIRECTORIES | Capabilities.FEATURE_PACK
+                        | Capabilities.FEATURE_PATH_DICTIONARY));
+        receiver.serve(acceptor);
+        // a lossy link drops several times a send, every time it should resume straight away
+        options = new PushOptions().setNegotiationEnabled(true).setMaxResumeAttempts(100).setResumeBackoffMillis(10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        receiver.close();
+        acceptor.close();
+        delete(scratch);
+    }
+
+    @Benchmark
+    public boolean push(Moved moved) throws InterruptedException {
+        ConnectedDevice device = new ConnectedDevice(transport, null, options);
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] success = new boolean[1];
+        device.setSendListener(new ConnectedDevice.SendListener() {
+            @Override
+            public void onSendFinished(ConnectedDevice device, File path, boolean sent) {
+                success[0] = sent;
+                done.countDown();
+            }
+        });
+        device.send(source.getRoot());
+        done.await();
+        if (!success[0]) {
+            throw new IllegalStateException("Send over " + link + " failed");
+        }
+        moved.megabytes += source.getTotalBytes() / (1024.0 * 1024.0);
+        moved.files += source.getFileCount();
+        return success[0];
+    }
+
+    private static SimulatedLink.Profile profile(String link) {
+        switch (link) {
+            case "UNLIMITED":
+                return SimulatedLink.Profile.UNLIMITED;
+            case "BLUETOOTH":
+                return SimulatedLink.Profile.BLUETOOTH;
+            case "LOSSY":
+                return SimulatedLink.Profile.LOSSY;
+            default:
+                throw new IllegalArgumentException("Unknown link: " + link);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
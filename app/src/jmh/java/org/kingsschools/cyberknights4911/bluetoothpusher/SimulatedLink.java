@@ -0,0 +1,440 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process link with the character of a real one, for benchmarking the push path without a
+ * radio. Bytes cross it at the profile's bandwidth and arrive after its latency plus a random
+ * jitter, in order. The link can drop every so many bytes, as an RFCOMM link does when a tablet
+ * walks out of range, after which both ends fail like a reset socket.
+ * <p>
+ * This is the pusher's end. Every {@link #connect()} opens a fresh link and hands the far end to
+ * {@link #acceptor()}, so a {@link PushReceiver} serving it sees reconnects just as it would over
+ * TCP. Each direction is a preallocated ring, moving bytes across allocates nothing, so the
+ * allocation rate measured is the pusher's and the receiver's own.
+ */
+public class SimulatedLink implements Transport {
+    /**
+     * The character of a link, 0 disables each setting
+     */
+    public static class Profile {
+        /**
+         * No limits, like the in-memory pipe
+         */
+        public static final Profile UNLIMITED = new Profile(0, 0, 0, 0);
+        /**
+         * A good RFCOMM link, around what EDR tablets manage in practice
+         */
+        public static final Profile BLUETOOTH = new Profile(256 * 1024, 15, 5, 0);
+        /**
+         * A congested link at the edge of range that drops every megabyte and a half, past the
+         * receiver's default checkpoint, so each connection keeps some of what it carried
+         */
+        public static final Profile LOSSY = new Profile(128 * 1024, 40, 30, 3 * 512 * 1024);
+
+        final long bytesPerSecond;
+        final long latencyNanos;
+        final long jitterNanos;
+        final long disconnectEveryBytes;
+
+        /**
+         * @param bytesPerSecond       how fast bytes leave the sender
+         * @param latencyMillis        how long they take to arrive, one way
+         * @param jitterMillis         up to this much longer at random
+         * @param disconnectEveryBytes drop the link after this many bytes towards the receiver
+         */
+        public Profile(long bytesPerSecond, long latencyMillis, long jitterMillis, long disconnectEveryBytes) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+            this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+            this.disconnectEveryBytes = disconnectEveryBytes;
+        }
+    }
+
+    // bytes in flight in each direction before the writer blocks, like a socket's send buffer
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // writes are carried in segments no bigger than an RFCOMM frame
+    private static final int SEGMENT_SIZE = 1024;
+    private static final int MAX_SEGMENTS = 4096;
+
+    private final String name;
+    private final Profile profile;
+    private final Random random;
+    private final BlockingQueue<Transport> accepted = new LinkedBlockingQueue<>();
+    private Connection connection;
+    // guards the drop counters, a writer holding its direction's lock never takes the link's,
+    // which close() holds while it takes each direction's
+    private final Object drops = new Object();
+    // bytes carried towards the receiver since the link last dropped
+    private long sinceDisconnect;
+    private int disconnectCount;
+
+    /**
+     * @param seed the jitter is drawn from this, so runs are repeatable as far as thread
+     *             scheduling allows
+     */
+    public SimulatedLink(String name, Profile profile, long seed) {
+        this.name = name;
+        this.profile = profile;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return where the receiving ends of the links come from, for {@link PushReceiver#serve}
+     */
+    public TransportAcceptor acceptor() {
+        return new TransportAcceptor() {
+            @Override
+            public Transport accept() throws IOException {
+                try {
+                    Transport transport = accepted.take();
+                    if (transport == CLOSED) {
+                        accepted.offer(CLOSED);
+                        throw new IOException("Acceptor closed: " + name);
+                    }
+                    return transport;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted accepting on " + name);
+                }
+            }
+
+            @Override
+            public String getAddress() {
+                return "sim:" + name;
+            }
+
+            @Override
+            public void close() {
+                accepted.offer(CLOSED);
+            }
+        };
+    }
+
+    public int getDisconnectCount() {
+        synchronized (drops) {
+            return disconnectCount;
+        }
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if (isConnected()) {
+            return;
+        }
+        connection = new Connection();
+        accepted.add(connection.remote);
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return connection != null && !connection.toReceiver.closed;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        checkConnected();
+        return connection.toPusher.inputStream;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        checkConnected();
+        return connection.toReceiver.outputStream;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection != null) {
+            connection.close(false);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getAddress() {
+        return "sim:" + name;
+    }
+
+    @Override
+    public String getLinkType() {
+        return LinkTypes.PIPE;
+    }
+
+    private void checkConnected() throws IOException {
+        if (connection == null) {
+            throw new IOException("Not connected to: " + name);
+        }
+    }
+
+    /**
+     * Counts bytes towards the next drop.
+     *
+     * @return whether the link should drop now
+     */
+    private boolean carried(int length) {
+        if (profile.disconnectEveryBytes == 0) {
+            return false;
+        }
+        synchronized (drops) {
+            sinceDisconnect += length;
+            if (sinceDisconnect < profile.disconnectEveryBytes) {
+                return false;
+            }
+            sinceDisconnect = 0;
+            disconnectCount++;
+            return true;
+        }
+    }
+
+    /**
+     * One link, both directions of it
+     */
+    private class Connection {
+        // created in connect(), with the link's lock held
+        final Direction toReceiver = new Direction(this, true, random.nextLong());
+        final Direction toPusher = new Direction(this, false, random.nextLong());
+        final Transport remote = new Transport() {
+            @Override
+            public void connect() throws IOException {
+                if (!isConnected()) {
+                    throw new IOException("Link closed: " + name);
+                }
+            }
+
+            @Override
+            public boolean isConnected() {
+                return !toPusher.closed;
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return toReceiver.inputStream;
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return toPusher.outputStream;
+            }
+
+            @Override
+            public void close() {
+                Connection.this.close(false);
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public String getAddress() {
+                return "sim:" + name;
+            }
+
+            @Override
+            public String getLinkType() {
+                return LinkTypes.PIPE;
+            }
+        };
+
+        /**
+         * @param dropped whether the link failed, rather than either end closing it
+         */
+        void close(boolean dropped) {
+            toReceiver.close(dropped);
+            toPusher.close(dropped);
+        }
+    }
+
+    /**
+     * Bytes travelling one way, in a ring with the time each segment arrives
+     */
+    private class Direction {
+        private final Connection connection;
+        private final boolean countsTowardsDrops;
+        // each direction draws its own jitter, under its own lock
+        private final Random jitter;
+        private final byte[] ring = new byte[BUFFER_SIZE];
+        private final long[] arrivals = new long[MAX_SEGMENTS];
+        private final int[] lengths = new int[MAX_SEGMENTS];
+        private int readPos;
+        private int count;
+        private int firstSegment;
+        private int segmentCount;
+        private long lastDepartureNanos;
+        private long lastArrivalNanos;
+        volatile boolean closed;
+        private boolean dropped;
+        // the reader and a writer blocked on a full ring each need their own
+        private final byte[] readOne = new byte[1];
+        private final byte[] writeOne = new byte[1];
+
+        final InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                synchronized (Direction.this) {
+                    int n = read(readOne, 0, 1);
+                    return n == -1 ? -1 : readOne[0] & 0xFF;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Direction.this.read(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                connection.close(false);
+            }
+        };
+
+        final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                synchronized (Direction.this) {
+                    writeOne[0] = (byte) b;
+                    write(writeOne, 0, 1);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Direction.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                connection.close(false);
+            }
+        };
+
+        Direction(Connection connection, boolean countsTowardsDrops, long seed) {
+            this.connection = connection;
+            this.countsTowardsDrops = countsTowardsDrops;
+            this.jitter = new Random(seed);
+        }
+
+        synchronized void close(boolean dropped) {
+            if (!closed) {
+                closed = true;
+                this.dropped = dropped;
+            }
+            notifyAll();
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = writeSegment(b, off, Math.min(len, SEGMENT_SIZE));
+                off += n;
+                len -= n;
+                if (countsTowardsDrops && carried(n)) {
+                    connection.close(true);
+                    throw new IOException("Simulated disconnect on " + name);
+                }
+            }
+        }
+
+        private long nextJitter() {
+            return profile.jitterNanos == 0 ? 0 : (long) (jitter.nextDouble() * profile.jitterNanos);
+        }
+
+        private synchronized int writeSegment(byte[] b, int off, int len) throws IOException {
+            while ((count == ring.length || segmentCount == arrivals.length) && !closed) {
+                waitFor(0);
+            }
+            checkOpen();
+            int writePos = (readPos + count) % ring.length;
+            int n = Math.min(len, Math.min(ring.length - count, ring.length - writePos));
+            System.arraycopy(b, off, ring, writePos, n);
+            count += n;
+
+            // leaves once the bytes ahead of it have, arrives no sooner than the segment before it
+            long now = System.nanoTime();
+            long departure = Math.max(now, lastDepartureNanos);
+            if (profile.bytesPerSecond > 0) {
+                departure += n * TimeUnit.SECONDS.toNanos(1) / profile.bytesPerSecond;
+            }
+            lastDepartureNanos = departure;
+            long arrival = Math.max(lastArrivalNanos, departure + profile.latencyNanos + nextJitter());
+            lastArrivalNanos = arrival;
+            int segment = (firstSegment + segmentCount) % arrivals.length;
+            arrivals[segment] = arrival;
+            lengths[segment] = n;
+            segmentCount++;
+            notifyAll();
+            return n;
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (dropped) {
+                    throw new IOException("Simulated disconnect on " + name);
+                }
+                if (segmentCount > 0) {
+                    long wait = arrivals[firstSegment] - System.nanoTime();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    waitFor(wait);
+                } else if (closed) {
+                    return -1;
+                } else {
+                    waitFor(0);
+                }
+            }
+
+            // only what has arrived, the rest of the ring is still on its way
+            int n = Math.min(len, lengths[firstSegment]);
+            int first = Math.min(n, ring.length - readPos);
+            System.arraycopy(ring, readPos, b, off, first);
+            System.arraycopy(ring, 0, b, off + first, n - first);
+            readPos = (readPos + n) % ring.length;
+            count -= n;
+            lengths[firstSegment] -= n;
+            if (lengths[firstSegment] == 0) {
+                firstSegment = (firstSegment + 1) % arrivals.length;
+                segmentCount--;
+            }
+            notifyAll();
+            return n;
+        }
+
+        private void checkOpen() throws IOException {
+            if (closed) {
+                throw new IOException(dropped ? "Simulated disconnect on " + name : "Link closed: " + name);
+            }
+        }
+
+        private void waitFor(long nanos) throws IOException {
+            try {
+                if (nanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted on " + name);
+            }
+        }
+    }
+
+    // tells a blocked accept that the acceptor was closed
+    private static final Transport CLOSED = PipeTransport.pair("closed")[0];
+}
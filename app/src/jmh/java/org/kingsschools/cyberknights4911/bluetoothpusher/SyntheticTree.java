@@ -0,0 +1,110 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Directory trees to push in the benchmarks, the same bytes for the same seed on every run so
+ * results from different commits are comparable. Half of each file is random and half repeats,
+ * so compression has something to find without making every file trivially small.
+ */
+public class SyntheticTree {
+    /**
+     * The shapes of tree, each stresses a different part of the send path
+     */
+    public enum Shape {
+        /**
+         * Per file overhead: headers, acks, packing and directory messages
+         */
+        TINY(2000, 200, 0, 0, 0, 0),
+        /**
+         * Raw streaming: chunking, compression and the window
+         */
+        HUGE(0, 0, 0, 0, 2, 2 * 1024 * 1024),
+        /**
+         * A match's worth of scouting data, mostly small files with some photos
+         */
+        MIXED(500, 200, 20, 64 * 1024, 1, 1024 * 1024);
+
+        final int tinyCount;
+        final int tinySize;
+        final int mediumCount;
+        final int mediumSize;
+        final int hugeCount;
+        final int hugeSize;
+
+        Shape(int tinyCount, int tinySize, int mediumCount, int mediumSize, int hugeCount, int hugeSize) {
+            this.tinyCount = tinyCount;
+            this.tinySize = tinySize;
+            this.mediumCount = mediumCount;
+            this.mediumSize = mediumSize;
+            this.hugeCount = hugeCount;
+            this.hugeSize = hugeSize;
+        }
+    }
+
+    // small files go this many to a team directory, spread over its matches
+    private static final int FILES_PER_DIRECTORY = 50;
+
+    private final File root;
+    private long totalBytes;
+    private int fileCount;
+
+    private SyntheticTree(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Writes the tree into a new directory under the parent.
+     */
+    public static SyntheticTree create(File parent, Shape shape, long seed) throws IOException {
+        File root = new File(parent, shape.name().toLowerCase());
+        if (!root.mkdirs() && !root.isDirectory()) {
+            throw new IOException("Could not create " + root);
+        }
+        SyntheticTree tree = new SyntheticTree(root);
+        Random random = new Random(seed);
+        for (int i = 0; i < shape.tinyCount; i++) {
+            File directory = new File(root, "team" + (i / FILES_PER_DIRECTORY) + "/match" + (i % 5));
+            tree.write(new File(directory, "entry" + i + ".json"), shape.tinySize, random);
+        }
+        for (int i = 0; i < shape.mediumCount; i++) {
+            tree.write(new File(root, "photos/thumb" + i + ".jpg"), shape.mediumSize, random);
+        }
+        for (int i = 0; i < shape.hugeCount; i++) {
+            tree.write(new File(root, "video/clip" + i + ".mp4"), shape.hugeSize, random);
+        }
+        return tree;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    private void write(File file, int size, Random random) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create " + directory);
+        }
+        byte[] contents = new byte[size];
+        random.nextBytes(contents);
+        for (int i = size / 2; i < size; i++) {
+            contents[i] = (byte) ('a' + i % 26);
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(contents);
+        }
+        totalBytes += size;
+        fileCount++;
+    }
+}
@@ -0,0 +1,387 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matches acks from the receiver to the files waiting on them. Files are keyed by their sequence
+ * number, the listening thread reports acks as they arrive and the sending thread is woken
+ * directly rather than polling. At most a window's worth of files may be pending at once.
+ * <p>
+ * A file whose ack doesn't arrive within the timeout, or that the receiver NAKs, is either
+ * handed back to the {@link Callbacks} to retransmit or fails the send, depending on the policy.
+ * Chunks the receiver NAKs are always handed back, the file's ack only arrives once they're good.
+ * <p>
+ * Without sequence numbers a timed out file always fails the send. Its ack may only be late, and
+ * a retransmit would draw a second ack that can't be told apart from the next file's.
+ * <p>
+ * With a {@link LinkTuner} the window is the tuner's, up to the agreed window, and the tuner is
+ * told of every ack round trip, retransmit and NAKed chunk.
+ */
+class AckDispatcher {
+    interface Callbacks {
+        /**
+         * Re-sends a file, called on the sending thread while it waits on acks.
+         */
+        void retransmit(int id, Object attachment) throws IOException;
+
+        /**
+         * Re-sends part of a file, called on the sending thread.
+         */
+        void retransmitChunk(int id, Object attachment, long offset, int length) throws IOException;
+
+        /**
+         * Called on the listening thread when a file's ack arrives.
+         */
+        void acked(int id, Object attachment);
+    }
+
+    private static class PendingAck {
+        final Object attachment;
+        long sentAtNanos;
+        int retransmits;
+        boolean nacked;
+        // offset, length pairs of chunks that failed verification
+        final List<long[]> badChunks = new ArrayList<>();
+
+        PendingAck(Object attachment) {
+            this.attachment = attachment;
+        }
+    }
+
+    /**
+     * Work handed back to the sending thread, a whole file or one of its chunks
+     */
+    private static class Retransmit {
+        final int id;
+        final Object attachment;
+        final long offset;
+        final int length;
+
+        Retransmit(int id, Object attachment, long offset, int length) {
+            this.id = id;
+            this.attachment = attachment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean isWholeFile() {
+            return length < 0;
+        }
+    }
+
+    private final int window;
+    private final long timeoutNanos;
+    private final int timeoutPolicy;
+    private final boolean sequenced;
+    private final int maxRetransmits;
+    private final Callbacks callbacks;
+    private final LatencyHistogram rttHistogram;
+    private final LinkTuner tuner;
+    private final SortedMap<Integer, PendingAck> pending = new TreeMap<>();
+    private IOException failure;
+
+    // ack round trip times, measured from the end of the file write to the ack
+    private long rttCount;
+    private long rttTotalNanos;
+    private long rttMinNanos = Long.MAX_VALUE;
+    private long rttMaxNanos;
+    private long rttLastNanos;
+
+    AckDispatcher(int window, PushOptions options, Callbacks callbacks) {
+        this(window, options, callbacks, null);
+    }
+
+    /**
+     * @param rttHistogram every ack round trip is recorded here too, may be null
+     */
+    AckDispatcher(int window, PushOptions options, Callbacks callbacks, LatencyHistogram rttHistogram) {
+        this(window, options, callbacks, rttHistogram, null);
+    }
+
+    /**
+     * @param tuner narrows the window to suit the link, may be null
+     */
+    AckDispatcher(int window, PushOptions options, Callbacks callbacks, LatencyHistogram rttHistogram,
+                  LinkTuner tuner) {
+        this(window, options, callbacks, rttHistogram, tuner, true);
+    }
+
+    /**
+     * @param sequenced whether acks name the file they're for, without them files are never
+     *                  retransmitted
+     */
+    AckDispatcher(int window, PushOptions options, Callbacks callbacks, LatencyHistogram rttHistogram,
+                  LinkTuner tuner, boolean sequenced) {
+        this.window = window;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.getAckTimeoutMillis());
+        this.timeoutPolicy = options.getAckTimeoutPolicy();
+        this.sequenced = sequenced;
+        this.maxRetransmits = options.getMaxRetransmits();
+        this.callbacks = callbacks;
+        this.rttHistogram = rttHistogram;
+        this.tuner = tuner;
+    }
+
+    /**
+     * Blocks until there is room in the window, then reserves a slot for the id. The timeout
+     * doesn't start until the file has been completely written, see {@link #sent(int)}.
+     */
+    void register(int id, Object attachment) throws IOException {
+        while (true) {
+            Retransmit due;
+            synchronized (this) {
+                due = takeDue();
+                if (due == null) {
+                    if (pending.size() < getWindow()) {
+                        pending.put(id, new PendingAck(attachment));
+                        return;
+                    }
+                    awaitChange();
+                    continue;
+                }
+            }
+            retransmit(due);
+        }
+    }
+
+    /**
+     * Marks the file as completely written, starting its ack timeout.
+     */
+    synchronized void sent(int id) {
+        PendingAck ack = pending.get(id);
+        if (ack != null) {
+            ack.sentAtNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * A cumulative ack, every file up to and including the id was received. A file NAKed since
+     * it was sent, as when its root hash didn't match, still waits on its retransmit.
+     */
+    synchronized void ackUpTo(int id) {
+        Iterator<Map.Entry<Integer, PendingAck>> it = pending.headMap(id + 1).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, PendingAck> entry = it.next();
+            if (entry.getValue().nacked) {
+                continue;
+            }
+            acked(entry.getKey(), entry.getValue());
+            it.remove();
+        }
+        notifyAll();
+    }
+
+    /**
+     * A selective ack, only the file with the id was received.
+     */
+    synchronized void ack(int id) {
+        PendingAck ack = pending.get(id);
+        if (ack != null && !ack.nacked) {
+            pending.remove(id);
+            acked(id, ack);
+        }
+        notifyAll();
+    }
+
+    /**
+     * An ack without an id, as sent by the original receivers, always for the oldest file.
+     */
+    synchronized void ackOldest() {
+        if (!pending.isEmpty()) {
+            ack(pending.firstKey());
+        }
+    }
+
+    /**
+     * The receiver got the file but it failed verification.
+     */
+    synchronized void nack(int id) {
+        PendingAck ack = pending.get(id);
+        if (ack != null) {
+            ack.nacked = true;
+        }
+        notifyAll();
+    }
+
+    /**
+     * A chunk of the file failed verification, the rest of the file is fine.
+     */
+    synchronized void nackChunk(int id, long offset, int length) {
+        PendingAck ack = pending.get(id);
+        if (ack != null) {
+            ack.badChunks.add(new long[]{offset, length});
+        }
+        notifyAll();
+    }
+
+    /**
+     * Blocks until every pending file has been acked.
+     */
+    void awaitAll() throws IOException {
+        while (true) {
+            Retransmit due;
+            synchronized (this) {
+                due = takeDue();
+                if (due == null) {
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    awaitChange();
+                    continue;
+                }
+            }
+            retransmit(due);
+        }
+    }
+
+    /**
+     * Wakes up all waiters with the failure, eg. when the link goes down.
+     */
+    synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return what the file was registered with, or null once it has been acked
+     */
+    synchronized Object getAttachment(int id) {
+        PendingAck ack = pending.get(id);
+        return ack == null ? null : ack.attachment;
+    }
+
+    /**
+     * @return how many files may be pending right now
+     */
+    synchronized int getWindow() {
+        return tuner == null ? window : Math.min(window, tuner.getWindow());
+    }
+
+    synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    synchronized long getRttCount() {
+        return rttCount;
+    }
+
+    synchronized long getLastRttMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(rttLastNanos);
+    }
+
+    synchronized long getMinRttMillis() {
+        return rttCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(rttMinNanos);
+    }
+
+    synchronized long getMaxRttMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(rttMaxNanos);
+    }
+
+    synchronized long getAverageRttMillis() {
+        return rttCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(rttTotalNanos / rttCount);
+    }
+
+    private void acked(int id, PendingAck ack) {
+        if (callbacks != null) {
+            callbacks.acked(id, ack.attachment);
+        }
+        if (ack.sentAtNanos == 0) {
+            return;
+        }
+        long rtt = System.nanoTime() - ack.sentAtNanos;
+        rttCount++;
+        rttTotalNanos += rtt;
+        rttLastNanos = rtt;
+        rttMinNanos = Math.min(rttMinNanos, rtt);
+        rttMaxNanos = Math.max(rttMaxNanos, rtt);
+        if (rttHistogram != null) {
+            rttHistogram.record(TimeUnit.NANOSECONDS.toMillis(rtt));
+        }
+        if (tuner != null) {
+            tuner.acked(rtt);
+        }
+    }
+
+    /**
+     * @return a timed out or NAKed file, or a NAKed chunk, that should be retransmitted, or null
+     */
+    private Retransmit takeDue() throws IOException {
+        if (failure != null) {
+            throw new IOException("Link failed with " + pending.size() + " files unacknowledged", failure);
+        }
+
+        long now = System.nanoTime();
+        for (Map.Entry<Integer, PendingAck> entry : pending.entrySet()) {
+            PendingAck ack = entry.getValue();
+            boolean timedOut = ack.sentAtNanos != 0 && now - ack.sentAtNanos >= timeoutNanos;
+            if (timedOut || ack.nacked) {
+                String reason = ack.nacked ? "was rejected by the receiver" : "timed out waiting on its ack";
+                if (!sequenced || timeoutPolicy != PushOptions.ACK_TIMEOUT_RETRANSMIT
+                        || ack.retransmits >= maxRetransmits) {
+                    throw new IOException("File " + entry.getKey() + " " + reason
+                            + " after " + ack.retransmits + " retransmits");
+                }
+                ack.retransmits++;
+                if (tuner != null) {
+                    tuner.lost();
+                }
+                ack.nacked = false;
+                ack.badChunks.clear();
+                // no timeout, or rtt sample, until the retransmit has been written
+                ack.sentAtNanos = 0;
+                return new Retransmit(entry.getKey(), ack.attachment, 0, -1);
+            }
+            if (!ack.badChunks.isEmpty()) {
+                long[] chunk = ack.badChunks.remove(0);
+                if (tuner != null) {
+                    tuner.chunkCorrupted();
+                }
+                ack.sentAtNanos = 0;
+                return new Retransmit(entry.getKey(), ack.attachment, chunk[0], (int) chunk[1]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for an ack, a NAK, a failure or the oldest pending ack timing out, whichever is first.
+     */
+    private void awaitChange() throws IOException {
+        long now = System.nanoTime();
+        long waitNanos = timeoutNanos;
+        for (PendingAck ack : pending.values()) {
+            if (ack.sentAtNanos != 0) {
+                waitNanos = Math.min(waitNanos, ack.sentAtNanos + timeoutNanos - now);
+            }
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on file ack");
+        }
+    }
+
+    /**
+     * Retransmits outside the lock so the listening thread can keep processing acks.
+     */
+    private void retransmit(Retransmit due) throws IOException {
+        if (due.isWholeFile()) {
+            callbacks.retransmit(due.id, due.attachment);
+        } else {
+            callbacks.retransmitChunk(due.id, due.attachment, due.offset, due.length);
+        }
+        sent(due.id);
+    }
+}
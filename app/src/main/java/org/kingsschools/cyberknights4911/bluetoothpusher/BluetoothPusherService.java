@@ -1,5 +1,6 @@
 package org.kingsschools.cyberknights4911.bluetoothpusher;
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
@@ -11,7 +12,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Semaphore;
@@ -28,6 +32,10 @@ public class BluetoothPusherService {
     public static final UUID CYBERKNIGHT_BLUETOOTH_PUSHER_UUID = UUID.fromString("2d31ac7d-0d4a-48dd-8136-2f6a9b71a3f4");
 
     public static final String TAG = "BluetoothPusher";
+
+    // RFCOMM only allows one link per service from a device, so each extra channel a large file
+    // is striped over connects to a service of its own
+    public static final int MAX_RFCOMM_STRIPE_CHANNELS = 3;
     private Handler mHandler;
 
     /**
@@ -38,6 +46,11 @@ public class BluetoothPusherService {
         public static final int SEND_SUCCESS = 0;
         public static final int SEND_FAILED = 1;
         public static final int LOG = 2;
+        /**
+         * The obj is the device's {@link TransferProgress}, the same instance every time, published
+         * at most once per progress interval and never more than one at a time
+         */
+        public static final int PROGRESS = 3;
     }
 
 
@@ -51,11 +64,131 @@ public class BluetoothPusherService {
 
 
     public ConnectedDevice connect(BluetoothDevice mDevice) {
-        try {
-            ConnectedDevice pusher = new ConnectedDevice(mDevice, mHandler);
-            return pusher;
-        } catch (IOException e) {
-            throw new BluetoothConnectionException("Error connecting to device: " + mDevice.getName(), e);
+        ConnectedDevice device = connect(new RfcommTransport(mDevice));
+        device.setStripeTransports(rfcommStripes(mDevice));
+        return device;
+    }
+
+    /**
+     * Creates a pusher with non-default options, eg. one that stripes large files over several
+     * channels.
+     */
+    public ConnectedDevice connect(BluetoothDevice mDevice, PushOptions options) {
+        ConnectedDevice device = connect(new RfcommTransport(mDevice), options);
+        device.setStripeTransports(rfcommStripes(mDevice));
+        return device;
+    }
+
+    /**
+     * @return the service the extra channel connects to, channel is from 1 to {@link #MAX_RFCOMM_STRIPE_CHANNELS}
+     */
+    public static UUID getStripeChannelUuid(int channel) {
+        return new UUID(CYBERKNIGHT_BLUETOOTH_PUSHER_UUID.getMostSignificantBits(),
+                CYBERKNIGHT_BLUETOOTH_PUSHER_UUID.getLeastSignificantBits() + channel);
+    }
+
+    private static TransportFactory rfcommStripes(final BluetoothDevice device) {
+        return new TransportFactory() {
+            @Override
+            public Transport create(int channel) {
+                // past the services there are, the connect fails and the file goes on one channel
+                return new RfcommTransport(device, getStripeChannelUuid(channel));
+            }
+        };
+    }
+
+    /**
+     * Creates a pusher over any transport, such as a TCP or in-memory link when running off-device.
+     */
+    public ConnectedDevice connect(Transport transport) {
+        return new ConnectedDevice(transport, mHandler);
+    }
+
+    /**
+     * Creates a pusher with non-default options, eg. one that keeps a persistent session open.
+     */
+    public ConnectedDevice connect(Transport transport, PushOptions options) {
+        return new ConnectedDevice(transport, mHandler, options);
+    }
+
+    /**
+     * Pushes the file or directory to every device at once, reading it from storage only once.
+     * A status message is published for each device as it finishes.
+     */
+    public FanOutPush sendToAll(File path, BluetoothDevice... devices) {
+        List<Transport> transports = new ArrayList<>();
+        for (BluetoothDevice device : devices) {
+            transports.add(new RfcommTransport(device));
+        }
+        return sendToAll(path, transports.toArray(new Transport[transports.size()]));
+    }
+
+    public FanOutPush sendToAll(File path, Transport... transports) {
+        FanOutPush push = new FanOutPush(Arrays.asList(transports), path, mHandler, new PushOptions());
+        push.start();
+        return push;
+    }
+
+    /**
+     * Pushes the files written to the directory tree from now on to the device as they appear,
+     * over a persistent session. Close the returned watcher to stop.
+     * <p>
+     * The device is expected to be running a {@link PushReceiver}, so the session is negotiated
+     * and a link that stops answering heartbeats is noticed and reconnected.
+     */
+    public FolderWatcher watchFolder(File root, BluetoothDevice device) {
+        return watchFolder(root, device, new PushOptions().setPersistentSession(true).setNegotiationEnabled(true));
+    }
+
+    /**
+     * Without negotiation the receiver never answers heartbeats, so a dead link is only noticed
+     * when a write to it fails.
+     */
+    public FolderWatcher watchFolder(File root, BluetoothDevice device, PushOptions options) {
+        FolderWatcher watcher = new FolderWatcher(connect(device, options), root, options);
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * Watches over any transport, such as a TCP link when running off-device.
+     */
+    public FolderWatcher watchFolder(File root, Transport transport, PushOptions options) {
+        FolderWatcher watcher = new FolderWatcher(connect(transport, options), root, options);
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * Starts receiving pushes from other devices over RFCOMM, into the root directory.
+     * Close the returned receiver to stop.
+     * <p>
+     * When the options offer striping the stripe channel services are listened on too, each
+     * waiting for a free session, so allow for them in the max sessions.
+     */
+    public PushReceiver startReceiver(File root, ReceiverOptions options) throws IOException {
+        PushReceiver receiver = new PushReceiver(root, options);
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        receiver.serve(new RfcommAcceptor(adapter));
+        if ((options.getFeatures() & Capabilities.FEATURE_STRIPES) != 0) {
+            for (int channel = 1; channel <= MAX_RFCOMM_STRIPE_CHANNELS; channel++) {
+                receiver.serve(new RfcommAcceptor(adapter, getStripeChannelUuid(channel)));
+            }
         }
+        return receiver;
+    }
+
+    /**
+     * @return the metrics of every device pushed to since the app started
+     */
+    public MetricsRegistry getMetrics() {
+        return MetricsRegistry.getDefault();
+    }
+
+    /**
+     * @return every device's metrics as they are now, see {@link MetricsSnapshot#toJson()} to export them
+     */
+    public MetricsSnapshot getMetricsSnapshot() {
+        return MetricsRegistry.getDefault().snapshot();
     }
 }
@@ -0,0 +1,31 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the send loop gets a file's contents from, a chunk at a time. Normally that is the file
+ * itself, see {@link FileChunkReader}, but a fan-out push hands every device the chunks read once
+ * by a shared read stage, see {@link FanOutPush}.
+ */
+interface ChunkSource extends Closeable {
+    /**
+     * Prepares to read the file from the position.
+     */
+    void open(File file, long startPosition) throws IOException;
+
+    /**
+     * Reads from the buffer's position up to its limit, possibly less.
+     *
+     * @return the number of bytes read, 0 at the end of the file
+     */
+    int read(ByteBuffer buffer) throws IOException;
+
+    /**
+     * @return the CRC32 of exactly the bytes returned by the last read, if the source already
+     * computed it, otherwise -1 and the caller has to compute it
+     */
+    long getLastChunkCrc();
+}
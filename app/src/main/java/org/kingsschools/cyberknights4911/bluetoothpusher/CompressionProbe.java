@@ -0,0 +1,98 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Decides per file whether compressing is worth it. Files with a well known compressed format
+ * are skipped outright, anything else is sampled at its start, middle and end and only compressed
+ * when the sample shrinks enough to pay for the CPU.
+ */
+class CompressionProbe {
+    private static final int SAMPLE_SIZE = 4096;
+    private static final int MIN_FILE_SIZE = 128;
+
+    private static final String[] COMPRESSED_EXTENSIONS = {
+            ".png", ".jpg", ".jpeg", ".gif", ".webp", ".mp3", ".mp4", ".m4a", ".3gp", ".mkv",
+            ".webm", ".zip", ".gz", ".bz2", ".xz", ".7z", ".apk", ".jar"
+    };
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] sample = new byte[SAMPLE_SIZE * 3];
+    private final byte[] compressed = new byte[SAMPLE_SIZE * 4];
+    private final double maxRatio;
+
+    /**
+     * @param maxRatio compressed / original size of the sample above which a file is sent as is
+     */
+    CompressionProbe(double maxRatio) {
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * @param preference   codecs in order of preference
+     * @param allowedMask codecs the receiver supports
+     * @return the codec to send the file with, or {@link FilePushMessage#COMPRESSION_NONE}
+     */
+    byte choose(File file, byte[] preference, int allowedMask) {
+        byte codec = FilePushMessage.COMPRESSION_NONE;
+        for (byte candidate : preference) {
+            if (Codecs.supports(allowedMask, candidate)) {
+                codec = candidate;
+                break;
+            }
+        }
+        if (codec == FilePushMessage.COMPRESSION_NONE || file.length() < MIN_FILE_SIZE || hasCompressedExtension(file)) {
+            return FilePushMessage.COMPRESSION_NONE;
+        }
+
+        try {
+            return sampleRatio(file) <= maxRatio ? codec : FilePushMessage.COMPRESSION_NONE;
+        } catch (IOException e) {
+            // the send itself will report the problem
+            return FilePushMessage.COMPRESSION_NONE;
+        }
+    }
+
+    private double sampleRatio(File file) throws IOException {
+        int sampled = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            long[] offsets = length <= sample.length
+                    ? new long[]{0}
+                    : new long[]{0, length / 2 - SAMPLE_SIZE / 2, length - SAMPLE_SIZE};
+            int chunk = length <= sample.length ? (int) length : SAMPLE_SIZE;
+            for (long offset : offsets) {
+                raf.seek(offset);
+                raf.readFully(sample, sampled, chunk);
+                sampled += chunk;
+            }
+        }
+
+        deflater.reset();
+        deflater.setInput(sample, 0, sampled);
+        deflater.finish();
+        int compressedSize = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(compressed);
+            if (n == 0) {
+                break;
+            }
+            compressedSize += n;
+        }
+        return (double) compressedSize / sampled;
+    }
+
+    private static boolean hasCompressedExtension(File file) {
+        String name = file.getName().toLowerCase(Locale.US);
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
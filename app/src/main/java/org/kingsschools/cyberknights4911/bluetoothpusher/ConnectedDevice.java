@@ -1,96 +1,330 @@
 package org.kingsschools.cyberknights4911.bluetoothpusher;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.UUID;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.CRC32;
 
 /**
  * This represents a bluetooth server ready to receive files.
  */
 public class ConnectedDevice {
+    private static final String TAG = BluetoothPusherService.TAG;
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+    private static final int SUPPORTED_FEATURES = Capabilities.FEATURE_MANIFEST | Capabilities.FEATURE_RESUME
+            | Capabilities.FEATURE_KEEP_ALIVE | Capabilities.FEATURE_UNBOUNDED_DIRECTORIES | Capabilities.FEATURE_PACK
+            | Capabilities.FEATURE_PATH_DICTIONARY | Capabilities.FEATURE_STRIPES | Capabilities.FEATURE_MERKLE;
+    private static final long MAX_RECONNECT_BACKOFF_MILLIS = 30000;
+    // how long a reconnect waits on the old connection's listening thread to see its transport closed
+    private static final long LISTENER_EXIT_MILLIS = 2000;
+
+    private Transport transport;
+    private final TransferQueue queue;
+    private DataInputStream inStream;
+    private DataOutputStream outStream;
+    // the send loop reuses these for every file, the buffers are only held while connected
+    private final BufferPool bufferPool;
+    private final FileChunkReader reader;
+    // file contents come from here, the reader unless a fan-out push shares its read stage
+    private ChunkSource source;
+    // reads and checksums ahead of the send loop while connected, see PushOptions#setPipelineDepth
+    private PipelinedChunkSource pipeline;
+    private final DeviceMetrics metrics;
+    private final TransferProgress progress;
+    // the next file, already opened by the directory walk
+    private DirectoryWalker.Entry prefetched;
+    // the directories sent over this connection, see FEATURE_PATH_DICTIONARY
+    private final PathDictionary directories = new PathDictionary();
+    // small files waiting to go out together, and their contents back to back
+    private FilePack pack;
+    private ByteBuffer packContents;
+    private ByteBuffer chunk;
+    private ByteBuffer compressed;
+    // each chunk is checksummed once, the whole file CRC is combined from the chunk CRCs
+    private final CRC32 chunkCrc = new CRC32();
+    private final CrcCombiner crcCombiner;
+    private long fileCrc;
+    // with FEATURE_MERKLE each chunk is hashed into the file's tree instead, see checksumFrame
+    private final MerkleTree merkle = new MerkleTree();
+    private final byte[] leafHash = new byte[MerkleTree.HASH_LENGTH];
+    // the roots sent and not yet confirmed or acked, by sequence number
+    private final Map<Integer, byte[]> sentRoots = new HashMap<>();
+    // the listening thread reads ROOT_HASH messages into this
+    private final byte[] receivedRoot = new byte[MerkleTree.HASH_LENGTH];
+    private final Codec[] codecs = new Codec[8];
+    private CompressionProbe compressionProbe;
+    private Thread sendingThread;
+    private volatile Thread listeningThread;
+
+    // a persistent session keeps the transport open between sends, see PushOptions#setPersistentSession
+    private final Object sessionLock = new Object();
+    private boolean connected;
+    private boolean sending;
+    private boolean sessionClosed = true;
+    private long idleSinceNanos;
+    private Thread keepAliveThread;
+    private volatile long lastReceivedNanos;
+    private volatile boolean linkLost;
+
+    private Handler handler;
+    private PushOptions options;
+    private SendListener sendListener;
+
+    // settings agreed with the receiver for the current connection, null when the receiver
+    // only speaks the original protocol
+    private volatile Capabilities settings;
+    private PendingReply<Capabilities> hello;
+    // the receiver didn't answer a HELLO, it only speaks the original protocol
+    private boolean helloUnanswered;
+    private PendingReply<BitSet> manifestReply;
+    // destination paths of files the receiver already has, they are skipped
+    private Set<String> unneededPaths = Collections.emptySet();
+    // acked files not yet in the journal, they are written on the sending thread so an ack never
+    // waits on the disk
+    private final List<Object> unjournaled = new ArrayList<>();
+    private volatile AckDispatcher acks;
+    // adapts the window, chunk size and flush cadence to the link, replaced with each connection
+    private volatile LinkTuner tuner;
+    // written since the output was last flushed
+    private long unflushedBytes;
+    private int nextSequence;
+
+    // large files are striped over extra channels from here, see PushOptions#setStripeCount
+    private TransportFactory stripeTransports;
+    private StripeChannels stripes;
+    // from the receiver's HELLO, 0 when it can't take stripes
+    private int stripeToken;
+    // the extra channels couldn't be opened, don't try again until the next connection
+    private boolean stripesUnavailable;
+
+    // sends that failed part way, by the absolute path being sent, so a later send can resume
+    private final Map<String, TransferState> unfinishedTransfers = new HashMap<>();
+    private volatile TransferState transfer;
+    private PendingReply<TransferState> resumeReply;
+
+    public ConnectedDevice(BluetoothDevice device, Handler handler) {
+        this(new RfcommTransport(device), handler);
+    }
+
+    public ConnectedDevice(Transport transport, Handler handler) {
+        this(transport, handler, new PushOptions());
+    }
+
     /**
-     * Constants for message types for the internal protocol
+     * @param transport the link to push over, it is connected at the start of each send
+     * @param handler   receives the status messages, may be null when running off-device
+     * @param options   tuning for the push protocol
      */
-    private interface FilePushMessage {
-        public static final byte TYPE_FILE = 1;
-        public static final byte TYPE_DIRECTORY = 2;
-        public static final byte TYPE_STOP = 3;
-        public static final byte TYPE_KEEP_ALIVE = 4;
-        public static final byte TYPE_FILE_ACK = 5;
+    public ConnectedDevice(Transport transport, Handler handler, PushOptions options) {
+        this.transport = transport;
+        this.handler = handler;
+        this.options = options;
 
-        public static final byte COMPRESSION_NONE = 0;
+        bufferPool = BufferPool.getDefault();
+        reader = new FileChunkReader(options.getMmapThreshold());
+        source = reader;
+        crcCombiner = new CrcCombiner(options.getChunkSize());
+        metrics = MetricsRegistry.getDefault().forDevice(transport.getAddress(), transport.getName());
+        progress = new TransferProgress(transport.getName(), options.getProgressIntervalMillis());
+
+        // sends wait here and go out one at a time, several in a row share a connection
+        queue = new TransferQueue(options.getTransferOrdering());
     }
 
+    private void openTransport() throws IOException {
+        awaitListenerExit();
+        long connectStart = System.nanoTime();
+        try {
+            transport.connect();
+        } catch (IOException e) {
+            metrics.connectFailed();
+            throw e;
+        }
+        metrics.connected(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart));
+        Log.d(TAG, "Connected " + transport.getLinkType() + " transport to: " + transport.getName());
 
-    private static final String TAG = BluetoothPusherService.TAG;
+        inStream = new DataInputStream(transport.getInputStream());
+        // message headers are written a field at a time, buffer them into one write per chunk
+        outStream = new DataOutputStream(new BufferedOutputStream(
+                new CountingOutputStream(transport.getOutputStream(), metrics), OUTPUT_BUFFER_SIZE));
+        if (chunk == null) {
+            chunk = bufferPool.acquire(options.getChunkSize());
+        }
+        if (pipeline == null && source == reader && options.getPipelineDepth() > 0) {
+            pipeline = new PipelinedChunkSource(options.getChunkSize(), options.getPipelineDepth(),
+                    options.getMmapThreshold(), bufferPool);
+            source = pipeline;
+        }
 
-    private BluetoothSocket socket;
-    private AtomicBoolean sendingInProgress;
-    private AtomicBoolean waitOnFileAck;
-    private BluetoothDevice device;
-    private InputStream inStream;
-    private DataOutputStream outStream;
-    private byte[] writeBuffer; // mmBuffer store for the stream
-    private byte[] readBuffer; // mmBuffer store for the stream
-    private Thread sendingThread;
-    private Thread listeningThread;
+        settings = null;
+        stripeToken = 0;
+        stripesUnavailable = false;
+        linkLost = false;
+        lastReceivedNanos = System.nanoTime();
+        hello = new PendingReply<>();
+        nextSequence = 1;
+        directories.clear();
+        synchronized (sentRoots) {
+            sentRoots.clear();
+        }
+        // the original protocol is stop-and-wait, the file write waits until the receiving
+        // server has acknowledged the entire file was received
+        tuner = new LinkTuner(options.isAdaptiveLink(), 1, chunk.capacity(), OUTPUT_BUFFER_SIZE, metrics);
+        acks = new AckDispatcher(1, options, ackCallbacks, metrics.getAckRtt(), tuner, false);
+        startListening();
+        negotiate();
+    }
 
-    private Handler handler;
+    /**
+     * Offers the receiver the newer protocol, when the options enable it. Receivers that
+     * understand it answer the HELLO with their capabilities and we reply with the settings for
+     * this connection. A receiver that doesn't answer in time gets stop-and-wait, and isn't asked
+     * again on this device's later connections so each of them doesn't wait out the timeout.
+     */
+    private void negotiate() throws IOException {
+        if (!options.isNegotiationEnabled() || options.getHelloTimeoutMillis() <= 0 || helloUnanswered) {
+            return;
+        }
 
-    public ConnectedDevice(BluetoothDevice device, Handler handler) throws IOException {
-        this.device = device;
-        this.handler = handler;
+        outStream.writeByte(FilePushMessage.TYPE_HELLO);
+        outStream.flush();
+        Capabilities remote = hello.await(options.getHelloTimeoutMillis());
+        if (remote == null) {
+            Log.d(TAG, "No HELLO from " + transport.getName() + ", using the original protocol");
+            helloUnanswered = true;
+            return;
+        }
+        if (remote.getVersion() < Capabilities.VERSION_SEQUENCED) {
+            return;
+        }
+        Capabilities agreed = new Capabilities()
+                .set(Capabilities.KEY_VERSION, Math.min(Capabilities.VERSION_FRAMED, remote.getVersion()))
+                .set(Capabilities.KEY_WINDOW, Math.max(1, Math.min(options.getWindowSize(),
+                        remote.get(Capabilities.KEY_WINDOW, 1))))
+                .set(Capabilities.KEY_CODECS, options.isCompressionEnabled()
+                        ? Codecs.supportedMask() & remote.get(Capabilities.KEY_CODECS, 0) : 0)
+                .set(Capabilities.KEY_FEATURES, SUPPORTED_FEATURES & remote.get(Capabilities.KEY_FEATURES, 0));
+        Log.d(TAG, "Negotiated " + agreed + " with " + transport.getName());
 
-        writeBuffer = new byte[1024];
-        readBuffer = new byte[1024];
+        outStream.writeByte(FilePushMessage.TYPE_SETTINGS);
+        agreed.writeTo(outStream);
+        outStream.flush();
 
-        // only a single file/directory can be sent a time
-        sendingInProgress = new AtomicBoolean(false);
+        int window = agreed.get(Capabilities.KEY_WINDOW, 1);
+        tuner = new LinkTuner(options.isAdaptiveLink(), window, chunk.capacity(), OUTPUT_BUFFER_SIZE, metrics);
+        acks = new AckDispatcher(window, options, ackCallbacks, metrics.getAckRtt(), tuner);
+        if ((agreed.get(Capabilities.KEY_FEATURES, 0) & Capabilities.FEATURE_STRIPES) != 0) {
+            stripeToken = remote.get(Capabilities.KEY_STRIPE_TOKEN, 0);
+        }
+        settings = agreed;
+    }
 
-        // we use this lock to force the file write to wait until
-        // the receiving server has acknowledged the entire file
-        // was received.
-        waitOnFileAck = new AtomicBoolean(false);
+    private boolean isSequenced() {
+        return settings != null;
     }
 
-    private void openSocket() {
-        try {
-            BluetoothSocket socket = device.createRfcommSocketToServiceRecord(UUID.fromString("2d31ac7d-0d4a-48dd-8136-2f6a9b71a3f4"));
+    private boolean isFramed() {
+        Capabilities settings = this.settings;
+        return settings != null && settings.getVersion() >= Capabilities.VERSION_FRAMED;
+    }
 
-            Log.d(TAG, "Connected socket to: " + socket.getRemoteDevice().getName());
-            this.socket = socket;
-            this.socket.connect();
+    private boolean hasFeature(int feature) {
+        Capabilities settings = this.settings;
+        return settings != null && (settings.get(Capabilities.KEY_FEATURES, 0) & feature) != 0;
+    }
 
-            // Get the input and output streams; using temp objects because
-            // member streams are final.
+    private boolean isMerkle() {
+        return isFramed() && hasFeature(Capabilities.FEATURE_MERKLE);
+    }
 
-            try {
-                inStream = socket.getInputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "Error occurred when creating input stream", e);
-            }
+    /**
+     * Describes every file in the send to the receiver, which answers with the ones it doesn't
+     * already have an identical copy of. Without an answer everything is sent.
+     */
+    private void negotiateManifest(File path) throws IOException {
+        unneededPaths = Collections.emptySet();
+        if (!hasFeature(Capabilities.FEATURE_MANIFEST)) {
+            return;
+        }
 
-            try {
-                outStream = new DataOutputStream(socket.getOutputStream());
-            } catch (IOException e) {
-                Log.e(TAG, "Error occurred when creating output stream", e);
+        Manifest manifest = Manifest.build(path);
+        manifestReply = new PendingReply<>();
+        outStream.writeByte(FilePushMessage.TYPE_MANIFEST);
+        manifest.writeTo(outStream);
+        outStream.flush();
+
+        BitSet needed = manifestReply.await(options.getAckTimeoutMillis());
+        if (needed == null) {
+            Log.w(TAG, "No manifest reply from " + transport.getName() + ", sending every file");
+            return;
+        }
+        unneededPaths = manifest.unneeded(needed);
+        Log.d(TAG, "Receiver already has " + unneededPaths.size() + " of " + manifest.getEntries().size() + " files");
+    }
+
+    /**
+     * Tells the receiver which transfer the files belong to. When this transfer was interrupted
+     * before, first asks the receiver how far it got so already delivered data isn't resent.
+     */
+    private void beginTransfer(File path) throws IOException {
+        if (!hasFeature(Capabilities.FEATURE_RESUME)) {
+            return;
+        }
+
+        if (transfer.checkpointPath != null || !transfer.completedPaths.isEmpty()) {
+            resumeReply = new PendingReply<>();
+            outStream.writeByte(FilePushMessage.TYPE_RESUME_QUERY);
+            outStream.writeLong(transfer.transferId);
+            outStream.flush();
+            if (resumeReply.await(options.getAckTimeoutMillis()) == null) {
+                Log.w(TAG, "No resume state from " + transport.getName() + ", resending unacked files from the start");
+            } else {
+                Log.d(TAG, "Resuming " + path + " at " + transfer.resumePath + ":" + transfer.resumeOffset
+                        + " with " + transfer.completedPaths.size() + " files already delivered");
             }
+        }
 
-            startListening();
-        } catch (IOException e) {
-            Log.e(TAG, "Error connecting to bluetooth device", e);
+        outStream.writeByte(FilePushMessage.TYPE_TRANSFER_BEGIN);
+        outStream.writeLong(transfer.transferId);
+    }
+
+    /**
+     * Waits for the previous connection's listening thread to finish, once its transport has been
+     * closed it stops at its next read. Until then it could still fail this connection's acks.
+     */
+    private void awaitListenerExit() throws IOException {
+        Thread previous = listeningThread;
+        if (previous == null) {
+            return;
+        }
+        try {
+            previous.join(LISTENER_EXIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on the old listening thread");
+        }
+        if (previous.isAlive()) {
+            Log.w(TAG, "Listening thread for " + transport.getName() + " is still running");
         }
     }
 
@@ -99,6 +333,9 @@ public class ConnectedDevice {
      * (Currently the server never responds with anything)
      */
     private void startListening() {
+        // this connection's, the fields are replaced when the session reconnects
+        final DataInputStream inStream = this.inStream;
+        final PendingReply<Capabilities> hello = this.hello;
         listeningThread = new Thread() {
             public void run() {
                 Log.d(TAG, "Listening loop...");
@@ -109,14 +346,53 @@ public class ConnectedDevice {
                     try {
                         // Read from the InputStream.
                         int messageType = inStream.read();
+                        if (messageType == -1) {
+                            Log.d(TAG, "Input stream reached end of stream");
+                            break;
+                        }
+                        lastReceivedNanos = System.nanoTime();
                         Log.d(TAG, "Received Message Type: " + messageType);
                         switch (messageType) {
                             case FilePushMessage.TYPE_KEEP_ALIVE:
                                 break;
+                            case FilePushMessage.TYPE_HELLO:
+                                Capabilities remote = Capabilities.readFrom(inStream);
+                                Log.d(TAG, "Received " + remote);
+                                hello.complete(remote);
+                                break;
+                            case FilePushMessage.TYPE_MANIFEST_REPLY:
+                                BitSet needed = Manifest.readNeeded(inStream);
+                                if (manifestReply != null) {
+                                    manifestReply.complete(needed);
+                                }
+                                break;
                             case FilePushMessage.TYPE_FILE_ACK:
                                 // let the waiting writeFile() thread continue
-                                //mmWaitOnFileAckLock.release();
-                                waitOnFileAck.set(false);
+                                if (isSequenced()) {
+                                    acks.ackUpTo(inStream.readInt());
+                                } else {
+                                    acks.ackOldest();
+                                }
+                                break;
+                            case FilePushMessage.TYPE_FILE_SACK:
+                                acks.ack(inStream.readInt());
+                                break;
+                            case FilePushMessage.TYPE_FILE_NAK:
+                                acks.nack(inStream.readInt());
+                                break;
+                            case FilePushMessage.TYPE_CHUNK_NAK:
+                                acks.nackChunk(inStream.readInt(), inStream.readLong(), inStream.readInt());
+                                break;
+                            case FilePushMessage.TYPE_CHECKPOINT:
+                                receiveCheckpoint(inStream.readInt(), inStream.readLong());
+                                break;
+                            case FilePushMessage.TYPE_RESUME_STATE:
+                                receiveResumeState(inStream.readLong(), inStream.readUTF(), inStream.readLong());
+                                break;
+                            case FilePushMessage.TYPE_ROOT_HASH:
+                                int sequence = inStream.readInt();
+                                inStream.readFully(receivedRoot);
+                                confirmRoot(sequence, receivedRoot);
                                 break;
                         }
                     } catch (IOException e) {
@@ -124,233 +400,1646 @@ public class ConnectedDevice {
                         break;
                     }
                 }
+                if (listeningThread == this) {
+                    // nothing more will be acked, wake up a sender blocked on the window
+                    acks.fail(new IOException("Disconnected from " + transport.getName()));
+                    // an idle session reconnects on the next heartbeat
+                    linkLost = true;
+                }
             }
         };
         listeningThread.start();
     }
 
-    public boolean canSend() {
-        return !sendingInProgress.get();
+    private void receiveCheckpoint(int sequence, long committedOffset) {
+        Object attachment = acks.getAttachment(sequence);
+        // a pack is all or nothing, it has no checkpoints
+        PendingFile pending = attachment instanceof PendingFile ? (PendingFile) attachment : null;
+        TransferState transfer = this.transfer;
+        if (pending != null && transfer != null) {
+            transfer.checkpointPath = pending.getDestinationPath();
+            transfer.checkpointOffset = committedOffset;
+        }
     }
 
     /**
-     * Sends a file or directory to the connected device. On success or failure publishes a message to the
-     * handler associated with the pusher.
+     * The receiver's root for a file it is about to ack. One that isn't the root that was sent
+     * means the receiver has something other than the file, it is NAKed on the receiver's behalf
+     * so the file goes again, and the ack that follows is ignored.
      */
-    public void send(final File path) {
-        Log.d(TAG, "Starting to Send File: " + path);
-        if (!canSend()) {
-            throw new IllegalStateException("A directory is already being sent, cannot send more than one at a time.");
+    private void confirmRoot(int sequence, byte[] root) {
+        byte[] sent;
+        synchronized (sentRoots) {
+            sent = sentRoots.remove(sequence);
+        }
+        if (sent == null || Arrays.equals(sent, root)) {
+            return;
         }
+        Log.w(TAG, "Root hash of file " + sequence + " from " + transport.getName() + " doesn't match the one sent");
+        acks.nack(sequence);
+    }
 
-        sendingInProgress.compareAndSet(false, true);
-        sendingThread = new Thread() {
-            public void run() {
-                try {
-                    openSocket();
-                    Log.d(TAG, "Sending File: " + path);
-                    if (path.isDirectory()) {
-                        writeDirectory(path, new File("/"));
-                    } else {
-                        writeFile(path, null);
-                    }
-                    sendSuccessMessage(path);
-                } catch (IOException e) {
-                    Log.e(TAG, "Error occurred when sending data", e);
-                    sendFailureMessage(path);
-                } finally {
-                    disconnect();
-                }
-            }
-        };
-        sendingThread.start();
+    private void receiveResumeState(long transferId, String path, long committedOffset) {
+        TransferState transfer = this.transfer;
+        if (transfer == null || transfer.transferId != transferId || resumeReply == null) {
+            return;
+        }
+        transfer.resumePath = path.isEmpty() ? null : path;
+        transfer.resumeOffset = committedOffset;
+        resumeReply.complete(transfer);
     }
 
-    // TODO Use the file name in the message
-    // TODO Get rid of the readBuffer and use a dedicated buffer for message sending...if needed
-    private void sendSuccessMessage(File file) {
-        // Share the sent message with the UI activity.
-        Message msg = handler.obtainMessage(BluetoothPusherService.StatusMessageTypes.SEND_SUCCESS);
-        Bundle bundle = new Bundle();
-        bundle.putString("file", file.getName());
-        msg.setData(bundle);
-        msg.sendToTarget();
+    /**
+     * @return the average time between a file being completely written and its ack arriving,
+     * over the most recent connection
+     */
+    public long getAverageAckRttMillis() {
+        AckDispatcher acks = this.acks;
+        return acks == null ? 0 : acks.getAverageRttMillis();
     }
 
-    // TODO Use the file name in the message
-    // TODO Get rid of the readBuffer and use a dedicated buffer for message sending...if needed
-    private void sendFailureMessage(File file) {
-        // Share the sent message with the UI activity.
-        Message msg = handler.obtainMessage(BluetoothPusherService.StatusMessageTypes.SEND_FAILED);
-        Bundle bundle = new Bundle();
-        bundle.putString("file", file.getName());
-        msg.setData(bundle);
-        msg.sendToTarget();
+    public long getLastAckRttMillis() {
+        AckDispatcher acks = this.acks;
+        return acks == null ? 0 : acks.getLastRttMillis();
     }
 
-    // TODO Break out messages to seperate classes
+    /**
+     * Told when each send finishes, in addition to the handler's status message.
+     */
+    public interface SendListener {
+        /**
+         * Called on the sending thread once the send has succeeded or given up.
+         */
+        void onSendFinished(ConnectedDevice device, File path, boolean success);
+    }
 
-    // File Pusher Protocol
-    // The file pusher protocol is a simple order dependent protocol for copying files
-    // over bluetooth. Files and directories are relative to a virtual root on the
-    // recieving server.
-    //
-    // 1 byte - Message Type
-    // variable - Dependent on message type
-    //
-    // File Message Type
-    // 1 byte - Message Type (FILE = 0x01)
-    // 2 byte - Filename Length
-    // n byte - Filename
-    // 2 byte - Container Name (Target Directory) Length
-    // n byte - Container Name (Target Directory)
-    // 1 byte - Compression: 0 = None
-    // 4 byte - File length
-    // n byte - File contents
-    // 8 byte - CRC
-    //
-    // Directory Message Type
-    // 1 byte - Message Type (DIRECTORY = 0x02)
-    // 2 byte - Directory Name Length
-    // n byte - Directory Name
-    // 2 byte - Child Count
-    //
-    // Stop Message Type
-    // 1 byte - Message Type (STOP = 0x03)
-    //
-    // Keep Alive Message Type
-    // 1 byte - Message Type (KEEP_ALIVE = 0x04)
-    //
-    // File Ack Message Type
-    // 1 byte - Message Type (FILE_ACK = 0x05)
-    //
+    public void setSendListener(SendListener sendListener) {
+        this.sendListener = sendListener;
+    }
 
     /**
-     * Write a file over the connected socket
+     * Lets large files be striped over extra channels to the same receiver, created here as they
+     * are needed. Striping also needs a stripe count above 1 in the options.
      */
-    private void writeFile(File file, File destinationDirectory) throws IOException {
-        Log.d(TAG, "Sending File: " + file);
+    public void setStripeTransports(TransportFactory stripeTransports) {
+        this.stripeTransports = stripeTransports;
+    }
+
+    /**
+     * Reads file contents from the source rather than the file system, it must return the same
+     * bytes the file would.
+     */
+    void setChunkSource(ChunkSource source) {
+        this.source = source;
+    }
 
-        // Aquire a permit before writing a file so that when we
-        // attempt to aquire it again at the end of writing
-        // to the stream it will block until the listening thread
-        // when it gets a FileAck message releases the permit.
-//            try {
-        // mmWaitOnFileAckLock.acquire();
-        waitOnFileAck.set(true);
-//            } catch (InterruptedException e) {
-//                e.printStackTrace();
-//            }
+    public Transport getTransport() {
+        return transport;
+    }
 
-        // type
-        outStream.writeByte(FilePushMessage.TYPE_FILE);
+    /**
+     * @return throughput, ack latency and failure counts for this device, across every send
+     */
+    public DeviceMetrics getMetrics() {
+        return metrics;
+    }
 
-        outStream.writeUTF(file.getName());
+    /**
+     * @return true when nothing is being sent or waiting, a send would start straight away
+     */
+    public boolean canSend() {
+        return !queue.isBusy();
+    }
 
-        if (destinationDirectory != null) {
-            outStream.writeUTF(destinationDirectory.getPath());
-        } else {
-            outStream.writeShort(0);
+    /**
+     * @return the sends waiting for this device, with their depth and wait time statistics
+     */
+    public TransferQueue getTransferQueue() {
+        return queue;
+    }
+
+    /**
+     * Connects ahead of the first send and keeps the connection open between sends, with KEEP_ALIVE
+     * heartbeats. The session reconnects by itself if the link drops, and closes once it has been
+     * idle for the idle timeout. Connecting happens in the background.
+     *
+     * @throws IllegalStateException unless persistent sessions are enabled in the options
+     */
+    public void openSession() {
+        if (!options.isPersistentSession()) {
+            throw new IllegalStateException("Persistent sessions are disabled in the push options");
         }
+        synchronized (sessionLock) {
+            startSession();
+        }
+    }
 
-        // compression
-        outStream.writeByte(FilePushMessage.COMPRESSION_NONE);
-
-        // file chunk
-        outStream.writeInt((int) file.length());
-        // copy the file to the stream
-        CRC32 crc = new CRC32();
-        FileInputStream inputStream = new FileInputStream(file);
-        int totalWritten = 0;
-        while (true) {
-            int numBytes = inputStream.read(writeBuffer);
-            if (numBytes == -1) {
-                break;
+    /**
+     * Connects in the background ahead of the first send, so it doesn't wait on the connect and
+     * the HELLO. The warm connection is kept alive like a persistent session's, and closed once
+     * it has been idle for the idle timeout. Without persistent sessions it only serves the next
+     * send, which closes it as usual, and is closed after the shorter prewarm timeout if nothing
+     * is sent. Does nothing while connected or sending.
+     */
+    public void prewarm() {
+        synchronized (sessionLock) {
+            if (connected || sending) {
+                return;
             }
-            totalWritten += numBytes;
-            crc.update(writeBuffer, 0, numBytes);
-            outStream.write(writeBuffer, 0, numBytes);
+            Log.d(TAG, "Prewarming the connection to " + transport.getName());
+            startSession();
         }
-        outStream.writeLong(crc.getValue());
-        outStream.flush();
-
-        Log.d(TAG, "Sent Bytes: " + totalWritten);
-        Log.d(TAG, "Sent CRC: " + crc.getValue());
+    }
 
-        // once the writes are complete to the stream we wait for an ack from the device
-        try {
-            Log.d(TAG, "Waiting on file ack");
-            while (waitOnFileAck.get()) {
-                Thread.sleep(1);
-                //mmWaitOnFileAckLock.acquire();
+    /**
+     * Ends the persistent session, straight away if idle or else once the current send finishes.
+     */
+    public void closeSession() {
+        synchronized (sessionLock) {
+            sessionClosed = true;
+            sessionLock.notifyAll();
+            if (!sending && connected) {
+                disconnect(true);
             }
-            Log.d(TAG, "File ack received");
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Interrupted while waiting for FileAck", e);
         }
     }
 
-    private void writeDirectory(File dir, File destinationContainer) throws IOException {
-        Log.d(TAG, "Sending Directory: " + dir.getName() + " -> " + destinationContainer.getPath());
-        File[] children = dir.listFiles();
-        outStream.writeByte(FilePushMessage.TYPE_DIRECTORY);
-        outStream.writeUTF(destinationContainer.getPath());
-        outStream.writeShort(children.length);
-        for (File subfile : children) {
-            if (subfile.isFile()) {
-                writeFile(subfile, destinationContainer);
-            } else if (subfile.isDirectory()) {
-                writeDirectory(subfile, new File(destinationContainer, subfile.getName()));
-            }
+    public boolean isConnected() {
+        synchronized (sessionLock) {
+            return connected && !linkLost;
         }
     }
 
-    private void writeStop() throws IOException {
-        Log.d(TAG, "Sending stop message");
-        outStream.writeByte(FilePushMessage.TYPE_STOP);
-        outStream.flush();
+    /**
+     * Sends a file or directory to the connected device. On success or failure publishes a message to the
+     * handler associated with the pusher.
+     */
+    public void send(File path) {
+        send(path, TransferQueue.PRIORITY_NORMAL);
     }
 
-    // Disconnect everything and perform an orderly shutdown
-    private void disconnect() {
-        if (!socket.isConnected()) {
-            return;
+    /**
+     * Queues a file or directory to send once those ahead of it, by the ordering policy, are sent.
+     * Queuing a path that is already waiting only raises its priority.
+     */
+    public void send(File path, int priority) {
+        Log.d(TAG, "Queueing File: " + path + " with priority " + priority);
+        if (queue.add(path, priority)) {
+            startSending();
         }
-        Log.d(TAG, "Closing thread: " + socket.getRemoteDevice().getName());
+    }
 
+    /**
+     * Sends only these files from under the root directory, each to where a send of the whole root
+     * would put it, such as the files that have appeared in a watched folder. Batches queued for
+     * the same root while one is waiting go out together as one send.
+     *
+     * @throws IllegalArgumentException if a file isn't under the root
+     */
+    public void send(File root, Collection<File> files) {
+        for (File file : files) {
+            batchDestination(root, file);
+        }
+        Log.d(TAG, "Queueing " + files.size() + " files from " + root);
+        if (queue.add(root, files, TransferQueue.PRIORITY_NORMAL)) {
+            startSending();
+        }
+    }
 
-        try {
-            Log.d(TAG, "Writing stop message: " + socket.getRemoteDevice().getName());
-            writeStop();
-        } catch (IOException e) {
-            Log.e(TAG, "Could not write stop message.", e);
+    /**
+     * Starts a sending thread that works through the queue. Sends that are already queued when
+     * one finishes reuse its connection, it is only closed once the queue runs dry.
+     */
+    private void startSending() {
+        sendingThread = new Thread() {
+            public void run() {
+                QueuedTransfer next;
+                while ((next = queue.poll()) != null) {
+                    File path = next.getPath();
+                    Log.d(TAG, "Starting to Send File: " + path + " after waiting " + queue.getLastWaitMillis() + " ms");
+                    long bytesBefore = metrics.getBytesSent();
+                    long filesBefore = metrics.getFilesAcked();
+                    long start = System.nanoTime();
+                    progress.start(path, next.getKnownSize(), start);
+                    if (next.getKnownSize() < 0) {
+                        measureTotal(next, start);
+                    }
+                    publishProgress();
+                    boolean success = sendWithResume(path, next.getFiles());
+                    flushJournal();
+                    metrics.sendFinished(success, metrics.getBytesSent() - bytesBefore,
+                            metrics.getFilesAcked() - filesBefore, System.nanoTime() - start);
+                    // a send queued after this check reconnects, unless a persistent session is open
+                    if (queue.getDepth() == 0) {
+                        endSend();
+                    }
+                    if (success) {
+                        sendSuccessMessage(path);
+                    } else {
+                        sendFailureMessage(path);
+                    }
+                }
+            }
+        };
+        sendingThread.start();
+    }
+
+    /**
+     * Measures a send for its progress on a thread of its own, so the first bytes go out while a
+     * large tree is still being walked. Until then the total is unknown.
+     */
+    private void measureTotal(final QueuedTransfer transfer, final long start) {
+        Thread measuring = new Thread() {
+            public void run() {
+                progress.setTotalBytes(start, transfer.getSize());
+            }
+        };
+        measuring.setDaemon(true);
+        measuring.start();
+    }
 
+    private void flushJournal() {
+        journalDeliveries();
+        TransferJournal journal = options.getJournal();
+        if (journal != null) {
+            try {
+                journal.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not flush the journal", e);
+            }
+        }
+    }
+
+    /**
+     * Sends one file or directory, reconnecting and resuming if the link drops part way.
+     *
+     * @param files only these files from under the path, or null for all of it
+     */
+    private boolean sendWithResume(File path, List<File> files) {
+        String key = path.getAbsolutePath();
+        transfer = unfinishedTransfers.get(key);
+        if (transfer == null) {
+            transfer = new TransferState();
+        }
+
+        long backoff = options.getResumeBackoffMillis();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                ensureConnected();
+                Log.d(TAG, "Sending File: " + path);
+                writeTransfer(path, files);
+                unfinishedTransfers.remove(key);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Error occurred when sending data", e);
+                // the connection can't be reused after a failure, even by a persistent session.
+                // The write may have stopped part way through a message, so no STOP follows it
+                synchronized (sessionLock) {
+                    disconnect(false);
+                }
+                boolean resumable = hasFeature(Capabilities.FEATURE_RESUME);
+                if (resumable) {
+                    unfinishedTransfers.put(key, transfer);
+                }
+                if (!resumable || attempt >= options.getMaxResumeAttempts() || !backOff(backoff)) {
+                    return false;
+                }
+                backoff *= 2;
+                Log.d(TAG, "Reconnecting to resume " + path + ", attempt " + (attempt + 1));
+            }
+        }
+    }
+
+    /**
+     * Opens the transport for a send, unless a persistent session already has it open.
+     */
+    private void ensureConnected() throws IOException {
+        synchronized (sessionLock) {
+            sending = true;
+            if (connected && !linkLost) {
+                Log.d(TAG, "Reusing the session with " + transport.getName());
+                return;
+            }
+            if (connected) {
+                disconnect(false);
+            }
+            openTransport();
+            connected = true;
+            if (options.isPersistentSession()) {
+                startSession();
+            }
+        }
+    }
+
+    /**
+     * Disconnects after a send, or leaves a persistent session open and idle.
+     */
+    private void endSend() {
+        // files still without a ROOT_HASH were rejected or given up on, none is coming
+        synchronized (sentRoots) {
+            sentRoots.clear();
+        }
+        synchronized (sessionLock) {
+            sending = false;
+            idleSinceNanos = System.nanoTime();
+            if (!options.isPersistentSession()) {
+                // a prewarmed connection only serves the one send
+                sessionClosed = true;
+            }
+            if (connected && sessionClosed) {
+                disconnect(true);
+            }
+            sessionLock.notifyAll();
+        }
+    }
+
+    /**
+     * Starts the heartbeat thread if it isn't already running, call with the session lock held.
+     */
+    private void startSession() {
+        sessionClosed = false;
+        idleSinceNanos = System.nanoTime();
+        if (keepAliveThread != null) {
+            return;
+        }
+        keepAliveThread = new Thread() {
+            public void run() {
+                synchronized (sessionLock) {
+                    try {
+                        runSession();
+                    } catch (InterruptedException e) {
+                        Log.d(TAG, "Session heartbeat interrupted");
+                    } finally {
+                        keepAliveThread = null;
+                    }
+                }
+            }
+        };
+        keepAliveThread.start();
+    }
+
+    /**
+     * The heartbeat loop, run with the session lock held except while waiting. While no send is
+     * in progress it keeps the link alive, reconnects a dead one with exponential backoff and
+     * closes the session once it has been idle too long. A send has the link to itself, a dead
+     * link then shows up as a failed write or a missing ack instead.
+     */
+    private void runSession() throws InterruptedException {
+        long intervalMillis = options.getKeepAliveIntervalMillis();
+        // without persistent sessions the only session is a prewarm, don't hold the link for long
+        long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.isPersistentSession()
+                ? options.getIdleTimeoutMillis() : options.getPrewarmTimeoutMillis());
+        long reconnectBackoff = options.getResumeBackoffMillis();
+        long nextReconnectNanos = 0;
+        while (!sessionClosed) {
+            long now = System.nanoTime();
+            long waitMillis = intervalMillis;
+            if (!sending) {
+                if (now - idleSinceNanos >= idleTimeoutNanos) {
+                    Log.d(TAG, "Session with " + transport.getName() + " idle, closing it");
+                    sessionClosed = true;
+                    if (connected) {
+                        disconnect(true);
+                    }
+                    break;
+                }
+
+                if (connected && isLinkDead(now)) {
+                    Log.w(TAG, "Session with " + transport.getName() + " stopped responding, reconnecting");
+                    disconnect(false);
+                    nextReconnectNanos = now;
+                }
+                if (connected) {
+                    try {
+                        outStream.writeByte(FilePushMessage.TYPE_KEEP_ALIVE);
+                        outStream.flush();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Session heartbeat to " + transport.getName() + " failed", e);
+                        disconnect(false);
+                        nextReconnectNanos = now;
+                    }
+                } else if (now >= nextReconnectNanos) {
+                    try {
+                        openTransport();
+                        connected = true;
+                        reconnectBackoff = options.getResumeBackoffMillis();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not reconnect the session with " + transport.getName(), e);
+                        disconnect(false);
+                        nextReconnectNanos = now + TimeUnit.MILLISECONDS.toNanos(reconnectBackoff);
+                        waitMillis = Math.min(waitMillis, reconnectBackoff);
+                        reconnectBackoff = Math.min(reconnectBackoff * 2, MAX_RECONNECT_BACKOFF_MILLIS);
+                    }
+                } else {
+                    waitMillis = Math.min(waitMillis, TimeUnit.NANOSECONDS.toMillis(nextReconnectNanos - now) + 1);
+                }
+            }
+            sessionLock.wait(waitMillis);
+        }
+    }
+
+    /**
+     * @return whether the input has closed, or the receiver hasn't answered enough heartbeats
+     */
+    private boolean isLinkDead(long now) {
+        if (linkLost) {
+            return true;
+        }
+        if (!hasFeature(Capabilities.FEATURE_KEEP_ALIVE)) {
+            // the original receivers never answer, only a failed write shows the link is gone
+            return false;
+        }
+        long silence = TimeUnit.NANOSECONDS.toMillis(now - lastReceivedNanos);
+        return silence > options.getKeepAliveIntervalMillis() * options.getMaxMissedKeepAlives();
+    }
+
+    private void writeTransfer(File path, List<File> files) throws IOException {
+        if (files != null) {
+            // a batch is only files that are new to the receiver, describing them first is a wasted round trip
+            unneededPaths = Collections.emptySet();
+        } else {
+            negotiateManifest(path);
+        }
+        beginTransfer(path);
+        if (files != null) {
+            writeBatch(path, files);
+        } else if (path.isDirectory()) {
+            writeTree(path);
+        } else {
+            writeFile(path, null);
+        }
+        // a pipelined send is only done once the last file in flight is acked
+        outStream.flush();
+        acks.awaitAll();
+        Log.d(TAG, "Ack round trip avg/min/max ms: " + acks.getAverageRttMillis()
+                + "/" + acks.getMinRttMillis() + "/" + acks.getMaxRttMillis());
+        Log.d(TAG, "Link tuned to window " + tuner.getWindow() + ", chunk " + tuner.getChunkSize()
+                + ", flush every " + tuner.getFlushBytes() + " at " + tuner.getDeliveredBytesPerSecond() + " B/s");
+    }
+
+    private static boolean backOff(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Counts content bytes sent or skipped, publishing the progress once per progress interval.
+     */
+    private void reportProgress(long bytes) {
+        if (progress.advance(bytes, System.nanoTime())) {
+            publishProgress();
+        }
+    }
+
+    /**
+     * Publishes the progress, unless the last update is still waiting for the UI. The message
+     * comes from the handler's pool and carries the shared progress object, not a new Bundle.
+     */
+    private void publishProgress() {
+        if (handler == null || options.getProgressIntervalMillis() <= 0
+                || handler.hasMessages(BluetoothPusherService.StatusMessageTypes.PROGRESS, progress)) {
+            return;
+        }
+        Message msg = handler.obtainMessage(BluetoothPusherService.StatusMessageTypes.PROGRESS, progress);
+        msg.sendToTarget();
+    }
+
+    /**
+     * @return the progress of the current send, or of the last one once it has finished
+     */
+    public TransferProgress getProgress() {
+        return progress;
+    }
+
+    // TODO Use the file name in the message
+    private void sendSuccessMessage(File file) {
+        if (sendListener != null) {
+            sendListener.onSendFinished(this, file, true);
+        }
+        if (handler == null) {
+            return;
+        }
+        // Share the sent message with the UI activity.
+        Message msg = handler.obtainMessage(BluetoothPusherService.StatusMessageTypes.SEND_SUCCESS);
+        Bundle bundle = new Bundle();
+        bundle.putString("file", file.getName());
+        bundle.putString("device", transport.getName());
+        msg.setData(bundle);
+        msg.sendToTarget();
+    }
+
+    // TODO Use the file name in the message
+    private void sendFailureMessage(File file) {
+        if (sendListener != null) {
+            sendListener.onSendFinished(this, file, false);
+        }
+        if (handler == null) {
+            return;
+        }
+        // Share the sent message with the UI activity.
+        Message msg = handler.obtainMessage(BluetoothPusherService.StatusMessageTypes.SEND_FAILED);
+        Bundle bundle = new Bundle();
+        bundle.putString("file", file.getName());
+        bundle.putString("device", transport.getName());
+        msg.setData(bundle);
+        msg.sendToTarget();
+    }
+
+    // TODO Break out messages to seperate classes
+
+    // File Pusher Protocol
+    // The file pusher protocol is a simple order dependent protocol for copying files
+    // over bluetooth. Files and directories are relative to a virtual root on the
+    // recieving server.
+    //
+    // 1 byte - Message Type
+    // variable - Dependent on message type
+    //
+    // File Message Type
+    // 1 byte - Message Type (FILE = 0x01)
+    // 4 byte - Sequence Number (only when sequenced, see HELLO)
+    // 2 byte - Filename Length
+    // n byte - Filename
+    // 2 byte - Container Name (Target Directory) Length
+    // n byte - Container Name (Target Directory)
+    // 1 byte - Compression: 0 = None, 1 = Deflate, 2 = LZF (only the codecs in the SETTINGS)
+    // 4 byte - File length
+    // 8 byte - Start Offset (only with FEATURE_RESUME), the contents start here, the receiver
+    //          keeps what it already has before it
+    // n byte - File contents, when compressed a sequence of blocks until the file length is reached:
+    //          4 byte - Uncompressed block length
+    //          4 byte - Compressed block length, equal to the uncompressed length for a stored block
+    //          n byte - Block contents
+    // 8 byte - CRC of the uncompressed contents
+    //
+    // File Message Type, framed (protocol VERSION 3)
+    // 1 byte - Message Type (FILE = 0x01)
+    // 4 byte - Sequence Number
+    // 2 byte - Filename Length
+    // n byte - Filename
+    // 2 byte - Container Name (Target Directory) Length
+    // n byte - Container Name (Target Directory)
+    // 1 byte - Compression, applied per DATA frame
+    // 8 byte - Start Offset, the receiver keeps what it already has before it
+    // then DATA frames in offset order, ended by an END frame:
+    // Data Frame
+    //     1 byte - Frame Type (DATA = 0x01)
+    //     8 byte - Offset in the file
+    //     4 byte - Chunk length
+    //     4 byte - Wire length, equal to the chunk length when the chunk is stored
+    //     n byte - Chunk contents
+    //     4 byte - CRC32 of the uncompressed chunk
+    // End Frame
+    //     1 byte - Frame Type (END = 0x02)
+    //     8 byte - File length
+    //     8 byte - CRC32 of the whole file
+    // The receiver verifies each chunk as it arrives and NAKs just the bad ones with CHUNK_NAK,
+    // the file is acked once every chunk and the whole file CRC check out.
+    // With FEATURE_MERKLE the CRCs are replaced by the file's Merkle tree, see MerkleTree:
+    //     DATA frame: 32 byte - SHA-256 leaf hash of the chunk, in place of the CRC32
+    //     END frame: 32 byte - SHA-256 root of the file, in place of the CRC32
+    // A leaf is SHA-256 of 0x00, the 8 byte offset and the chunk, a node SHA-256 of 0x01 and its
+    // two children, over the leaves in offset order. A resumed file's first leaf is the part the
+    // receiver kept, hashed as one leaf at offset 0. The receiver checks each chunk against its
+    // leaf and the leaves against the root, and sends a ROOT_HASH before it acks the file.
+    //
+    // Directory Message Type
+    // 1 byte - Message Type (DIRECTORY = 0x02)
+    // 2 byte - Directory Name Length
+    // n byte - Directory Name
+    // 2 byte - Child Count, saturated at 32767
+    //          (4 byte with FEATURE_UNBOUNDED_DIRECTORIES, -1 when not known up front)
+    //
+    // Path Dictionary
+    // With FEATURE_PATH_DICTIONARY the paths in DIRECTORY and FILE messages are replaced by ids,
+    // so a file's container is never repeated. Ids are given out in order from 1 by the DIRECTORY
+    // messages of a connection, 0 means no directory, and start over with every new connection.
+    // A varint is 7 bits a byte, least significant first, the top bit set on all but the last
+    // byte. A string is a varint byte length followed by standard UTF-8.
+    // Directory Message Type, with FEATURE_PATH_DICTIONARY
+    // 1 byte - Message Type (DIRECTORY = 0x02)
+    // varint - Directory Id, the next id
+    // varint - Parent Directory Id, 0 when the name is the full path
+    // string - Directory Name, within the parent (full path when the parent is 0)
+    // 2 or 4 byte - Child Count, as above
+    // File Message Type, with FEATURE_PATH_DICTIONARY
+    // the Filename and Container Name are replaced by:
+    // varint - Container Directory Id, 0 for no container
+    // string - Filename
+    // and the rest of the message, plain or framed, is unchanged. PACK indexes are unchanged,
+    // they already name each directory once per pack.
+    //
+    // Stop Message Type
+    // 1 byte - Message Type (STOP = 0x03)
+    //
+    // Keep Alive Message Type
+    // Sent by the pusher as a heartbeat while a persistent session is idle. Receivers that agreed
+    // to FEATURE_KEEP_ALIVE answer each one with a KEEP_ALIVE of their own.
+    // 1 byte - Message Type (KEEP_ALIVE = 0x04)
+    //
+    // File Ack Message Type
+    // 1 byte - Message Type (FILE_ACK = 0x05)
+    // 4 byte - Sequence Number (only when sequenced), acks every file up to and including it
+    //
+    // Hello Message Type
+    // Sent by the pusher as a single byte right after connecting, only when negotiation is
+    // enabled, as it isn't known that the original receivers ignore it. A receiver that supports
+    // the newer protocol answers with its capabilities, one that doesn't answer in time gets
+    // stop-and-wait.
+    // 1 byte - Message Type (HELLO = 0x06)
+    // n byte - Capabilities (receiver to pusher only, see Capabilities)
+    //
+    // Settings Message Type
+    // Sent by the pusher in reply to the receiver's HELLO, the options in effect for the rest
+    // of the connection. From here on files carry sequence numbers and up to WINDOW of them
+    // may be sent before their acks arrive.
+    // 1 byte - Message Type (SETTINGS = 0x07)
+    // n byte - Capabilities
+    //
+    // File Selective Ack Message Type
+    // 1 byte - Message Type (FILE_SACK = 0x08)
+    // 4 byte - Sequence Number, acks only this file
+    //
+    // File Nak Message Type
+    // Sent when a file failed its CRC check, the pusher retransmits it or fails the send.
+    // 1 byte - Message Type (FILE_NAK = 0x09)
+    // 4 byte - Sequence Number
+    //
+    // Manifest Message Type
+    // Sent before the first DIRECTORY or FILE of a send when FEATURE_MANIFEST was agreed.
+    // Paths are the container joined with the file name, the hash is the SHA-1 of the contents.
+    // 1 byte - Message Type (MANIFEST = 0x0A)
+    // 4 byte - Entry Count
+    // per entry:
+    //     2 byte - Path Length
+    //     n byte - Path
+    //     8 byte - File Length
+    //     8 byte - Last Modified
+    //     20 byte - Hash
+    //
+    // Manifest Reply Message Type
+    // The files the receiver needs, the pusher skips the FILE message for the rest.
+    // 1 byte - Message Type (MANIFEST_REPLY = 0x0B)
+    // 4 byte - Entry Count
+    // n byte - A bit per entry, least significant bit first, set when the file must be sent
+    //
+    // Transfer Begin Message Type
+    // Sent before the first FILE of a send when FEATURE_RESUME was agreed. The id stays the same
+    // when a send is resumed after the link dropped.
+    // 1 byte - Message Type (TRANSFER_BEGIN = 0x0C)
+    // 8 byte - Transfer Id
+    //
+    // Checkpoint Message Type
+    // Sent by the receiver as it durably writes a file, every byte before the offset is on disk.
+    // 1 byte - Message Type (CHECKPOINT = 0x0D)
+    // 4 byte - Sequence Number
+    // 8 byte - Committed Offset
+    //
+    // Resume Query Message Type
+    // Sent by the pusher after reconnecting, before the TRANSFER_BEGIN, to resume a transfer.
+    // 1 byte - Message Type (RESUME_QUERY = 0x0E)
+    // 8 byte - Transfer Id
+    //
+    // Resume State Message Type
+    // The receiver's answer, the file it was part way through and how much of it is committed.
+    // 1 byte - Message Type (RESUME_STATE = 0x0F)
+    // 8 byte - Transfer Id
+    // 2 byte - Path Length, 0 when no file was in progress
+    // n byte - Path
+    // 8 byte - Committed Offset
+    //
+    // Chunk Nak Message Type
+    // Sent by the receiver when a DATA frame fails its CRC check.
+    // 1 byte - Message Type (CHUNK_NAK = 0x10)
+    // 4 byte - Sequence Number
+    // 8 byte - Offset
+    // 4 byte - Chunk Length
+    //
+    // Chunk Retransmit Message Type
+    // The pusher's answer to a CHUNK_NAK, sent between FILE messages, always uncompressed.
+    // 1 byte - Message Type (CHUNK_RETRANSMIT = 0x11)
+    // 4 byte - Sequence Number
+    // n byte - Data Frame
+    //
+    // Pack Message Type
+    // Sent instead of FILE messages for small files when FEATURE_PACK was agreed. The receiver
+    // writes every file in the pack or none of them, and acks or NAKs it as one file.
+    // 1 byte - Message Type (PACK = 0x12)
+    // 4 byte - Sequence Number
+    // 2 byte - Directory Count
+    // per directory:
+    //     2 byte - Directory Length, 0 for files sent without a container
+    //     n byte - Directory
+    // 2 byte - File Count
+    // per file:
+    //     2 byte - Index of the file's directory in the table above
+    //     2 byte - Filename Length
+    //     n byte - Filename
+    //     4 byte - File length
+    // 1 byte - Compression of the contents, the first codec in the SETTINGS by preference
+    // 4 byte - Contents length, the file lengths added up
+    // 4 byte - Wire length, equal to the contents length when stored
+    // n byte - The files' contents back to back, in index order
+    // 8 byte - CRC32 of the uncompressed contents
+    //
+    // Striped File Message Type
+    // Sent instead of a framed FILE for a large file when FEATURE_STRIPES was agreed, the
+    // receiver's HELLO carried a STRIPE_TOKEN and the extra channels could be opened. Laid out
+    // like a framed FILE, but its DATA frames are spread over this channel and the extra ones,
+    // in no particular order. The receiver writes each frame in place as it arrives, and once
+    // the END frame is in and every chunk has arrived it checks the file as a whole, acking or
+    // NAKing it, and NAKing bad chunks, on this channel as for a framed FILE.
+    // 1 byte - Message Type (STRIPED_FILE = 0x15)
+    // then as a framed FILE message
+    //
+    // Stripe Join Message Type
+    // The first message on an extra channel, which carries nothing but stripes from then on.
+    // The receiver never writes to an extra channel.
+    // 1 byte - Message Type (STRIPE_JOIN = 0x13)
+    // 4 byte - Stripe Token, from the receiver's HELLO on the device's own channel
+    //
+    // Stripe Data Message Type
+    // A DATA frame of a STRIPED_FILE, on an extra channel.
+    // 1 byte - Message Type (STRIPE_DATA = 0x14)
+    // 4 byte - Sequence Number of the STRIPED_FILE
+    // n byte - Data Frame
+    //
+    // Root Hash Message Type
+    // Sent by the receiver with FEATURE_MERKLE right before it acks a FILE or STRIPED_FILE, the
+    // root over the chunks it verified. The pusher compares it with the root it made while
+    // sending, so the file is confirmed end to end without being read again. A root that doesn't
+    // match fails the file as a FILE_NAK would.
+    // 1 byte - Message Type (ROOT_HASH = 0x16)
+    // 4 byte - Sequence Number
+    // 32 byte - Root
+    //
+
+    /**
+     * Write a file over the connected transport
+     */
+    private void writeFile(File file, File destinationDirectory) throws IOException {
+        journalDeliveries();
+        String destinationPath = Manifest.destinationPath(file, destinationDirectory);
+        if (isSkipped(file, destinationPath)) {
+            closePrefetchedStream();
+            reportProgress(file.length());
+            return;
+        }
+        Log.d(TAG, "Sending File: " + file);
+        progress.setCurrentFile(file);
+
+        // blocks until the receiver has acked enough earlier files to make room, for the
+        // original protocol that means until the previous file was acked
+        int sequence = nextSequence++;
+        PendingFile pending = new PendingFile(file, destinationDirectory);
+        acks.register(sequence, pending);
+        long startOffset = hasFeature(Capabilities.FEATURE_RESUME) ? transfer.takeResumeOffset(destinationPath) : 0;
+        writeFileMessage(sequence, file, destinationDirectory, startOffset);
+        acks.sent(sequence);
+
+        if (!isSequenced()) {
+            // once the writes are complete to the stream we wait for an ack from the device
+            Log.d(TAG, "Waiting on file ack");
+            acks.awaitAll();
+            Log.d(TAG, "File ack received");
+        }
+    }
+
+    /**
+     * @return whether the receiver already has the file, so it needn't be sent
+     */
+    private boolean isSkipped(File file, String destinationPath) {
+        if (unneededPaths.contains(destinationPath)) {
+            Log.d(TAG, "Skipping unchanged File: " + file);
+            return true;
+        }
+        if (hasFeature(Capabilities.FEATURE_RESUME) && transfer.completedPaths.contains(destinationPath)) {
+            Log.d(TAG, "Skipping File delivered before the link dropped: " + file);
+            return true;
+        }
+        TransferJournal journal = options.getJournal();
+        if (journal != null && journal.isDelivered(transport.getAddress(), file, destinationPath)) {
+            Log.d(TAG, "Skipping File the journal has as delivered: " + file);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the file is small enough to go in a PACK rather than its own FILE message
+     */
+    private boolean shouldPack(DirectoryWalker.Entry entry) {
+        return hasFeature(Capabilities.FEATURE_PACK)
+                && entry.length <= options.getPackFileThreshold()
+                && entry.length <= options.getPackMaxBytes();
+    }
+
+    /**
+     * Reads a small file into the pack being built, sending the pack first if the file won't fit.
+     * A file that has grown past the threshold since the walk is sent on its own instead.
+     */
+    private void addToPack(DirectoryWalker.Entry entry) throws IOException {
+        String destinationPath = Manifest.destinationPath(entry.file, entry.destination);
+        if (isSkipped(entry.file, destinationPath)) {
+            closePrefetchedStream();
+            reportProgress(entry.length);
+            return;
+        }
+        progress.setCurrentFile(entry.file);
+        if (pack != null && (packContents.remaining() < entry.length || pack.size() >= options.getPackMaxFiles())) {
+            flushPack();
+        }
+        if (pack == null) {
+            pack = new FilePack();
+            if (packContents == null) {
+                packContents = bufferPool.acquire(options.getPackMaxBytes());
+            }
+            packContents.clear();
+        }
+
+        int start = packContents.position();
+        try {
+            openSource(entry.file);
+            while (packContents.hasRemaining() && source.read(packContents) > 0) {
+                // keep reading until the end of the file or the pack is full
+            }
+        } finally {
+            source.close();
+        }
+        int length = packContents.position() - start;
+        if (length > options.getPackFileThreshold() || entry.file.length() != length) {
+            packContents.position(start);
+            writeFile(entry.file, entry.destination);
+            return;
+        }
+        pack.add(entry.file, entry.destination, length);
+        reportProgress(length);
+    }
+
+    /**
+     * Sends the pack being built, if any, as one PACK message with a single sequence number.
+     */
+    private void flushPack() throws IOException {
+        if (pack == null) {
+            return;
+        }
+        journalDeliveries();
+        FilePack sending = pack;
+        pack = null;
+        Log.d(TAG, "Sending Pack of " + sending.size() + " files, " + sending.getContentLength() + " bytes");
+
+        int sequence = nextSequence++;
+        acks.register(sequence, sending);
+        writePackMessage(sequence, sending, packContents.array());
+        acks.sent(sequence);
+    }
+
+    private void writePackMessage(int sequence, FilePack pack, byte[] contents) throws IOException {
+        int length = pack.getContentLength();
+        chunkCrc.reset();
+        chunkCrc.update(contents, 0, length);
+
+        byte compression = FilePushMessage.COMPRESSION_NONE;
+        byte[] wire = contents;
+        int wireLength = length;
+        int codecs = settings.get(Capabilities.KEY_CODECS, 0);
+        for (byte id : options.getCompressionPreference()) {
+            if (Codecs.supports(codecs, id)) {
+                Codec codec = getCodec(id, options.getPackMaxBytes());
+                int compressedLength = codec.compress(contents, 0, length, compressed.array(), 0);
+                // a pack that didn't compress is stored
+                if (compressedLength < length) {
+                    compression = id;
+                    wire = compressed.array();
+                    wireLength = compressedLength;
+                }
+                break;
+            }
+        }
+
+        outStream.writeByte(FilePushMessage.TYPE_PACK);
+        outStream.writeInt(sequence);
+        pack.writeIndex(outStream);
+        outStream.writeByte(compression);
+        outStream.writeInt(length);
+        outStream.writeInt(wireLength);
+        outStream.write(wire, 0, wireLength);
+        outStream.writeLong(chunkCrc.getValue());
+        outStream.flush();
+    }
+
+    /**
+     * Re-reads and re-sends a pack, into a buffer of its own since the pack being built may be
+     * holding the shared one.
+     */
+    private void retransmitPack(int sequence, FilePack pack) throws IOException {
+        ByteBuffer contents = bufferPool.acquire(options.getPackMaxBytes());
+        try {
+            for (FilePack.Entry entry : pack.getEntries()) {
+                int limit = contents.position() + entry.length;
+                contents.limit(limit);
+                try {
+                    reader.open(entry.file, 0);
+                    while (contents.hasRemaining() && reader.read(contents) > 0) {
+                        // keep reading until the end of the file or the entry's length
+                    }
+                } finally {
+                    reader.close();
+                }
+                if (contents.position() != limit || entry.file.length() != entry.length) {
+                    throw new IOException("File changed before a pack could be retransmitted: " + entry.file);
+                }
+            }
+            writePackMessage(sequence, pack, contents.array());
+        } finally {
+            bufferPool.release(contents);
+        }
+    }
+
+    private void writeFileMessage(int sequence, File file, File destinationDirectory, long startOffset) throws IOException {
+        if (destinationDirectory != null && hasFeature(Capabilities.FEATURE_PATH_DICTIONARY)
+                && directories.idOf(destinationDirectory.getPath()) == PathDictionary.NO_DIRECTORY) {
+            // a file sent on its own into a directory the walk didn't send
+            writeDirectory(destinationDirectory, destinationDirectory, -1);
+        }
+        boolean striped = shouldStripe(file);
+        // type
+        outStream.writeByte(striped ? FilePushMessage.TYPE_STRIPED_FILE : FilePushMessage.TYPE_FILE);
+        if (isSequenced()) {
+            outStream.writeInt(sequence);
+        }
+        writeFileBody(sequence, file, destinationDirectory, startOffset, striped);
+    }
+
+    /**
+     * @return whether the file is large enough to stripe and the stripe channels are open
+     */
+    private boolean shouldStripe(File file) {
+        if (stripeToken == 0 || stripeTransports == null || options.getStripeCount() < 2 || stripesUnavailable
+                || !isFramed() || file.length() < options.getStripeThreshold()) {
+            return false;
+        }
+        if (stripes != null) {
+            return true;
+        }
+        List<Transport> extras = new ArrayList<>();
+        for (int i = 1; i < options.getStripeCount(); i++) {
+            extras.add(stripeTransports.create(i));
+        }
+        try {
+            stripes = StripeChannels.open(outStream, extras, stripeToken, chunk.capacity(), bufferPool, metrics);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open stripe channels to " + transport.getName() + ", sending on one", e);
+            stripesUnavailable = true;
+            return false;
+        }
+    }
+
+    /**
+     * A file that has been sent and is waiting on its ack, kept so it can be retransmitted
+     */
+    private static class PendingFile {
+        final File file;
+        final File destinationDirectory;
+        final long length;
+        final long lastModified;
+
+        PendingFile(File file, File destinationDirectory) {
+            this.file = file;
+            this.destinationDirectory = destinationDirectory;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        String getDestinationPath() {
+            return Manifest.destinationPath(file, destinationDirectory);
+        }
+    }
+
+    private final AckDispatcher.Callbacks ackCallbacks = new AckDispatcher.Callbacks() {
+        @Override
+        public void retransmit(int sequence, Object attachment) throws IOException {
+            metrics.retransmitted();
+            if (attachment instanceof FilePack) {
+                Log.w(TAG, "Retransmitting pack " + sequence);
+                retransmitPack(sequence, (FilePack) attachment);
+                return;
+            }
+            PendingFile pending = (PendingFile) attachment;
+            Log.w(TAG, "Retransmitting file " + sequence + ": " + pending.file);
+            writeFileMessage(sequence, pending.file, pending.destinationDirectory, 0);
+        }
+
+        @Override
+        public void retransmitChunk(int sequence, Object attachment, long offset, int length) throws IOException {
+            if (attachment instanceof FilePack) {
+                // packs aren't framed, the only way to repair one is to send it all again
+                retransmit(sequence, attachment);
+                return;
+            }
+            metrics.chunkRetransmitted();
+            PendingFile pending = (PendingFile) attachment;
+            Log.w(TAG, "Retransmitting chunk " + offset + "+" + length + " of file " + sequence + ": " + pending.file);
+            writeChunkRetransmit(sequence, pending.file, offset, length);
+        }
+
+        @Override
+        public void acked(int sequence, Object attachment) {
+            synchronized (sentRoots) {
+                sentRoots.remove(sequence);
+            }
+            metrics.filesAcked(attachment instanceof FilePack ? ((FilePack) attachment).size() : 1);
+            tuner.delivered(attachment instanceof FilePack ? ((FilePack) attachment).getContentLength()
+                    : ((PendingFile) attachment).length, System.nanoTime());
+            if (options.getJournal() != null) {
+                synchronized (unjournaled) {
+                    unjournaled.add(attachment);
+                }
+            }
+            TransferState transfer = ConnectedDevice.this.transfer;
+            if (transfer == null) {
+                return;
+            }
+            if (attachment instanceof FilePack) {
+                for (FilePack.Entry entry : ((FilePack) attachment).getEntries()) {
+                    transfer.completedPaths.add(entry.getDestinationPath());
+                }
+            } else {
+                transfer.completedPaths.add(((PendingFile) attachment).getDestinationPath());
+            }
+        }
+    };
+
+    /**
+     * Records the files acked since the last call in the journal, if there is one. Called on the
+     * sending thread, a compaction holds up the send rather than the acks.
+     */
+    private void journalDeliveries() {
+        TransferJournal journal = options.getJournal();
+        if (journal == null) {
+            return;
+        }
+        List<Object> delivered;
+        synchronized (unjournaled) {
+            if (unjournaled.isEmpty()) {
+                return;
+            }
+            delivered = new ArrayList<>(unjournaled);
+            unjournaled.clear();
+        }
+        for (Object attachment : delivered) {
+            journalDelivered(journal, attachment);
+        }
+    }
+
+    private void journalDelivered(TransferJournal journal, Object attachment) {
+        String address = transport.getAddress();
+        try {
+            if (attachment instanceof FilePack) {
+                for (FilePack.Entry entry : ((FilePack) attachment).getEntries()) {
+                    // a pack holds the whole file, unless it has changed since it was read
+                    if (entry.file.length() == entry.length) {
+                        journal.delivered(address, entry.file, entry.getDestinationPath(),
+                                entry.length, entry.file.lastModified());
+                    }
+                }
+            } else {
+                PendingFile pending = (PendingFile) attachment;
+                journal.delivered(address, pending.file, pending.getDestinationPath(),
+                        pending.length, pending.lastModified);
+            }
+        } catch (IOException e) {
+            // the file is only sent again next time
+            Log.w(TAG, "Could not record a delivery to " + transport.getName() + " in the journal", e);
+        }
+    }
+
+    /**
+     * Writes everything in the FILE message after the type and sequence number
+     *
+     * @param startOffset where to start the contents, the receiver already has everything before it
+     */
+    private void writeFileBody(int sequence, File file, File destinationDirectory, long startOffset,
+                               boolean striped) throws IOException {
+        if (hasFeature(Capabilities.FEATURE_PATH_DICTIONARY)) {
+            PathDictionary.writeVarInt(outStream, destinationDirectory != null
+                    ? directories.idOf(destinationDirectory.getPath()) : PathDictionary.NO_DIRECTORY);
+            PathDictionary.writeString(outStream, file.getName());
+        } else {
+            outStream.writeUTF(file.getName());
+
+            if (destinationDirectory != null) {
+                outStream.writeUTF(destinationDirectory.getPath());
+            } else {
+                outStream.writeShort(0);
+            }
+        }
+
+        // compression
+        byte compression = chooseCompression(file);
+        outStream.writeByte(compression);
+        Codec codec = compression == FilePushMessage.COMPRESSION_NONE ? null : getCodec(compression, chunk.capacity());
+
+        fileCrc = 0;
+        merkle.reset();
+        try {
+            openSource(file);
+            // the CRC covers the whole file, including the part the receiver already has
+            if (startOffset > 0 && readPrefix(startOffset) != startOffset) {
+                throw new IOException("File shrank below the resume offset: " + file);
+            }
+
+            if (striped) {
+                outStream.writeLong(startOffset);
+                writeStripes(sequence, startOffset, compression);
+            } else if (isFramed()) {
+                outStream.writeLong(startOffset);
+                writeFrames(sequence, startOffset, codec);
+            } else {
+                // file chunk
+                int length = (int) file.length();
+                outStream.writeInt(length);
+                if (hasFeature(Capabilities.FEATURE_RESUME)) {
+                    outStream.writeLong(startOffset);
+                }
+                // copy the file to the stream
+                long totalWritten = writeBlocks(length - startOffset, codec);
+                outStream.writeLong(fileCrc);
+                Log.d(TAG, "Sent Bytes: " + totalWritten + " (compression " + compression + ")");
+            }
+        } finally {
+            source.close();
+        }
+        outStream.flush();
+        unflushedBytes = 0;
+        Log.d(TAG, "Sent CRC: " + fileCrc);
+    }
+
+    /**
+     * Sends the rest of the file as checksummed frames. The file's length is only fixed by the
+     * END frame, so a file that grows while it is being sent is still consistent.
+     */
+    private void writeFrames(int sequence, long startOffset, Codec codec) throws IOException {
+        long offset = startOffset;
+        long wireBytes = 0;
+        while (true) {
+            chunk.clear();
+            chunk.limit(Math.min(chunk.capacity(), tuner.getChunkSize()));
+            int length = source.read(chunk);
+            if (length == 0) {
+                break;
+            }
+            long crc = checksumFrame(offset, chunk.array(), length);
+            int written = writeDataFrame(offset, chunk.array(), length, crc, codec);
+            wireBytes += written;
+            offset += length;
+            flushIfDue(written);
+        }
+        outStream.writeByte(FilePushMessage.FRAME_END);
+        outStream.writeLong(offset);
+        writeFileCheck(sequence);
+        Log.d(TAG, "Sent Bytes: " + wireBytes + " for " + (offset - startOffset));
+    }
+
+    /**
+     * Sends the rest of the file as frames spread over the stripe channels, then the END frame
+     * once every channel has written its share.
+     */
+    private void writeStripes(int sequence, long startOffset, byte compression) throws IOException {
+        long offset = startOffset;
+        while (true) {
+            ByteBuffer buffer = stripes.acquire();
+            buffer.limit(Math.min(buffer.capacity(), tuner.getChunkSize()));
+            int length;
+            try {
+                length = source.read(buffer);
+            } catch (IOException e) {
+                stripes.release(buffer);
+                throw e;
+            }
+            if (length == 0) {
+                stripes.release(buffer);
+                break;
+            }
+            long crc = checksumFrame(offset, buffer.array(), length);
+            stripes.submit(sequence, offset, buffer, length, crc, isMerkle() ? leafHash : null, compression);
+            offset += length;
+        }
+        stripes.finish();
+        outStream.writeByte(FilePushMessage.FRAME_END);
+        outStream.writeLong(offset);
+        writeFileCheck(sequence);
+        Log.d(TAG, "Sent " + (offset - startOffset) + " bytes over " + stripes.getChannelCount() + " stripes");
+    }
+
+    /**
+     * @param crc   the CRC32 of the uncompressed chunk, with FEATURE_MERKLE the frame ends with
+     *              the leaf hash from the last checksumFrame instead
+     * @param codec compresses the chunk, or null to send it as is
+     * @return the number of content bytes written to the stream
+     */
+    private int writeDataFrame(long offset, byte[] data, int length, long crc, Codec codec) throws IOException {
+        byte[] wire = data;
+        int wireLength = length;
+        if (codec != null) {
+            int compressedLength = codec.compress(data, 0, length, compressed.array(), 0);
+            // a chunk that didn't compress is stored
+            if (compressedLength < length) {
+                wire = compressed.array();
+                wireLength = compressedLength;
+            }
+        }
+
+        outStream.writeByte(FilePushMessage.FRAME_DATA);
+        outStream.writeLong(offset);
+        outStream.writeInt(length);
+        outStream.writeInt(wireLength);
+        outStream.write(wire, 0, wireLength);
+        if (isMerkle()) {
+            outStream.write(leafHash);
+        } else {
+            outStream.writeInt((int) crc);
+        }
+        return wireLength;
+    }
+
+    /**
+     * Checksums a DATA frame's chunk, with FEATURE_MERKLE by hashing it into leafHash and the
+     * file's tree rather than into the CRCs.
+     *
+     * @return the CRC32 of the chunk, or -1 with FEATURE_MERKLE
+     */
+    private long checksumFrame(long offset, byte[] data, int length) {
+        if (!isMerkle()) {
+            return checksumChunk(data, length);
+        }
+        merkle.leaf(offset, data, 0, length, leafHash, 0);
+        merkle.add(leafHash, 0);
+        reportProgress(length);
+        return -1;
+    }
+
+    /**
+     * Ends the END frame with the whole file CRC, or with FEATURE_MERKLE the root of the file's
+     * tree, kept until the receiver confirms it.
+     */
+    private void writeFileCheck(int sequence) throws IOException {
+        if (!isMerkle()) {
+            outStream.writeLong(fileCrc);
+            return;
+        }
+        byte[] root = new byte[MerkleTree.HASH_LENGTH];
+        merkle.root(root, 0);
+        synchronized (sentRoots) {
+            sentRoots.put(sequence, root);
+        }
+        outStream.write(root);
+    }
+
+    /**
+     * Checksums a chunk just read from the source, unless the source already has, and folds it
+     * into the whole file CRC.
+     *
+     * @return the CRC32 of the chunk
+     */
+    private long checksumChunk(byte[] data, int length) {
+        long crc = source.getLastChunkCrc();
+        if (crc < 0) {
+            chunkCrc.reset();
+            chunkCrc.update(data, 0, length);
+            crc = chunkCrc.getValue();
+        }
+        fileCrc = crcCombiner.combine(fileCrc, crc, length);
+        reportProgress(length);
+        return crc;
+    }
+
+    /**
+     * Re-reads and re-sends a chunk the receiver NAKed, always uncompressed.
+     */
+    private void writeChunkRetransmit(int sequence, File file, long offset, int length) throws IOException {
+        chunk.clear();
+        chunk.limit(Math.min(length, chunk.capacity()));
+        int read;
+        try {
+            reader.open(file, offset);
+            read = reader.read(chunk);
+        } finally {
+            reader.close();
+        }
+        if (read != length) {
+            throw new IOException("File changed before a chunk could be retransmitted: " + file);
+        }
+        long crc = -1;
+        if (isMerkle()) {
+            // only the digest is used, the tree of whichever file is being sent is left alone
+            merkle.leaf(offset, chunk.array(), 0, length, leafHash, 0);
+        } else {
+            chunkCrc.reset();
+            chunkCrc.update(chunk.array(), 0, length);
+            crc = chunkCrc.getValue();
+        }
+        outStream.writeByte(FilePushMessage.TYPE_CHUNK_RETRANSMIT);
+        outStream.writeInt(sequence);
+        writeDataFrame(offset, chunk.array(), length, crc, null);
+        outStream.flush();
+    }
+
+    private byte chooseCompression(File file) {
+        int codecs = settings == null ? 0 : settings.get(Capabilities.KEY_CODECS, 0);
+        if (codecs == 0) {
+            return FilePushMessage.COMPRESSION_NONE;
+        }
+        if (compressionProbe == null) {
+            compressionProbe = new CompressionProbe(options.getCompressionMaxRatio());
+        }
+        return compressionProbe.choose(file, options.getCompressionPreference(), codecs);
+    }
+
+    /**
+     * @param maxInput the longest input that will be compressed, the output buffer is sized for it
+     */
+    private Codec getCodec(byte id, int maxInput) {
+        if (codecs[id] == null) {
+            codecs[id] = Codecs.create(id);
+        }
+        Codec codec = codecs[id];
+        int maxCompressed = codec.maxCompressedLength(maxInput);
+        if (compressed == null || compressed.capacity() < maxCompressed) {
+            bufferPool.release(compressed);
+            compressed = bufferPool.acquire(maxCompressed);
+        }
+        return codec;
+    }
+
+    /**
+     * Sends exactly length bytes of the file for the unframed protocol versions, as is or as
+     * compressed blocks. Never sends more than the length promised, even if the file grew since.
+     *
+     * @return the number of bytes written to the stream
+     */
+    private long writeBlocks(long length, Codec codec) throws IOException {
+        long totalWritten = 0;
+        long remaining = length;
+        while (remaining > 0) {
+            chunk.clear();
+            chunk.limit((int) Math.min(remaining, Math.min(chunk.capacity(), tuner.getChunkSize())));
+            int blockLength = source.read(chunk);
+            if (blockLength == 0) {
+                throw new IOException("File shrank while it was being sent");
+            }
+            byte[] block = chunk.array();
+            checksumChunk(block, blockLength);
+            remaining -= blockLength;
+
+            if (codec == null) {
+                outStream.write(block, 0, blockLength);
+                totalWritten += blockLength;
+                flushIfDue(blockLength);
+                continue;
+            }
+
+            int compressedLength = codec.compress(block, 0, blockLength, compressed.array(), 0);
+            outStream.writeInt(blockLength);
+            if (compressedLength >= blockLength) {
+                // the block didn't compress, store it instead
+                outStream.writeInt(blockLength);
+                outStream.write(block, 0, blockLength);
+                totalWritten += blockLength;
+                flushIfDue(blockLength);
+            } else {
+                outStream.writeInt(compressedLength);
+                outStream.write(compressed.array(), 0, compressedLength);
+                totalWritten += compressedLength;
+                flushIfDue(compressedLength);
+            }
+        }
+        return totalWritten;
+    }
+
+    /**
+     * Flushes the output once the tuner's flush cadence worth of contents has been written, so
+     * on a slow link data doesn't wait in the buffer for the end of the file.
+     */
+    private void flushIfDue(int written) throws IOException {
+        unflushedBytes += written;
+        if (unflushedBytes >= tuner.getFlushBytes()) {
+            outStream.flush();
+            unflushedBytes = 0;
+        }
+    }
+
+    /**
+     * Adds the first length bytes of the open file to the file CRC without sending them, or with
+     * FEATURE_MERKLE makes them the first leaf of the file's tree.
+     */
+    private long readPrefix(long length) throws IOException {
+        boolean merkle = isMerkle();
+        if (merkle) {
+            this.merkle.beginLeaf(0);
+        }
+        long read = 0;
+        while (read < length) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), length - read));
+            int numBytes = source.read(chunk);
+            if (numBytes == 0) {
+                break;
+            }
+            if (merkle) {
+                this.merkle.updateLeaf(chunk.array(), 0, numBytes);
+                reportProgress(numBytes);
+            } else {
+                checksumChunk(chunk.array(), numBytes);
+            }
+            read += numBytes;
+        }
+        if (merkle) {
+            this.merkle.endLeaf(leafHash, 0);
+            this.merkle.add(leafHash, 0);
+        }
+        return read;
+    }
+
+    private void openSource(File file) throws IOException {
+        DirectoryWalker.Entry entry = prefetched;
+        // a retransmit of an earlier file can come in between the walk and the file it opened
+        if (entry != null && entry.file.equals(file)) {
+            prefetched = null;
+            if (entry.stream != null && source == reader) {
+                reader.open(entry.openStream(), 0);
+                return;
+            }
+            if (entry.stream != null && source == pipeline) {
+                pipeline.open(entry.openStream(), 0);
+                return;
+            }
+            entry.closeStream();
+        }
+        source.open(file, 0);
+    }
+
+    private void closePrefetchedStream() {
+        if (prefetched != null) {
+            prefetched.closeStream();
+            prefetched = null;
+        }
+    }
+
+    /**
+     * Sends a directory tree as the walk, running ahead on its own thread, produces it. The next
+     * few files are listed, stat'ed and opened while the current one is on the wire.
+     */
+    private void writeTree(File root) throws IOException {
+        DirectoryWalker walker = new DirectoryWalker(root, new File("/"));
+        // a shared chunk source reads the files itself, opening them here would be wasted
+        walker.start(options.getWalkPrefetch(), source == reader || source == pipeline);
+        try {
+            DirectoryWalker.Entry entry;
+            while ((entry = walker.next()) != null) {
+                if (entry.directory) {
+                    writeDirectory(entry.file, entry.destination, entry.childCount);
+                    continue;
+                }
+                prefetched = entry;
+                if (shouldPack(entry)) {
+                    addToPack(entry);
+                } else {
+                    writeFile(entry.file, entry.destination);
+                }
+                closePrefetchedStream();
+            }
+            flushPack();
+        } finally {
+            pack = null;
+            closePrefetchedStream();
+            walker.close();
+        }
+    }
+
+    /**
+     * Writes the files of a batch, those that have gone since it was queued are left out. The
+     * receiver creates their directories as it needs them.
+     */
+    private void writeBatch(File root, List<File> files) throws IOException {
+        for (File file : files) {
+            if (!file.isFile()) {
+                Log.d(TAG, "Skipping File removed before it was sent: " + file);
+                continue;
+            }
+            writeFile(file, batchDestination(root, file));
+        }
+    }
+
+    /**
+     * @return the directory the file goes in on the receiver, as if the whole root were sent
+     */
+    private static File batchDestination(File root, File file) {
+        String rootPath = root.getAbsolutePath();
+        String parentPath = file.getAbsoluteFile().getParent();
+        if (parentPath == null || !(parentPath + File.separator).startsWith(rootPath + File.separator)) {
+            throw new IllegalArgumentException(file + " is not under " + root);
+        }
+        return new File("/" + parentPath.substring(rootPath.length()));
+    }
+
+    private void writeDirectory(File dir, File destinationContainer, int childCount) throws IOException {
+        Log.d(TAG, "Sending Directory: " + dir.getName() + " -> " + destinationContainer.getPath());
+        outStream.writeByte(FilePushMessage.TYPE_DIRECTORY);
+        if (hasFeature(Capabilities.FEATURE_PATH_DICTIONARY)) {
+            File parent = destinationContainer.getParentFile();
+            int parentId = parent != null ? directories.idOf(parent.getPath()) : PathDictionary.NO_DIRECTORY;
+            PathDictionary.writeVarInt(outStream, directories.assign(destinationContainer.getPath()));
+            PathDictionary.writeVarInt(outStream, parentId);
+            // named relative to the parent when the receiver has it, otherwise by the full path
+            PathDictionary.writeString(outStream, parentId != PathDictionary.NO_DIRECTORY
+                    ? destinationContainer.getName() : destinationContainer.getPath());
+        } else {
+            outStream.writeUTF(destinationContainer.getPath());
+        }
+        if (hasFeature(Capabilities.FEATURE_UNBOUNDED_DIRECTORIES)) {
+            outStream.writeInt(childCount);
+        } else {
+            // the count is informational, saturate it rather than let it wrap negative
+            outStream.writeShort(Math.min(childCount, Short.MAX_VALUE));
+        }
+    }
+
+    private void writeStop() throws IOException {
+        Log.d(TAG, "Sending stop message");
+        outStream.writeByte(FilePushMessage.TYPE_STOP);
+        outStream.flush();
+    }
+
+    // Disconnect everything and perform an orderly shutdown, the STOP is skipped for a dead link.
+    // Called with the session lock held.
+    private void disconnect(boolean sendStop) {
+        connected = false;
+        // hand the chunk buffers back for the next connection, to this or any other device
+        bufferPool.release(chunk);
+        bufferPool.release(compressed);
+        bufferPool.release(packContents);
+        chunk = null;
+        compressed = null;
+        packContents = null;
+        if (stripes != null) {
+            stripes.close();
+            stripes = null;
+        }
+        if (pipeline != null) {
+            if (source == pipeline) {
+                source = reader;
+            }
+            pipeline.shutdown();
+            pipeline = null;
+        }
+
+        if (!transport.isConnected()) {
+            return;
+        }
+        Log.d(TAG, "Closing thread: " + transport.getName());
+
+
+        if (sendStop) {
+            try {
+                Log.d(TAG, "Writing stop message: " + transport.getName());
+                writeStop();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write stop message.", e);
+
+            }
         }
 
         try {
-            Log.d(TAG, "Flushing outpustream: " + socket.getRemoteDevice().getName());
+            Log.d(TAG, "Flushing outpustream: " + transport.getName());
             outStream.flush();
         } catch (IOException e) {
             Log.e(TAG, "Could not flush the outpustream", e);
         }
         try {
-            Log.d(TAG, "Closing Output: " + socket.getRemoteDevice().getName());
+            Log.d(TAG, "Closing Output: " + transport.getName());
             outStream.close();
         } catch (IOException e) {
             Log.e(TAG, "Could not close the Output", e);
         }
         try {
-            Log.d(TAG, "Closing Input: " + socket.getRemoteDevice().getName());
+            Log.d(TAG, "Closing Input: " + transport.getName());
             inStream.close();
         } catch (IOException e) {
             Log.e(TAG, "Could not close the Input", e);
         }
 
         try {
-            Log.d(TAG, "Closing socket: " + socket.getRemoteDevice().getName());
-            socket.close();
+            Log.d(TAG, "Closing transport: " + transport.getName());
+            transport.close();
         } catch (IOException e) {
-            Log.e(TAG, "Could not close the connection to socket", e);
+            Log.e(TAG, "Could not close the transport", e);
         }
     }
 }
\ No newline at end of file
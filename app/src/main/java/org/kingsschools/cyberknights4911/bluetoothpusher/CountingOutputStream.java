@@ -0,0 +1,30 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to the transport into the device's metrics.
+ */
+class CountingOutputStream extends FilterOutputStream {
+    private final DeviceMetrics metrics;
+
+    CountingOutputStream(OutputStream out, DeviceMetrics metrics) {
+        super(out);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        metrics.bytesWritten(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream would write a byte at a time
+        out.write(b, off, len);
+        metrics.bytesWritten(len);
+    }
+}
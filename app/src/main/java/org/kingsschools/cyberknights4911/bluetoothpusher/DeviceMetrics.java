@@ -0,0 +1,245 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the pushes to one device, kept for as long as the app runs
+ * so link quality can be compared across devices and venues. Everything is updated with atomics
+ * from the sending and listening threads and can be read at any time.
+ */
+public class DeviceMetrics {
+    /**
+     * Names of the values in a {@link #snapshot()}
+     */
+    public interface Names {
+        public static final String BYTES_SENT = "bytesSent";
+        public static final String FILES_ACKED = "filesAcked";
+        public static final String SENDS_SUCCEEDED = "sendsSucceeded";
+        public static final String SENDS_FAILED = "sendsFailed";
+        public static final String RETRANSMITS = "retransmits";
+        public static final String CHUNK_RETRANSMITS = "chunkRetransmits";
+        public static final String CONNECTS = "connects";
+        public static final String CONNECT_FAILURES = "connectFailures";
+        public static final String CONNECT_AVERAGE_MILLIS = "connectAverageMillis";
+        public static final String CONNECT_MAX_MILLIS = "connectMaxMillis";
+        public static final String ACK_RTT_COUNT = "ackRttCount";
+        public static final String ACK_RTT_AVERAGE_MILLIS = "ackRttAverageMillis";
+        public static final String ACK_RTT_P50_MILLIS = "ackRttP50Millis";
+        public static final String ACK_RTT_P90_MILLIS = "ackRttP90Millis";
+        public static final String ACK_RTT_P99_MILLIS = "ackRttP99Millis";
+        public static final String ACK_RTT_MAX_MILLIS = "ackRttMaxMillis";
+        public static final String LAST_BYTES_PER_SECOND = "lastBytesPerSecond";
+        public static final String PEAK_BYTES_PER_SECOND = "peakBytesPerSecond";
+        public static final String AVERAGE_BYTES_PER_SECOND = "averageBytesPerSecond";
+        public static final String LAST_FILES_PER_SECOND = "lastFilesPerSecond";
+        public static final String WINDOW = "window";
+        public static final String CHUNK_SIZE = "chunkSize";
+        public static final String FLUSH_BYTES = "flushBytes";
+        public static final String DELIVERED_BYTES_PER_SECOND = "deliveredBytesPerSecond";
+    }
+
+    private final String address;
+    private final String name;
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong filesAcked = new AtomicLong();
+    private final AtomicLong sendsSucceeded = new AtomicLong();
+    private final AtomicLong sendsFailed = new AtomicLong();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong chunkRetransmits = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram ackRtt = new LatencyHistogram();
+
+    // throughput of whole sends, from the first byte written to the last ack
+    private final AtomicLong transferBytes = new AtomicLong();
+    private final AtomicLong transferNanos = new AtomicLong();
+    private volatile long lastBytesPerSecond;
+    private volatile long peakBytesPerSecond;
+    private volatile long lastFilesPerSecond;
+
+    // what the LinkTuner last chose, and the throughput it measured
+    private volatile long window;
+    private volatile long chunkSize;
+    private volatile long flushBytes;
+    private volatile long deliveredBytesPerSecond;
+
+    DeviceMetrics(String address, String name) {
+        this.address = address;
+        this.name = name;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void bytesWritten(long count) {
+        bytesSent.addAndGet(count);
+    }
+
+    void filesAcked(int count) {
+        filesAcked.addAndGet(count);
+    }
+
+    void retransmitted() {
+        retransmits.incrementAndGet();
+    }
+
+    void chunkRetransmitted() {
+        chunkRetransmits.incrementAndGet();
+    }
+
+    void connected(long millis) {
+        connects.incrementAndGet();
+        connectTime.record(millis);
+    }
+
+    void connectFailed() {
+        connectFailures.incrementAndGet();
+    }
+
+    void linkTuned(int window, int chunkSize, int flushBytes, long deliveredBytesPerSecond) {
+        this.window = window;
+        this.chunkSize = chunkSize;
+        this.flushBytes = flushBytes;
+        this.deliveredBytesPerSecond = deliveredBytesPerSecond;
+    }
+
+    /**
+     * @param bytes the bytes written during the send, including protocol overhead
+     * @param files the files acked during the send
+     */
+    synchronized void sendFinished(boolean success, long bytes, long files, long nanos) {
+        (success ? sendsSucceeded : sendsFailed).incrementAndGet();
+        if (!success || nanos <= 0) {
+            return;
+        }
+        transferBytes.addAndGet(bytes);
+        transferNanos.addAndGet(nanos);
+        lastBytesPerSecond = perSecond(bytes, nanos);
+        lastFilesPerSecond = perSecond(files, nanos);
+        peakBytesPerSecond = Math.max(peakBytesPerSecond, lastBytesPerSecond);
+    }
+
+    private static long perSecond(long count, long nanos) {
+        return nanos <= 0 ? 0 : count * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    public LatencyHistogram getAckRtt() {
+        return ackRtt;
+    }
+
+    public LatencyHistogram getConnectTime() {
+        return connectTime;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getFilesAcked() {
+        return filesAcked.get();
+    }
+
+    public long getSendsSucceeded() {
+        return sendsSucceeded.get();
+    }
+
+    public long getSendsFailed() {
+        return sendsFailed.get();
+    }
+
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    public long getChunkRetransmits() {
+        return chunkRetransmits.get();
+    }
+
+    /**
+     * @return the throughput of the most recent successful send
+     */
+    public long getLastBytesPerSecond() {
+        return lastBytesPerSecond;
+    }
+
+    public long getPeakBytesPerSecond() {
+        return peakBytesPerSecond;
+    }
+
+    /**
+     * @return the throughput over every successful send
+     */
+    public long getAverageBytesPerSecond() {
+        return perSecond(transferBytes.get(), transferNanos.get());
+    }
+
+    /**
+     * @return the window of files sent ahead of their acks, as last tuned to the link
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the chunk size, as last tuned to the link
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return how many bytes are written between flushes, as last tuned to the link
+     */
+    public long getFlushBytes() {
+        return flushBytes;
+    }
+
+    /**
+     * @return the smoothed rate the receiver has been acking file contents at
+     */
+    public long getDeliveredBytesPerSecond() {
+        return deliveredBytesPerSecond;
+    }
+
+    /**
+     * @return every value by its {@link Names name}, in a stable order
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put(Names.BYTES_SENT, bytesSent.get());
+        values.put(Names.FILES_ACKED, filesAcked.get());
+        values.put(Names.SENDS_SUCCEEDED, sendsSucceeded.get());
+        values.put(Names.SENDS_FAILED, sendsFailed.get());
+        values.put(Names.RETRANSMITS, retransmits.get());
+        values.put(Names.CHUNK_RETRANSMITS, chunkRetransmits.get());
+        values.put(Names.CONNECTS, connects.get());
+        values.put(Names.CONNECT_FAILURES, connectFailures.get());
+        values.put(Names.CONNECT_AVERAGE_MILLIS, connectTime.getAverageMillis());
+        values.put(Names.CONNECT_MAX_MILLIS, connectTime.getMaxMillis());
+        values.put(Names.ACK_RTT_COUNT, ackRtt.getCount());
+        values.put(Names.ACK_RTT_AVERAGE_MILLIS, ackRtt.getAverageMillis());
+        values.put(Names.ACK_RTT_P50_MILLIS, ackRtt.getPercentileMillis(50));
+        values.put(Names.ACK_RTT_P90_MILLIS, ackRtt.getPercentileMillis(90));
+        values.put(Names.ACK_RTT_P99_MILLIS, ackRtt.getPercentileMillis(99));
+        values.put(Names.ACK_RTT_MAX_MILLIS, ackRtt.getMaxMillis());
+        values.put(Names.LAST_BYTES_PER_SECOND, lastBytesPerSecond);
+        values.put(Names.PEAK_BYTES_PER_SECOND, peakBytesPerSecond);
+        values.put(Names.AVERAGE_BYTES_PER_SECOND, getAverageBytesPerSecond());
+        values.put(Names.LAST_FILES_PER_SECOND, lastFilesPerSecond);
+        values.put(Names.WINDOW, window);
+        values.put(Names.CHUNK_SIZE, chunkSize);
+        values.put(Names.FLUSH_BYTES, flushBytes);
+        values.put(Names.DELIVERED_BYTES_PER_SECOND, deliveredBytesPerSecond);
+        return values;
+    }
+}
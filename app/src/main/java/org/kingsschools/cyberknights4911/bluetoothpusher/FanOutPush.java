@@ -0,0 +1,251 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Pushes one file or directory to several devices at once. The tree is walked, and each file read
+ * from storage and checksummed, a single time by a shared read stage which hands every chunk to
+ * each device's bounded queue. Each device's own sending thread writes the chunks out at its own
+ * pace, so the number of reads doesn't grow with the number of devices.
+ * <p>
+ * A device that falls behind, so its queue stays full for longer than the stall timeout, is
+ * detached from the read stage rather than holding up the others. It finishes its send on its
+ * own, reading the rest of the files itself.
+ */
+public class FanOutPush {
+    private static final String TAG = BluetoothPusherService.TAG;
+
+    private final File path;
+    private final PushOptions options;
+    private final BufferPool bufferPool = BufferPool.getDefault();
+    private final List<ConnectedDevice> devices = new ArrayList<>();
+    private final List<SharedChunkSource> sources = new ArrayList<>();
+    // results in the order the devices were given, null until a device finishes
+    private final Map<ConnectedDevice, Boolean> results = new LinkedHashMap<>();
+    // devices detached for falling behind, only touched by the read stage
+    private final Set<SharedChunkSource> stalled = Collections.synchronizedSet(new HashSet<SharedChunkSource>());
+    private final CountDownLatch finished;
+    private Thread readingThread;
+
+    /**
+     * @param transports the devices to push to, each gets its own connection
+     * @param handler    receives a status message per device, may be null
+     */
+    public FanOutPush(Collection<? extends Transport> transports, File path, Handler handler, PushOptions options) {
+        this.path = path;
+        this.options = options;
+        for (Transport transport : transports) {
+            ConnectedDevice device = new ConnectedDevice(transport, handler, options);
+            SharedChunkSource source = new SharedChunkSource(options.getFanOutQueueChunks(), options.getMmapThreshold());
+            device.setChunkSource(source);
+            device.setSendListener(sendListener);
+            devices.add(device);
+            sources.add(source);
+            results.put(device, null);
+        }
+        finished = new CountDownLatch(devices.size());
+    }
+
+    private final ConnectedDevice.SendListener sendListener = new ConnectedDevice.SendListener() {
+        @Override
+        public void onSendFinished(ConnectedDevice device, File path, boolean success) {
+            // nothing more will be read from its queue, stop feeding it
+            sources.get(devices.indexOf(device)).finish();
+            synchronized (results) {
+                results.put(device, success);
+            }
+            Log.d(TAG, "Fan-out to " + device.getTransport().getName() + (success ? " succeeded" : " failed"));
+            finished.countDown();
+        }
+    };
+
+    /**
+     * Starts every device's send and the shared read stage.
+     */
+    public void start() {
+        for (ConnectedDevice device : devices) {
+            device.send(path);
+        }
+        readingThread = new Thread() {
+            public void run() {
+                try {
+                    readTree(path);
+                    endStream();
+                } catch (IOException e) {
+                    // each device reads for itself from here on, and fails on its own if it has to
+                    Log.e(TAG, "Shared read stage failed", e);
+                    detachAll();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Shared read stage interrupted");
+                    detachAll();
+                }
+            }
+        };
+        readingThread.start();
+    }
+
+    /**
+     * Blocks until every device has finished.
+     *
+     * @return false if some are still sending after the timeout
+     */
+    public boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+        return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return whether each device's send succeeded, null for those still sending
+     */
+    public Map<ConnectedDevice, Boolean> getResults() {
+        synchronized (results) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(results));
+        }
+    }
+
+    public List<ConnectedDevice> getDevices() {
+        return Collections.unmodifiableList(devices);
+    }
+
+    /**
+     * @return whether the device fell behind and was left to read the files itself
+     */
+    public boolean wasDetached(ConnectedDevice device) {
+        return stalled.contains(sources.get(devices.indexOf(device)));
+    }
+
+    /**
+     * Walks the tree the same way {@link ConnectedDevice} does, so every device finds the files
+     * in its queue in the order it asks for them.
+     */
+    private void readTree(File root) throws IOException, InterruptedException {
+        if (!root.isDirectory()) {
+            readFile(root, new FileInputStream(root));
+            return;
+        }
+        DirectoryWalker walker = new DirectoryWalker(root, new File("/"));
+        walker.start(options.getWalkPrefetch(), true);
+        try {
+            DirectoryWalker.Entry entry;
+            while ((entry = walker.next()) != null) {
+                if (!entry.directory) {
+                    readFile(entry.file, entry.openStream());
+                }
+            }
+        } finally {
+            walker.close();
+        }
+    }
+
+    /**
+     * @param stream the open file, closed once read
+     */
+    private void readFile(File file, FileInputStream stream) throws IOException, InterruptedException {
+        FileChunkReader reader = createReader();
+        CRC32 crc = new CRC32();
+        try {
+            reader.open(stream, 0);
+            if (!publish(new SharedChunkSource.SharedChunk(SharedChunkSource.SharedChunk.FILE_START, file, null, 0, 0, null))) {
+                return;
+            }
+            while (true) {
+                ByteBuffer buffer = bufferPool.acquire(options.getChunkSize());
+                int length = reader.read(buffer);
+                if (length == 0) {
+                    bufferPool.release(buffer);
+                    break;
+                }
+                crc.reset();
+                crc.update(buffer.array(), 0, length);
+                if (!publish(new SharedChunkSource.SharedChunk(SharedChunkSource.SharedChunk.DATA, file,
+                        buffer, length, crc.getValue(), bufferPool))) {
+                    return;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        publish(new SharedChunkSource.SharedChunk(SharedChunkSource.SharedChunk.FILE_END, file, null, 0, 0, null));
+    }
+
+    /**
+     * The reader the stage reads each file with.
+     */
+    FileChunkReader createReader() {
+        return new FileChunkReader(options.getMmapThreshold());
+    }
+
+    /**
+     * Only once the whole tree has been read, a device takes the end of the stream as the end of
+     * the file it is in.
+     */
+    private void endStream() {
+        try {
+            publish(new SharedChunkSource.SharedChunk(SharedChunkSource.SharedChunk.END_OF_STREAM, null, null, 0, 0, null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            detachAll();
+        }
+    }
+
+    /**
+     * Leaves every device to read the rest itself, from wherever it is in the file it is sending.
+     */
+    private void detachAll() {
+        for (SharedChunkSource source : sources) {
+            source.detach();
+        }
+    }
+
+    /**
+     * Queues the chunk for every attached device, detaching those that stall.
+     *
+     * @return false once no devices are left attached, there's no point reading further
+     */
+    private boolean publish(SharedChunkSource.SharedChunk chunk) throws InterruptedException {
+        List<SharedChunkSource> attached = new ArrayList<>();
+        for (SharedChunkSource source : sources) {
+            if (!source.isDetached()) {
+                attached.add(source);
+            }
+        }
+        if (attached.isEmpty()) {
+            chunk.retain(1);
+            chunk.release();
+            return false;
+        }
+
+        chunk.retain(attached.size());
+        for (SharedChunkSource source : attached) {
+            if (!source.offer(chunk, options.getFanOutStallTimeoutMillis())) {
+                if (!source.isDetached()) {
+                    Log.w(TAG, "Device stalled for " + options.getFanOutStallTimeoutMillis()
+                            + " ms, detaching it from the shared read stage");
+                    stalled.add(source);
+                }
+                source.detach();
+                chunk.release();
+            } else if (source.isDetached()) {
+                // detached while the chunk was being queued, don't leave it there
+                source.detach();
+            }
+        }
+        return true;
+    }
+}
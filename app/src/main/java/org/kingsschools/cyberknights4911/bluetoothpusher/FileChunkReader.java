@@ -0,0 +1,117 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file a chunk at a time into a caller supplied buffer. Small files are read through the
+ * file's channel, files at or above the mmap threshold are memory mapped a window at a time so
+ * the large reads don't go through a syscall per chunk. One reader is reused for every file.
+ */
+class FileChunkReader implements ChunkSource {
+    // small, a window stays mapped after close() until its buffer is collected
+    private static final long MAP_WINDOW = 2 * 1024 * 1024;
+
+    private final long mmapThreshold;
+    private FileInputStream stream;
+    private FileChannel channel;
+    private long position;
+    // the length when the file was opened, only this much is mapped
+    private long mappableLength;
+    private MappedByteBuffer mapped;
+    private long mappedStart;
+
+    /**
+     * @param mmapThreshold files at least this long are memory mapped, 0 disables mapping
+     */
+    FileChunkReader(long mmapThreshold) {
+        this.mmapThreshold = mmapThreshold;
+    }
+
+    @Override
+    public void open(File file, long startPosition) throws IOException {
+        open(new FileInputStream(file), startPosition);
+    }
+
+    /**
+     * Reads from a stream that was already opened, eg. by a prefetching {@link DirectoryWalker}.
+     * The reader closes it.
+     */
+    void open(FileInputStream stream, long startPosition) throws IOException {
+        close();
+        this.stream = stream;
+        channel = stream.getChannel();
+        long length = channel.size();
+        mappableLength = mmapThreshold > 0 && length >= mmapThreshold ? length : 0;
+        position = startPosition;
+    }
+
+    /**
+     * Fills the buffer from its position up to its limit, or until the end of the file.
+     *
+     * @return the number of bytes read, 0 at the end of the file
+     */
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            int n = position < mappableLength ? readMapped(buffer) : channel.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+            position += n;
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * @return the number of bytes read, 0 if the file has been truncated to the position
+     */
+    private int readMapped(ByteBuffer buffer) throws IOException {
+        // touching a mapped page past the end of a truncated file faults rather than reading
+        // short, so the length is checked before every copy, a stat is still far cheaper than a read.
+        // A truncation between the check and the copy isn't handled, on Android that fault is a
+        // SIGBUS that ends the process. Files that may still be written to aren't mapped at all
+        // with an mmap threshold of 0
+        long length = Math.min(mappableLength, channel.size());
+        if (position >= length) {
+            mapped = null;
+            return 0;
+        }
+        if (mapped == null || position < mappedStart || position >= mappedStart + mapped.capacity()) {
+            mappedStart = position;
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, mappedStart,
+                    Math.min(MAP_WINDOW, length - mappedStart));
+        }
+        mapped.position((int) (position - mappedStart));
+        int n = (int) Math.min(Math.min(buffer.remaining(), mapped.remaining()), length - position);
+        mapped.get(buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+        buffer.position(buffer.position() + n);
+        return n;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    @Override
+    public long getLastChunkCrc() {
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapped = null;
+        if (stream != null) {
+            FileInputStream stream = this.stream;
+            this.stream = null;
+            channel = null;
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+/**
+ * A hash table from 64 bit fingerprints to 32 bit values, open addressed with linear probing in
+ * two primitive arrays, so hundreds of thousands of entries cost 12 bytes a slot and no objects.
+ * 0 is never a key or a value, it marks an empty slot and a missing entry.
+ */
+class FingerprintIndex {
+    private static final int MIN_CAPACITY = 1024;
+    // grown once this full, a probe rarely runs past a few slots below it
+    private static final float MAX_LOAD = 0.7f;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    FingerprintIndex(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < expectedSize) {
+            capacity *= 2;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * @return the value, or 0 if there is none
+     */
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key, mask); keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the value it replaced, or 0 if the key is new
+     */
+    int put(long key, int value) {
+        if (key == 0 || value == 0) {
+            throw new IllegalArgumentException("0 is reserved for empty slots");
+        }
+        int mask = keys.length - 1;
+        int slot = slotOf(key, mask);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > keys.length * MAX_LOAD) {
+            grow();
+        }
+        return 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        keys = new long[MIN_CAPACITY];
+        values = new int[MIN_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * @return the number of slots, walk them with {@link #keyAt} and {@link #valueAt}
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the key in the slot, 0 when it is empty
+     */
+    long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    int valueAt(int slot) {
+        return values[slot];
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slotOf(oldKeys[i], mask);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int slotOf(long key, int mask) {
+        // the keys are already well mixed fingerprints
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+}
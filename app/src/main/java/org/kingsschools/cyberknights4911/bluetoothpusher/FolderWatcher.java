@@ -0,0 +1,322 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a directory tree to a device as it is written to, such as the scouting output dropped
+ * into a match folder during a match. Only files created, written or moved in after the watch
+ * starts are pushed, each to where a send of the whole tree would put it, over the device's
+ * persistent session when the options keep one open.
+ * <p>
+ * A file is only pushed once it has gone unchanged for the debounce time, so it isn't sent half
+ * written. Files that change close together go out together, the batch is sent once the whole
+ * folder has been quiet for the debounce time, or the oldest change has waited the max batch
+ * delay. One batch is sent at a time, files that settle in the meantime make up the next one, and
+ * the files of a failed batch are tried again with it.
+ */
+public class FolderWatcher implements Closeable {
+    private static final String TAG = BluetoothPusherService.TAG;
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.MODIFY | FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE | FileObserver.DELETE_SELF;
+
+    /**
+     * Watches a single directory, FileObservers don't see into subdirectories
+     */
+    private class DirectoryObserver extends FileObserver {
+        private final File dir;
+
+        DirectoryObserver(File dir) {
+            super(dir.getPath(), EVENTS);
+            this.dir = dir;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            FolderWatcher.this.onEvent(dir, event, name);
+        }
+    }
+
+    private final ConnectedDevice device;
+    private final File root;
+    private final PushOptions options;
+    private final long debounceNanos;
+    private final long maxBatchDelayNanos;
+
+    // an observer stops watching once it is collected, so every one is held here
+    private final Map<File, DirectoryObserver> observers = new HashMap<>();
+    // files changed since they were last sent, to {first change, last change}
+    private final Map<File, long[]> changed = new LinkedHashMap<>();
+    // the batch being sent, null when none is
+    private List<File> sending;
+    private long batchCount;
+    private long fileCount;
+    private Thread flushingThread;
+    private boolean closed;
+
+    /**
+     * @param device the device to push to, the watcher takes over its send listener
+     * @param root   the directory to watch, with everything under it
+     */
+    public FolderWatcher(ConnectedDevice device, File root, PushOptions options) {
+        this.device = device;
+        this.root = root;
+        this.options = options;
+        debounceNanos = TimeUnit.MILLISECONDS.toNanos(options.getWatchDebounceMillis());
+        maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(options.getWatchMaxBatchDelayMillis());
+        device.setSendListener(sendListener);
+    }
+
+    /**
+     * Starts watching, and connecting ahead of the first batch.
+     */
+    public void start() {
+        if (options.isPersistentSession()) {
+            device.openSession();
+        }
+        watchTree(root, false);
+        flushingThread = new Thread() {
+            public void run() {
+                try {
+                    runFlushes();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Folder watch flushing interrupted");
+                }
+            }
+        };
+        flushingThread.setName("FolderWatcher-" + root.getName());
+        flushingThread.start();
+        Log.d(TAG, "Watching " + root + " for " + device.getTransport().getName());
+    }
+
+    /**
+     * Stops watching and ends the session. Files that haven't been pushed yet are left for a send
+     * of the whole folder.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (DirectoryObserver observer : observers.values()) {
+            observer.stopWatching();
+        }
+        observers.clear();
+        notifyAll();
+        if (options.isPersistentSession()) {
+            device.closeSession();
+        }
+    }
+
+    /**
+     * @return how many batches have been pushed
+     */
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * @return how many files have been pushed, counting a file again each time it changed
+     */
+    public synchronized long getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return how many files are waiting to settle or for the batch ahead of them
+     */
+    public synchronized int getPendingCount() {
+        return changed.size();
+    }
+
+    public ConnectedDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * Handles an event from the observer of a directory in the tree.
+     */
+    void onEvent(File dir, int event, String name) {
+        event &= FileObserver.ALL_EVENTS;
+        if (event == FileObserver.DELETE_SELF) {
+            unwatch(dir);
+            return;
+        }
+        if (name == null) {
+            return;
+        }
+        File file = new File(dir, name);
+        switch (event) {
+            case FileObserver.CREATE:
+            case FileObserver.MOVED_TO:
+                if (file.isDirectory()) {
+                    // whatever was written to it before its observer started is new too
+                    watchTree(file, true);
+                    break;
+                }
+                fileChanged(file);
+                break;
+            case FileObserver.MODIFY:
+            case FileObserver.CLOSE_WRITE:
+                fileChanged(file);
+                break;
+            case FileObserver.MOVED_FROM:
+            case FileObserver.DELETE:
+                unwatch(file);
+                break;
+        }
+    }
+
+    /**
+     * Watches the directory and every directory under it that isn't already watched.
+     *
+     * @param newFiles whether the files already there count as changed
+     */
+    private synchronized void watchTree(File dir, boolean newFiles) {
+        if (closed || observers.containsKey(dir)) {
+            return;
+        }
+        // watched before listing, so nothing created in between is missed
+        DirectoryObserver observer = new DirectoryObserver(dir);
+        observers.put(dir, observer);
+        observer.startWatching();
+
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                watchTree(child, newFiles);
+            } else if (newFiles && child.isFile()) {
+                fileChanged(child);
+            }
+        }
+    }
+
+    /**
+     * Stops watching a file or directory that was removed or moved out of the tree.
+     */
+    private synchronized void unwatch(File removed) {
+        String prefix = removed.getPath() + File.separator;
+        changed.remove(removed);
+        for (Iterator<File> files = changed.keySet().iterator(); files.hasNext(); ) {
+            if (files.next().getPath().startsWith(prefix)) {
+                files.remove();
+            }
+        }
+        for (Iterator<Map.Entry<File, DirectoryObserver>> entries = observers.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<File, DirectoryObserver> entry = entries.next();
+            if (entry.getKey().equals(removed) || entry.getKey().getPath().startsWith(prefix)) {
+                entry.getValue().stopWatching();
+                entries.remove();
+            }
+        }
+    }
+
+    private synchronized void fileChanged(File file) {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        long[] times = changed.get(file);
+        if (times != null) {
+            times[1] = now;
+            return;
+        }
+        changed.put(file, new long[]{now, now});
+        // the flushing thread may be waiting with nothing to do
+        notifyAll();
+    }
+
+    /**
+     * The flushing loop, run with the watcher's lock held except while waiting.
+     */
+    private synchronized void runFlushes() throws InterruptedException {
+        while (!closed) {
+            long waitNanos = sending == null && !changed.isEmpty() ? flushIfDue(System.nanoTime()) : 0;
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            } else {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Sends the files that have settled, once the folder has been quiet for the debounce time or
+     * the oldest change has waited long enough.
+     *
+     * @return how long to wait before looking again, 0 once a batch was sent
+     */
+    private long flushIfDue(long now) {
+        long firstChange = Long.MAX_VALUE;
+        long lastChange = Long.MIN_VALUE;
+        for (long[] times : changed.values()) {
+            firstChange = Math.min(firstChange, times[0]);
+            lastChange = Math.max(lastChange, times[1]);
+        }
+        boolean quiet = now - lastChange >= debounceNanos;
+        boolean overdue = now - firstChange >= maxBatchDelayNanos;
+        if (!quiet && !overdue) {
+            return Math.min(lastChange + debounceNanos, firstChange + maxBatchDelayNanos) - now;
+        }
+
+        // files still being written stay for the next batch
+        List<File> batch = new ArrayList<>();
+        long nextSettled = Long.MAX_VALUE;
+        for (Iterator<Map.Entry<File, long[]>> entries = changed.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<File, long[]> entry = entries.next();
+            long settledAt = entry.getValue()[1] + debounceNanos;
+            if (settledAt <= now) {
+                batch.add(entry.getKey());
+                entries.remove();
+            } else {
+                nextSettled = Math.min(nextSettled, settledAt);
+            }
+        }
+        if (batch.isEmpty()) {
+            return nextSettled - now;
+        }
+        Log.d(TAG, "Pushing " + batch.size() + " new files from " + root + ", " + changed.size() + " still changing");
+        sending = batch;
+        device.send(root, batch);
+        return 0;
+    }
+
+    private final ConnectedDevice.SendListener sendListener = new ConnectedDevice.SendListener() {
+        @Override
+        public void onSendFinished(ConnectedDevice device, File path, boolean success) {
+            synchronized (FolderWatcher.this) {
+                if (sending == null || !path.equals(root)) {
+                    return;
+                }
+                if (success) {
+                    batchCount++;
+                    fileCount += sending.size();
+                } else {
+                    Log.w(TAG, "Pushing " + sending.size() + " files from " + root + " failed, trying them again");
+                    long now = System.nanoTime();
+                    for (File file : sending) {
+                        if (!changed.containsKey(file)) {
+                            changed.put(file, new long[]{now, now});
+                        }
+                    }
+                }
+                sending = null;
+                FolderWatcher.this.notifyAll();
+            }
+        }
+    };
+}
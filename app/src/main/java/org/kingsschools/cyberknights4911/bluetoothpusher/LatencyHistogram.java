@@ -0,0 +1,80 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in milliseconds with power of two buckets: under 1ms, under 2ms,
+ * under 4ms and so on. Recording is a few atomic adds and never allocates, so it can be called
+ * for every ack. Percentiles are the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+    // the last bucket holds everything from about 9 hours up
+    static final int BUCKETS = 26;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        counts.incrementAndGet(bucketFor(millis));
+        count.incrementAndGet();
+        totalMillis.addAndGet(millis);
+        long max;
+        while ((max = maxMillis.get()) < millis && !maxMillis.compareAndSet(max, millis)) {
+            // another thread recorded a new max first, try again against it
+        }
+    }
+
+    static int bucketFor(long millis) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getAverageMillis() {
+        long count = this.count.get();
+        return count == 0 ? 0 : totalMillis.get() / count;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return a duration at least as long as the percentile of those recorded, 0 when empty
+     */
+    public long getPercentileMillis(double percentile) {
+        long count = this.count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(1L << i, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * @return the count in each bucket, bucket i holds durations under 2^i ms
+     */
+    public long[] getBucketCounts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,169 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the send to the link as measured during the transfer, much like a congestion controller.
+ * RFCOMM throughput varies a lot between tablets and with 2.4 GHz congestion, so no fixed setting
+ * suits every link.
+ * <ul>
+ * <li>The window of files sent ahead of their acks starts at the window agreed with the receiver.
+ * It is halved when a file times out or is rejected (multiplicative decrease) and grows back by
+ * one for every window's worth of acks (additive increase). An ack round trip well above the
+ * fastest seen means files are queueing in the link, so the window shrinks by one before it comes
+ * to a loss.</li>
+ * <li>The chunk size is halved when the receiver NAKs a chunk, a corrupt link loses less with
+ * smaller chunks, and doubles again after each window of clean acks.</li>
+ * <li>The flush cadence follows the delivered throughput, a slow link is flushed every few
+ * milliseconds' worth of data so it doesn't sit in the buffer, a fast one only when the buffer
+ * fills.</li>
+ * </ul>
+ * Updated by the {@link AckDispatcher} on the sending and listening threads, read by the send
+ * loop for every chunk. The chosen values are published to the device's {@link DeviceMetrics}.
+ */
+class LinkTuner {
+    static final int MIN_CHUNK_SIZE = 1024;
+    // an ack round trip this many times the fastest one means files are queueing
+    private static final int RTT_INFLATION = 2;
+    // ignore inflation below this, the round trip of a small file is mostly scheduling noise
+    private static final long MIN_QUEUEING_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    // delivered throughput is sampled over at least this long
+    private static final long RATE_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    // weight of the newest sample in the smoothed throughput
+    private static final double RATE_SMOOTHING = 0.3;
+    // how long data may wait in the output buffer on a slow link
+    private static final long FLUSH_TARGET_MILLIS = 20;
+
+    private final boolean adaptive;
+    private final int maxWindow;
+    private final int maxChunkSize;
+    private final int maxFlushBytes;
+    private final DeviceMetrics metrics;
+
+    private volatile int window;
+    private volatile int chunkSize;
+    private volatile int flushBytes;
+    private volatile long deliveredBytesPerSecond;
+
+    private long minRttNanos = Long.MAX_VALUE;
+    private int acksSinceIncrease;
+    private long sampleStartNanos;
+    private long sampleBytes;
+
+    /**
+     * @param adaptive      false to always use the maximums, as before the link was measured
+     * @param maxWindow     the window agreed with the receiver
+     * @param maxChunkSize  the configured chunk size, the chunk buffer is this big
+     * @param maxFlushBytes the output buffer size, it flushes itself when full anyway
+     * @param metrics       where the chosen values are published, may be null
+     */
+    LinkTuner(boolean adaptive, int maxWindow, int maxChunkSize, int maxFlushBytes, DeviceMetrics metrics) {
+        this.adaptive = adaptive;
+        this.maxWindow = maxWindow;
+        this.maxChunkSize = maxChunkSize;
+        this.maxFlushBytes = maxFlushBytes;
+        this.metrics = metrics;
+        window = maxWindow;
+        chunkSize = maxChunkSize;
+        flushBytes = maxFlushBytes;
+        publish();
+    }
+
+    /**
+     * A file's ack arrived, round trip measured from the end of its write.
+     */
+    synchronized void acked(long rttNanos) {
+        if (!adaptive) {
+            return;
+        }
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        if (rttNanos > minRttNanos * RTT_INFLATION && rttNanos - minRttNanos > MIN_QUEUEING_NANOS) {
+            window = Math.max(1, window - 1);
+            acksSinceIncrease = 0;
+        } else if (++acksSinceIncrease >= window) {
+            acksSinceIncrease = 0;
+            window = Math.min(maxWindow, window + 1);
+            chunkSize = Math.min(maxChunkSize, chunkSize * 2);
+        }
+        publish();
+    }
+
+    /**
+     * A file timed out or the receiver rejected it, it is being sent again.
+     */
+    synchronized void lost() {
+        if (!adaptive) {
+            return;
+        }
+        window = Math.max(1, window / 2);
+        acksSinceIncrease = 0;
+        publish();
+    }
+
+    /**
+     * The receiver NAKed a chunk of a file.
+     */
+    synchronized void chunkCorrupted() {
+        if (!adaptive) {
+            return;
+        }
+        chunkSize = Math.max(Math.min(MIN_CHUNK_SIZE, maxChunkSize), chunkSize / 2);
+        acksSinceIncrease = 0;
+        publish();
+    }
+
+    /**
+     * Counts file contents the receiver has acked towards the delivered throughput.
+     */
+    synchronized void delivered(long bytes, long now) {
+        if (sampleStartNanos == 0) {
+            sampleStartNanos = now;
+        }
+        sampleBytes += bytes;
+        long elapsed = now - sampleStartNanos;
+        if (elapsed < RATE_SAMPLE_NANOS) {
+            return;
+        }
+        long rate = sampleBytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        deliveredBytesPerSecond = deliveredBytesPerSecond == 0 ? rate
+                : deliveredBytesPerSecond + (long) (RATE_SMOOTHING * (rate - deliveredBytesPerSecond));
+        sampleStartNanos = now;
+        sampleBytes = 0;
+        if (adaptive) {
+            long target = deliveredBytesPerSecond * FLUSH_TARGET_MILLIS / TimeUnit.SECONDS.toMillis(1);
+            flushBytes = (int) Math.max(Math.min(MIN_CHUNK_SIZE, maxFlushBytes), Math.min(maxFlushBytes, target));
+        }
+        publish();
+    }
+
+    /**
+     * @return how many files may be sent ahead of their acks, never more than was agreed
+     */
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return how much of the file to read and send at a time
+     */
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return how many bytes to write before flushing the output
+     */
+    int getFlushBytes() {
+        return flushBytes;
+    }
+
+    long getDeliveredBytesPerSecond() {
+        return deliveredBytesPerSecond;
+    }
+
+    private void publish() {
+        if (metrics != null) {
+            metrics.linkTuned(window, chunkSize, flushBytes, deliveredBytesPerSecond);
+        }
+    }
+}
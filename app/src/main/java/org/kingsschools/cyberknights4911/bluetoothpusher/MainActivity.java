@@ -2,6 +2,7 @@ package org.kingsschools.cyberknights4911.bluetoothpusher;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
@@ -23,17 +24,24 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.Random;
 
 public class MainActivity extends AppCompatActivity {
     private static final int REQUEST_ENABLE_BT = 1;
     private static final String TAG = "CyberKnightBluePusher";
     private static final String DEFAULT_TARGET_DEVICE_NAME_PREFERENCE = "DEFAULT_TARGET_DEVICE_NAME";
+    private static final String JOURNAL_FILE = "transfers.journal";
 
     private TextView textView_log;
     private TextView textView_targetDevice;
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothPusherService filePusher;
     private BluetoothDevice mBluetoothDevice;
+    // kept between sends so the first one can go out over the connection prewarmed for it
+    private ConnectedDevice mConnection;
+    private volatile boolean testFilesCreated;
+    // what has been delivered where, loaded in the background, null until then
+    private volatile TransferJournal mJournal;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -63,24 +71,74 @@ public class MainActivity extends AppCompatActivity {
                     case BluetoothPusherService.StatusMessageTypes.SEND_FAILED:
                         log("Failed: " + msg.getData().getString("file"));
                         break;
+                    case BluetoothPusherService.StatusMessageTypes.PROGRESS:
+                        TransferProgress progress = (TransferProgress) msg.obj;
+                        textView_targetDevice.setText(progress.getDeviceName() + " - " + progress.getPercent() + "%");
+                        break;
                 }
 
             }
         });
 
-        // This will create test files if they don't exist
-        createTestFiles();
+        // The test data and the lookup of the saved device are done in the background so the UI
+        // is usable straight away, the device is connected to as soon as it is found
+        final String targetDeviceName = getPreferences(MODE_PRIVATE).getString(DEFAULT_TARGET_DEVICE_NAME_PREFERENCE, "");
+        final Context context = getApplicationContext();
+        new Thread() {
+            public void run() {
+                try {
+                    mJournal = TransferJournal.open(new File(getFilesDir(), JOURNAL_FILE));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed loading the transfer journal, sending everything", e);
+                }
+                if (!targetDeviceName.isEmpty()) {
+                    new BluetoothDeviceManager(context).findDevice(targetDeviceName, new UiThreadPickResultHandler(new DevicePickedHandler()));
+                }
+                // This will create test files if they don't exist
+                createTestFiles();
+                testFilesCreated = true;
+            }
+        }.start();
+    }
 
-        String targetDeviceName = getPreferences(MODE_PRIVATE).getString(DEFAULT_TARGET_DEVICE_NAME_PREFERENCE, "");
-        if (!targetDeviceName.isEmpty()) {
-            new BluetoothDeviceManager(getApplicationContext()).findDevice(targetDeviceName, new DevicePickedHandler());
+    /**
+     * Passes a pick result found in the background on to the UI thread
+     */
+    private class UiThreadPickResultHandler implements BluetoothDeviceManager.BluetoothDevicePickResultHandler {
+        private final BluetoothDeviceManager.BluetoothDevicePickResultHandler handler;
+
+        UiThreadPickResultHandler(BluetoothDeviceManager.BluetoothDevicePickResultHandler handler) {
+            this.handler = handler;
         }
 
-        // ATTENTION: This was auto-generated to implement the App Indexing API.
-        // See https://g.co/AppIndexing/AndroidStudio for more information.
-        client = new GoogleApiClient.Builder(this).addApi(AppIndex.API).build();
+        @Override
+        public void onDevicePicked(final BluetoothDevice device) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    handler.onDevicePicked(device);
+                }
+            });
+        }
+
+        @Override
+        public void onNoDevicePicked() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    handler.onNoDevicePicked();
+                }
+            });
+        }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mConnection != null) {
+            mConnection.closeSession();
+        }
+    }
 
     private class DevicePickedHandler implements BluetoothDeviceManager.BluetoothDevicePickResultHandler {
         @Override
@@ -90,6 +148,13 @@ public class MainActivity extends AppCompatActivity {
             log("Device Picked: " + device.getName() + " - " + device.getAddress());
             textView_targetDevice.setText(device.getName());
             MainActivity.this.mBluetoothDevice = device;
+
+            // connect speculatively, the first send is then served from a warm connection
+            if (mConnection != null) {
+                mConnection.closeSession();
+            }
+            mConnection = filePusher.connect(device, new PushOptions().setJournal(mJournal));
+            mConnection.prewarm();
         }
 
         @Override
@@ -105,8 +170,15 @@ public class MainActivity extends AppCompatActivity {
     }
 
     protected void sendButton_Clicked(View v) {
-        ConnectedDevice connection = filePusher.connect(mBluetoothDevice);
-        connection.send(new File(getFilesDir(), MATCH_23_DIR));
+        if (mConnection == null) {
+            log("Select a device to send to first.");
+            return;
+        }
+        if (!testFilesCreated) {
+            log("Test files are still being created.");
+            return;
+        }
+        mConnection.send(new File(getFilesDir(), MATCH_23_DIR));
     }
 
     private void log(String line) {
@@ -158,25 +230,17 @@ public class MainActivity extends AppCompatActivity {
         //image dimension
         int width = 640;
         int height = 320;
-        //create buffered image object img
-        Bitmap img = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        //file object
-        File f = null;
-        //create random image pixel by pixel
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int a = (int) (Math.random() * 256); //alpha
-                int r = (int) (Math.random() * 256); //red
-                int g = (int) (Math.random() * 256); //green
-                int b = (int) (Math.random() * 256); //blue
-
-                int p = (a << 24) | (r << 16) | (g << 8) | b; //pixel
-
-                img.setPixel(x, y, p);
-            }
+        //create random pixels, one random int is a whole ARGB pixel
+        Random random = new Random();
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
         }
+        //create the image from them all at once rather than pixel by pixel
+        Bitmap img = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
         //write image
         img.compress(Bitmap.CompressFormat.PNG, 100, out);
+        img.recycle();
     }
 
 
@@ -204,14 +268,31 @@ public class MainActivity extends AppCompatActivity {
                 .build();
     }
 
+    private boolean appIndexStarted;
+
+    /**
+     * The App Indexing client isn't needed to show the UI, so it is built on first use and
+     * started once the first frame has been laid out.
+     */
+    private final Runnable startAppIndex = new Runnable() {
+        @Override
+        public void run() {
+            if (client == null) {
+                client = new GoogleApiClient.Builder(MainActivity.this).addApi(AppIndex.API).build();
+            }
+            client.connect();
+            AppIndex.AppIndexApi.start(client, getIndexApiAction());
+            appIndexStarted = true;
+        }
+    };
+
     @Override
     public void onStart() {
         super.onStart();
 
         // ATTENTION: This was auto-generated to implement the App Indexing API.
         // See https://g.co/AppIndexing/AndroidStudio for more information.
-        client.connect();
-        AppIndex.AppIndexApi.start(client, getIndexApiAction());
+        textView_log.post(startAppIndex);
     }
 
     @Override
@@ -220,7 +301,11 @@ public class MainActivity extends AppCompatActivity {
 
         // ATTENTION: This was auto-generated to implement the App Indexing API.
         // See https://g.co/AppIndexing/AndroidStudio for more information.
-        AppIndex.AppIndexApi.end(client, getIndexApiAction());
-        client.disconnect();
+        textView_log.removeCallbacks(startAppIndex);
+        if (appIndexStarted) {
+            AppIndex.AppIndexApi.end(client, getIndexApiAction());
+            client.disconnect();
+            appIndexStarted = false;
+        }
     }
 }
@@ -0,0 +1,52 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The metrics of every device pushed to, by device address. A device keeps its metrics across
+ * {@link ConnectedDevice} instances, so a tablet's numbers cover the whole run of the app.
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final Map<String, DeviceMetrics> devices = new LinkedHashMap<>();
+
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the device's metrics, created the first time it is seen
+     */
+    public synchronized DeviceMetrics forDevice(String address, String name) {
+        DeviceMetrics metrics = devices.get(address);
+        if (metrics == null) {
+            metrics = new DeviceMetrics(address, name);
+            devices.put(address, metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the device's metrics, or null if nothing has been pushed to it
+     */
+    public synchronized DeviceMetrics get(String address) {
+        return devices.get(address);
+    }
+
+    /**
+     * @return a copy of every device's values as they are now
+     */
+    public synchronized MetricsSnapshot snapshot() {
+        Map<String, DeviceMetrics> copy = new LinkedHashMap<>(devices);
+        return new MetricsSnapshot(System.currentTimeMillis(), copy);
+    }
+
+    /**
+     * Forgets every device, eg. when moving to a new venue.
+     */
+    public synchronized void reset() {
+        devices.clear();
+    }
+}
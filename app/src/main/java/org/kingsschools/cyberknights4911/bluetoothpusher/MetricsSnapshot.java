@@ -0,0 +1,94 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The metrics of every device at one point in time, as plain named values so they can be logged,
+ * exported as JSON and compared between tablets.
+ */
+public class MetricsSnapshot {
+    private final long takenAtMillis;
+    // device address to its name and values
+    private final Map<String, String> names = new LinkedHashMap<>();
+    private final Map<String, Map<String, Long>> values = new LinkedHashMap<>();
+
+    MetricsSnapshot(long takenAtMillis, Map<String, DeviceMetrics> devices) {
+        this.takenAtMillis = takenAtMillis;
+        for (Map.Entry<String, DeviceMetrics> device : devices.entrySet()) {
+            names.put(device.getKey(), device.getValue().getName());
+            values.put(device.getKey(), Collections.unmodifiableMap(device.getValue().snapshot()));
+        }
+    }
+
+    public long getTakenAtMillis() {
+        return takenAtMillis;
+    }
+
+    /**
+     * @return the addresses of the devices in the snapshot
+     */
+    public Set<String> getDevices() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    /**
+     * @return the device's values by {@link DeviceMetrics.Names name}, empty for an unknown device
+     */
+    public Map<String, Long> getValues(String address) {
+        Map<String, Long> device = values.get(address);
+        return device == null ? Collections.<String, Long>emptyMap() : device;
+    }
+
+    public long get(String address, String name) {
+        Long value = getValues(address).get(name);
+        return value == null ? 0 : value;
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"takenAtMillis\":").append(takenAtMillis).append(",\"devices\":[");
+        boolean firstDevice = true;
+        for (Map.Entry<String, Map<String, Long>> device : values.entrySet()) {
+            if (!firstDevice) {
+                json.append(',');
+            }
+            firstDevice = false;
+            json.append("{\"address\":");
+            appendString(json, device.getKey());
+            json.append(",\"name\":");
+            appendString(json, names.get(device.getKey()));
+            for (Map.Entry<String, Long> value : device.getValue().entrySet()) {
+                json.append(",\"").append(value.getKey()).append("\":").append(value.getValue());
+            }
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
@@ -0,0 +1,34 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reply the sending thread is waiting on, completed by the listening thread when it arrives.
+ */
+class PendingReply<T> {
+    private final CountDownLatch arrived = new CountDownLatch(1);
+    private volatile T value;
+
+    void complete(T value) {
+        this.value = value;
+        arrived.countDown();
+    }
+
+    /**
+     * @return the reply, or null if it didn't arrive in time
+     */
+    T await(long timeoutMillis) throws IOException {
+        try {
+            if (!arrived.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on reply");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,347 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.kingsschools.cyberknights4911.bluetoothpusher.BluetoothPusherService.TAG;
+
+/**
+ * Reads a file ahead of the send loop on stage threads of its own. The read stage fills a small
+ * ring of chunk buffers from storage, the checksum stage computes each chunk's CRC32, and the send
+ * loop is left to compress and write. While the ring has chunks in it a slow flash read doesn't
+ * stall the socket, and a blocked socket write doesn't stop the next chunks being read.
+ * <p>
+ * Only one file is read at a time. Opening another file, or closing this one, abandons whatever
+ * was read ahead, its buffers go back to the ring as they come out of the pipeline.
+ */
+class PipelinedChunkSource implements ChunkSource {
+    private static final long POLL_MILLIS = 100;
+    private static final long SHUTDOWN_JOIN_MILLIS = 1000;
+
+    /**
+     * A chunk of a file, or the marker for the end of the file or a failed read
+     */
+    private static class Chunk {
+        static final int DATA = 0;
+        static final int END = 1;
+        static final int ERROR = 2;
+
+        final int generation;
+        final int kind;
+        final ByteBuffer buffer;
+        final int length;
+        final IOException error;
+        long crc = -1;
+
+        Chunk(int generation, int kind, ByteBuffer buffer, int length, IOException error) {
+            this.generation = generation;
+            this.kind = kind;
+            this.buffer = buffer;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    /**
+     * A file for the read stage, stale once the generation has moved on
+     */
+    private static class Job {
+        final int generation;
+        final File file;
+        final FileInputStream stream;
+        final long startPosition;
+
+        Job(int generation, File file, FileInputStream stream, long startPosition) {
+            this.generation = generation;
+            this.file = file;
+            this.stream = stream;
+            this.startPosition = startPosition;
+        }
+    }
+
+    private final BufferPool pool;
+    private final int depth;
+    // the ring, buffers not holding a chunk
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<Job> jobs = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Chunk> read = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Chunk> checked = new LinkedBlockingQueue<>();
+    private final FileChunkReader reader;
+    private final Thread readThread;
+    private final Thread checksumThread;
+    // bumped for every file opened or closed, chunks from an older generation are discarded
+    private volatile int generation;
+    private volatile boolean shutdown;
+
+    // only touched by the send loop
+    private Chunk current;
+    private int currentOffset;
+    private boolean ended = true;
+    private long lastChunkCrc = -1;
+
+    /**
+     * @param depth how many chunks may be read ahead of the send loop
+     */
+    PipelinedChunkSource(int chunkSize, int depth, long mmapThreshold, BufferPool pool) {
+        this.pool = pool;
+        this.depth = depth;
+        free = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            free.add(pool.acquire(chunkSize));
+        }
+        reader = new FileChunkReader(mmapThreshold);
+
+        readThread = new Thread() {
+            public void run() {
+                try {
+                    while (!shutdown) {
+                        readFile(jobs.take());
+                    }
+                } catch (InterruptedException e) {
+                    // shut down
+                }
+            }
+        };
+        readThread.setName("PipelinedChunkSource-read");
+        checksumThread = new Thread() {
+            public void run() {
+                CRC32 crc = new CRC32();
+                try {
+                    while (!shutdown) {
+                        Chunk chunk = read.take();
+                        if (chunk.kind == Chunk.DATA) {
+                            if (chunk.generation != generation) {
+                                free.add(chunk.buffer);
+                                continue;
+                            }
+                            crc.reset();
+                            crc.update(chunk.buffer.array(), 0, chunk.length);
+                            chunk.crc = crc.getValue();
+                        }
+                        checked.put(chunk);
+                    }
+                } catch (InterruptedException e) {
+                    // shut down
+                }
+            }
+        };
+        checksumThread.setName("PipelinedChunkSource-checksum");
+        readThread.start();
+        checksumThread.start();
+    }
+
+    /**
+     * The read stage, reads the file a chunk at a time into the ring until the end of the file or
+     * the file is abandoned.
+     */
+    private void readFile(Job job) throws InterruptedException {
+        if (job.generation != generation) {
+            closeQuietly(job.stream);
+            return;
+        }
+        ByteBuffer buffer = null;
+        try {
+            if (job.stream != null) {
+                reader.open(job.stream, job.startPosition);
+            } else {
+                reader.open(job.file, job.startPosition);
+            }
+            while (true) {
+                buffer = free.take();
+                if (job.generation != generation) {
+                    return;
+                }
+                buffer.clear();
+                int length = reader.read(buffer);
+                if (length == 0) {
+                    read.put(new Chunk(job.generation, Chunk.END, null, 0, null));
+                    return;
+                }
+                read.put(new Chunk(job.generation, Chunk.DATA, buffer, length, null));
+                buffer = null;
+            }
+        } catch (IOException e) {
+            read.put(new Chunk(job.generation, Chunk.ERROR, null, 0, e));
+        } finally {
+            if (buffer != null) {
+                free.add(buffer);
+            }
+            closeQuietly(reader);
+        }
+    }
+
+    @Override
+    public void open(File file, long startPosition) throws IOException {
+        begin(new Job(nextGeneration(), file, null, startPosition));
+    }
+
+    /**
+     * Reads from a stream that was already opened, eg. by a prefetching {@link DirectoryWalker}.
+     * The read stage closes it.
+     */
+    void open(FileInputStream stream, long startPosition) throws IOException {
+        begin(new Job(nextGeneration(), null, stream, startPosition));
+    }
+
+    private void begin(Job job) throws IOException {
+        if (shutdown) {
+            closeQuietly(job.stream);
+            throw new IOException("Read pipeline was shut down");
+        }
+        ended = false;
+        jobs.add(job);
+    }
+
+    private int nextGeneration() {
+        recycleCurrent();
+        return ++generation;
+    }
+
+    /**
+     * Copies the next chunk into the buffer, the chunk's CRC is only passed on when the whole
+     * chunk fits.
+     */
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        lastChunkCrc = -1;
+        if (ended) {
+            return 0;
+        }
+        if (current == null) {
+            Chunk chunk = take();
+            if (chunk.kind == Chunk.END) {
+                ended = true;
+                return 0;
+            }
+            if (chunk.kind == Chunk.ERROR) {
+                ended = true;
+                throw new IOException("Read stage failed", chunk.error);
+            }
+            current = chunk;
+            currentOffset = 0;
+        }
+
+        int length = Math.min(buffer.remaining(), current.length - currentOffset);
+        buffer.put(current.buffer.array(), currentOffset, length);
+        if (currentOffset == 0 && length == current.length) {
+            lastChunkCrc = current.crc;
+        }
+        currentOffset += length;
+        if (currentOffset == current.length) {
+            recycleCurrent();
+        }
+        return length;
+    }
+
+    /**
+     * @return the next chunk of the current file, chunks of files since abandoned are recycled
+     */
+    private Chunk take() throws IOException {
+        while (true) {
+            if (shutdown) {
+                throw new IOException("Read pipeline was shut down");
+            }
+            Chunk chunk;
+            try {
+                chunk = checked.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting on the read stage");
+            }
+            if (chunk == null) {
+                continue;
+            }
+            if (chunk.generation == generation) {
+                return chunk;
+            }
+            recycle(chunk);
+        }
+    }
+
+    @Override
+    public long getLastChunkCrc() {
+        return lastChunkCrc;
+    }
+
+    /**
+     * Abandons the rest of the file, the stages stop reading ahead.
+     */
+    @Override
+    public void close() {
+        nextGeneration();
+        ended = true;
+    }
+
+    /**
+     * Stops the stage threads and hands the ring's buffers back to the pool.
+     */
+    void shutdown() {
+        shutdown = true;
+        generation++;
+        readThread.interrupt();
+        checksumThread.interrupt();
+        try {
+            readThread.join(SHUTDOWN_JOIN_MILLIS);
+            checksumThread.join(SHUTDOWN_JOIN_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        recycleCurrent();
+        Chunk chunk;
+        while ((chunk = read.poll()) != null) {
+            recycle(chunk);
+        }
+        while ((chunk = checked.poll()) != null) {
+            recycle(chunk);
+        }
+        Job job;
+        while ((job = jobs.poll()) != null) {
+            closeQuietly(job.stream);
+        }
+        int returned = 0;
+        ByteBuffer buffer;
+        while ((buffer = free.poll()) != null) {
+            pool.release(buffer);
+            returned++;
+        }
+        if (returned < depth) {
+            // a stage didn't stop in time, its buffer is left to the GC
+            Log.w(TAG, "Read pipeline shut down with " + (depth - returned) + " buffers still in use");
+        }
+    }
+
+    private void recycleCurrent() {
+        if (current != null) {
+            recycle(current);
+            current = null;
+        }
+    }
+
+    private void recycle(Chunk chunk) {
+        if (chunk.buffer != null) {
+            free.add(chunk.buffer);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing was written through it
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.util.Comparator;
+
+/**
+ * Tunable settings for a {@link ConnectedDevice}. Values that are negotiated with the receiver
+ * are upper bounds, the receiver may always ask for less.
+ */
+public class PushOptions {
+    /**
+     * Fail the send when a file isn't acked in time
+     */
+    public static final int ACK_TIMEOUT_FAIL = 0;
+    /**
+     * Send the file again when it isn't acked in time, up to the max retransmits
+     */
+    public static final int ACK_TIMEOUT_RETRANSMIT = 1;
+
+    private int windowSize = 8;
+    private boolean negotiationEnabled;
+    private long helloTimeoutMillis = 1000;
+    private long ackTimeoutMillis = 30000;
+    private int ackTimeoutPolicy = ACK_TIMEOUT_RETRANSMIT;
+    private int maxRetransmits = 2;
+    private boolean compressionEnabled = true;
+    private byte[] compressionPreference = {FilePushMessage.COMPRESSION_DEFLATE, FilePushMessage.COMPRESSION_LZF};
+    private double compressionMaxRatio = 0.9;
+    private int maxResumeAttempts = 3;
+    private long resumeBackoffMillis = 1000;
+    private int chunkSize = 32 * 1024;
+    private long mmapThreshold = 1024 * 1024;
+    private int fanOutQueueChunks = 64;
+    private long fanOutStallTimeoutMillis = 15000;
+    private boolean persistentSession = false;
+    private long keepAliveIntervalMillis = 5000;
+    private int maxMissedKeepAlives = 3;
+    private long idleTimeoutMillis = 5 * 60 * 1000;
+    private long prewarmTimeoutMillis = 30 * 1000;
+    private Comparator<QueuedTransfer> transferOrdering = TransferQueue.PRIORITY;
+    private int walkPrefetch = 8;
+    private int packFileThreshold = 16 * 1024;
+    private int packMaxBytes = 256 * 1024;
+    private int packMaxFiles = 1024;
+    private int pipelineDepth = 4;
+    private long progressIntervalMillis = 250;
+    private boolean adaptiveLink = true;
+    private int stripeCount = 1;
+    private long stripeThreshold = 8 * 1024 * 1024;
+    private long watchDebounceMillis = 1000;
+    private long watchMaxBatchDelayMillis = 5000;
+    private TransferJournal journal;
+
+    /**
+     * @return the maximum number of files sent ahead of their acks, 1 is stop-and-wait
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public PushOptions setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be at least 1: " + windowSize);
+        }
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    /**
+     * @return whether each connection starts by offering the newer protocol with a HELLO. Off by
+     * default, nothing says the original receivers ignore a message type they don't know, so it
+     * is only turned on for receivers known to answer it, such as a PushReceiver
+     */
+    public boolean isNegotiationEnabled() {
+        return negotiationEnabled;
+    }
+
+    public PushOptions setNegotiationEnabled(boolean negotiationEnabled) {
+        this.negotiationEnabled = negotiationEnabled;
+        return this;
+    }
+
+    /**
+     * @return how long to wait for the receiver to answer the HELLO before falling back to the
+     * original protocol, 0 skips the handshake entirely
+     */
+    public long getHelloTimeoutMillis() {
+        return helloTimeoutMillis;
+    }
+
+    public PushOptions setHelloTimeoutMillis(long helloTimeoutMillis) {
+        this.helloTimeoutMillis = helloTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return how long after a file is completely written to wait for its ack
+     */
+    public long getAckTimeoutMillis() {
+        return ackTimeoutMillis;
+    }
+
+    public PushOptions setAckTimeoutMillis(long ackTimeoutMillis) {
+        if (ackTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Ack timeout must be positive: " + ackTimeoutMillis);
+        }
+        this.ackTimeoutMillis = ackTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return {@link #ACK_TIMEOUT_FAIL} or {@link #ACK_TIMEOUT_RETRANSMIT}, also applies to files
+     * the receiver rejects. Only a negotiated connection retransmits, with the original protocol a
+     * timed out file always fails the send
+     */
+    public int getAckTimeoutPolicy() {
+        return ackTimeoutPolicy;
+    }
+
+    public PushOptions setAckTimeoutPolicy(int ackTimeoutPolicy) {
+        this.ackTimeoutPolicy = ackTimeoutPolicy;
+        return this;
+    }
+
+    public int getMaxRetransmits() {
+        return maxRetransmits;
+    }
+
+    public PushOptions setMaxRetransmits(int maxRetransmits) {
+        this.maxRetransmits = maxRetransmits;
+        return this;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public PushOptions setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+        return this;
+    }
+
+    /**
+     * @return codecs in order of preference, the first one the receiver supports is used
+     */
+    public byte[] getCompressionPreference() {
+        return compressionPreference;
+    }
+
+    public PushOptions setCompressionPreference(byte... compressionPreference) {
+        this.compressionPreference = compressionPreference;
+        return this;
+    }
+
+    /**
+     * @return files whose sample doesn't compress below this fraction of its size are sent as is
+     */
+    public double getCompressionMaxRatio() {
+        return compressionMaxRatio;
+    }
+
+    public PushOptions setCompressionMaxRatio(double compressionMaxRatio) {
+        this.compressionMaxRatio = compressionMaxRatio;
+        return this;
+    }
+
+    /**
+     * @return how many times to reconnect and resume a send after the link drops, only with
+     * receivers that support resuming
+     */
+    public int getMaxResumeAttempts() {
+        return maxResumeAttempts;
+    }
+
+    public PushOptions setMaxResumeAttempts(int maxResumeAttempts) {
+        this.maxResumeAttempts = maxResumeAttempts;
+        return this;
+    }
+
+    /**
+     * @return the wait before the first reconnect, doubled after every failed attempt
+     */
+    public long getResumeBackoffMillis() {
+        return resumeBackoffMillis;
+    }
+
+    public PushOptions setResumeBackoffMillis(long resumeBackoffMillis) {
+        this.resumeBackoffMillis = resumeBackoffMillis;
+        return this;
+    }
+
+    /**
+     * @return the size of each read from the file, and of each compressed block or DATA frame
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public PushOptions setChunkSize(int chunkSize) {
+        if (chunkSize < 512) {
+            throw new IllegalArgumentException("Chunk size must be at least 512 bytes: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * @return files at least this long are read through a memory mapping, 0 never maps. A mapped
+     * file truncated while it is read can crash the process, use 0 for files that may still be
+     * written to
+     */
+    public long getMmapThreshold() {
+        return mmapThreshold;
+    }
+
+    public PushOptions setMmapThreshold(long mmapThreshold) {
+        this.mmapThreshold = mmapThreshold;
+        return this;
+    }
+
+    /**
+     * @return how many chunks a fan-out push's shared read stage may get ahead of each device
+     */
+    public int getFanOutQueueChunks() {
+        return fanOutQueueChunks;
+    }
+
+    public PushOptions setFanOutQueueChunks(int fanOutQueueChunks) {
+        if (fanOutQueueChunks < 1) {
+            throw new IllegalArgumentException("Fan-out queue must hold at least 1 chunk: " + fanOutQueueChunks);
+        }
+        this.fanOutQueueChunks = fanOutQueueChunks;
+        return this;
+    }
+
+    /**
+     * @return how long a fan-out device's queue may stay full before the device is detached from
+     * the shared read stage and left to read the files itself
+     */
+    public long getFanOutStallTimeoutMillis() {
+        return fanOutStallTimeoutMillis;
+    }
+
+    public PushOptions setFanOutStallTimeoutMillis(long fanOutStallTimeoutMillis) {
+        this.fanOutStallTimeoutMillis = fanOutStallTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return whether the connection stays open between sends, see {@link ConnectedDevice#openSession()}
+     */
+    public boolean isPersistentSession() {
+        return persistentSession;
+    }
+
+    public PushOptions setPersistentSession(boolean persistentSession) {
+        this.persistentSession = persistentSession;
+        return this;
+    }
+
+    /**
+     * @return how often an idle persistent session sends a KEEP_ALIVE
+     */
+    public long getKeepAliveIntervalMillis() {
+        return keepAliveIntervalMillis;
+    }
+
+    public PushOptions setKeepAliveIntervalMillis(long keepAliveIntervalMillis) {
+        if (keepAliveIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Keep alive interval must be positive: " + keepAliveIntervalMillis);
+        }
+        this.keepAliveIntervalMillis = keepAliveIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @return how many heartbeats in a row may go unanswered before the link is considered dead,
+     * only with receivers that answer them
+     */
+    public int getMaxMissedKeepAlives() {
+        return maxMissedKeepAlives;
+    }
+
+    public PushOptions setMaxMissedKeepAlives(int maxMissedKeepAlives) {
+        this.maxMissedKeepAlives = maxMissedKeepAlives;
+        return this;
+    }
+
+    /**
+     * @return how long a persistent session stays open with nothing to send
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public PushOptions setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return how long a prewarmed connection waits for a send without persistent sessions, it
+     * is closed if nothing is sent by then
+     */
+    public long getPrewarmTimeoutMillis() {
+        return prewarmTimeoutMillis;
+    }
+
+    public PushOptions setPrewarmTimeoutMillis(long prewarmTimeoutMillis) {
+        this.prewarmTimeoutMillis = prewarmTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return which queued send goes next, eg. {@link TransferQueue#SHORTEST_FIRST}
+     */
+    public Comparator<QueuedTransfer> getTransferOrdering() {
+        return transferOrdering;
+    }
+
+    public PushOptions setTransferOrdering(Comparator<QueuedTransfer> transferOrdering) {
+        this.transferOrdering = transferOrdering;
+        return this;
+    }
+
+    /**
+     * @return how many directories and files the directory walk may get ahead of the send, each
+     * prefetched file is held open
+     */
+    public int getWalkPrefetch() {
+        return walkPrefetch;
+    }
+
+    public PushOptions setWalkPrefetch(int walkPrefetch) {
+        if (walkPrefetch < 1) {
+            throw new IllegalArgumentException("Walk prefetch must be at least 1: " + walkPrefetch);
+        }
+        this.walkPrefetch = walkPrefetch;
+        return this;
+    }
+
+    /**
+     * @return files no longer than this are bundled into packs, with receivers that support them
+     */
+    public int getPackFileThreshold() {
+        return packFileThreshold;
+    }
+
+    public PushOptions setPackFileThreshold(int packFileThreshold) {
+        this.packFileThreshold = packFileThreshold;
+        return this;
+    }
+
+    /**
+     * @return the most file contents a single pack holds
+     */
+    public int getPackMaxBytes() {
+        return packMaxBytes;
+    }
+
+    public PushOptions setPackMaxBytes(int packMaxBytes) {
+        this.packMaxBytes = packMaxBytes;
+        return this;
+    }
+
+    /**
+     * @return the most files a single pack holds
+     */
+    public int getPackMaxFiles() {
+        return packMaxFiles;
+    }
+
+    public PushOptions setPackMaxFiles(int packMaxFiles) {
+        if (packMaxFiles < 1 || packMaxFiles > 0xFFFF) {
+            throw new IllegalArgumentException("Packs must hold between 1 and 65535 files: " + packMaxFiles);
+        }
+        this.packMaxFiles = packMaxFiles;
+        return this;
+    }
+
+    /**
+     * @return how many chunks the read and checksum stages may get ahead of the socket write, 0
+     * reads and checksums on the sending thread
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public PushOptions setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 0) {
+            throw new IllegalArgumentException("Pipeline depth can't be negative: " + pipelineDepth);
+        }
+        this.pipelineDepth = pipelineDepth;
+        return this;
+    }
+
+    /**
+     * @return the least time between two PROGRESS messages from a send, 0 publishes none
+     */
+    public long getProgressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    public PushOptions setProgressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @return whether the window, chunk size and flush cadence adapt to the measured link, within
+     * the window size and chunk size set here, see {@link LinkTuner}
+     */
+    public boolean isAdaptiveLink() {
+        return adaptiveLink;
+    }
+
+    public PushOptions setAdaptiveLink(boolean adaptiveLink) {
+        this.adaptiveLink = adaptiveLink;
+        return this;
+    }
+
+    /**
+     * @return how many channels a large file is spread over, including the device's own, 1 never
+     * opens extra channels. Only used with receivers that support it and devices given a
+     * {@link TransportFactory} for the extra channels.
+     */
+    public int getStripeCount() {
+        return stripeCount;
+    }
+
+    public PushOptions setStripeCount(int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("Stripe count must be at least 1: " + stripeCount);
+        }
+        this.stripeCount = stripeCount;
+        return this;
+    }
+
+    /**
+     * @return files at least this long are spread over the extra channels
+     */
+    public long getStripeThreshold() {
+        return stripeThreshold;
+    }
+
+    public PushOptions setStripeThreshold(long stripeThreshold) {
+        this.stripeThreshold = stripeThreshold;
+        return this;
+    }
+
+    /**
+     * @return how long a file in a watched folder must go unchanged before it is pushed, so files
+     * still being written aren't sent half done, see {@link FolderWatcher}
+     */
+    public long getWatchDebounceMillis() {
+        return watchDebounceMillis;
+    }
+
+    public PushOptions setWatchDebounceMillis(long watchDebounceMillis) {
+        if (watchDebounceMillis < 0) {
+            throw new IllegalArgumentException("Watch debounce can't be negative: " + watchDebounceMillis);
+        }
+        this.watchDebounceMillis = watchDebounceMillis;
+        return this;
+    }
+
+    /**
+     * @return the longest a changed file in a watched folder waits for the rest of the folder to
+     * settle, so a folder that is written to all the time is still pushed
+     */
+    public long getWatchMaxBatchDelayMillis() {
+        return watchMaxBatchDelayMillis;
+    }
+
+    public PushOptions setWatchMaxBatchDelayMillis(long watchMaxBatchDelayMillis) {
+        if (watchMaxBatchDelayMillis < 0) {
+            throw new IllegalArgumentException("Watch batch delay can't be negative: " + watchMaxBatchDelayMillis);
+        }
+        this.watchMaxBatchDelayMillis = watchMaxBatchDelayMillis;
+        return this;
+    }
+
+    /**
+     * @return where delivered files are recorded, so they are skipped by later sends even after
+     * the app restarts, null to record nothing
+     */
+    public TransferJournal getJournal() {
+        return journal;
+    }
+
+    public PushOptions setJournal(TransferJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+}
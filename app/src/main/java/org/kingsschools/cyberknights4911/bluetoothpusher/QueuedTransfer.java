@@ -0,0 +1,128 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A file or directory waiting in a device's {@link TransferQueue}.
+ */
+public class QueuedTransfer {
+    private final File path;
+    // only these files from under the path are sent, null to send all of it
+    private Set<File> files;
+    private final long sequence;
+    private final long enqueuedAtNanos;
+    private int priority;
+    private volatile long size = -1;
+
+    QueuedTransfer(File path, Collection<File> files, int priority, long sequence) {
+        this.path = path;
+        this.files = files == null ? null : new LinkedHashSet<>(files);
+        this.priority = priority;
+        this.sequence = sequence;
+        this.enqueuedAtNanos = System.nanoTime();
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    /**
+     * @return the files from under the path to send, in the order queued, or null when the whole
+     * path is sent
+     */
+    public List<File> getFiles() {
+        synchronized (this) {
+            return files == null ? null : new ArrayList<>(files);
+        }
+    }
+
+    /**
+     * Adds the files of a batch queued for the same path while this one waits. Either being the
+     * whole path makes the result the whole path.
+     */
+    void merge(Collection<File> files) {
+        synchronized (this) {
+            if (files == null || this.files == null) {
+                this.files = null;
+            } else {
+                this.files.addAll(files);
+            }
+        }
+        size = -1;
+    }
+
+    /**
+     * @return higher priorities are sent first by {@link TransferQueue#PRIORITY}
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    void raisePriority(int priority) {
+        this.priority = Math.max(this.priority, priority);
+    }
+
+    /**
+     * @return the order transfers were queued in, lower was queued earlier
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    long getEnqueuedAtNanos() {
+        return enqueuedAtNanos;
+    }
+
+    /**
+     * @return the total length of the files to send, measured once when first asked for. For a
+     * directory that walks the whole tree, so it isn't asked for on the sending thread.
+     */
+    public long getSize() {
+        long size = this.size;
+        if (size < 0) {
+            List<File> files = getFiles();
+            if (files == null) {
+                size = sizeOf(path);
+            } else {
+                size = 0;
+                for (File file : files) {
+                    size += file.length();
+                }
+            }
+            this.size = size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the size if it has already been measured, otherwise -1
+     */
+    long getKnownSize() {
+        return size;
+    }
+
+    private static long sizeOf(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        List<File> files = getFiles();
+        return path + (files == null ? "" : " (" + files.size() + " files)") + " (priority " + priority + ")";
+    }
+}
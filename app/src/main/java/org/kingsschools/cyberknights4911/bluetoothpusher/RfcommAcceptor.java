@@ -0,0 +1,42 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Accepts pushers over bluetooth RFCOMM, advertising the pusher service so paired devices can
+ * find this one.
+ */
+public class RfcommAcceptor implements TransportAcceptor {
+    private static final String SERVICE_NAME = "CyberKnightsBluetoothPusher";
+
+    private final UUID serviceUuid;
+    private final BluetoothServerSocket serverSocket;
+
+    public RfcommAcceptor(BluetoothAdapter adapter) throws IOException {
+        this(adapter, BluetoothPusherService.CYBERKNIGHT_BLUETOOTH_PUSHER_UUID);
+    }
+
+    public RfcommAcceptor(BluetoothAdapter adapter, UUID serviceUuid) throws IOException {
+        this.serviceUuid = serviceUuid;
+        this.serverSocket = adapter.listenUsingRfcommWithServiceRecord(SERVICE_NAME, serviceUuid);
+    }
+
+    @Override
+    public Transport accept() throws IOException {
+        return new RfcommTransport(serverSocket.accept());
+    }
+
+    @Override
+    public String getAddress() {
+        return "rfcomm:" + serviceUuid;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
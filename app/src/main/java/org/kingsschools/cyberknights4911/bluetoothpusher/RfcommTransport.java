@@ -0,0 +1,94 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * A transport over a bluetooth RFCOMM socket to the pusher service on a paired device.
+ */
+public class RfcommTransport implements Transport {
+    private final BluetoothDevice device;
+    private final UUID serviceUuid;
+    private BluetoothSocket socket;
+
+    public RfcommTransport(BluetoothDevice device) {
+        this(device, BluetoothPusherService.CYBERKNIGHT_BLUETOOTH_PUSHER_UUID);
+    }
+
+    public RfcommTransport(BluetoothDevice device, UUID serviceUuid) {
+        this.device = device;
+        this.serviceUuid = serviceUuid;
+    }
+
+    /**
+     * Wraps an already connected socket, such as one returned from a server socket accept.
+     */
+    public RfcommTransport(BluetoothSocket socket) {
+        this(socket.getRemoteDevice(), BluetoothPusherService.CYBERKNIGHT_BLUETOOTH_PUSHER_UUID);
+        this.socket = socket;
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if (isConnected()) {
+            return;
+        }
+        // a bluetooth socket can't be reconnected once closed, so always start from a new one
+        socket = device.createRfcommSocketToServiceRecord(serviceUuid);
+        socket.connect();
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return socket != null && socket.isConnected();
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        checkConnected();
+        return socket.getInputStream();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        checkConnected();
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return device.getName();
+    }
+
+    @Override
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    @Override
+    public String getLinkType() {
+        return LinkTypes.RFCOMM;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    private void checkConnected() throws IOException {
+        if (socket == null) {
+            throw new IOException("Not connected to: " + device.getName());
+        }
+    }
+}
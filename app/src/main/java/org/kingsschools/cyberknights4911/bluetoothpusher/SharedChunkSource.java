@@ -0,0 +1,236 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One device's view of a {@link FanOutPush}: the chunks the shared read stage has read, in the
+ * order it walked the tree, through a bounded queue. Files the device skips are discarded from the
+ * queue, files it asks for that the stage has already passed, or anything after the device has
+ * been detached, are read from the file system instead.
+ */
+class SharedChunkSource implements ChunkSource {
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * A chunk shared by every attached device, its buffer goes back to the pool once each of them
+     * has let go of it. Markers start and end each file, and the whole stream.
+     */
+    static class SharedChunk {
+        static final int FILE_START = 0;
+        static final int DATA = 1;
+        static final int FILE_END = 2;
+        static final int END_OF_STREAM = 3;
+
+        final int kind;
+        final File file;
+        final ByteBuffer buffer;
+        final int length;
+        final long crc;
+        private final AtomicInteger references = new AtomicInteger();
+        private final BufferPool pool;
+
+        SharedChunk(int kind, File file, ByteBuffer buffer, int length, long crc, BufferPool pool) {
+            this.kind = kind;
+            this.file = file;
+            this.buffer = buffer;
+            this.length = length;
+            this.crc = crc;
+            this.pool = pool;
+        }
+
+        void retain(int count) {
+            references.addAndGet(count);
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && pool != null) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    private final BlockingQueue<SharedChunk> queue;
+    private final FileChunkReader local;
+    private volatile boolean detached;
+    private boolean streamEnded;
+    // files whose start the device has already seen go by, asking for one again means reading it locally
+    private final Set<File> passed = new HashSet<>();
+
+    private File file;
+    private long position;
+    private boolean reading;
+    private boolean readingLocally;
+    private SharedChunk current;
+    private int currentOffset;
+    private long lastChunkCrc = -1;
+
+    SharedChunkSource(int capacity, long mmapThreshold) {
+        queue = new ArrayBlockingQueue<>(capacity);
+        local = new FileChunkReader(mmapThreshold);
+    }
+
+    /**
+     * Called by the read stage, blocks while the queue is full.
+     *
+     * @return false if the chunk wasn't queued within the timeout, or the device was detached
+     */
+    boolean offer(SharedChunk chunk, long timeoutMillis) throws InterruptedException {
+        return !detached && queue.offer(chunk, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * Stops taking chunks from the read stage, the device reads the rest itself. Safe to call from
+     * either thread, the chunks still queued are released.
+     */
+    void detach() {
+        detached = true;
+        SharedChunk chunk;
+        while ((chunk = queue.poll()) != null) {
+            chunk.release();
+        }
+    }
+
+    @Override
+    public void open(File file, long startPosition) throws IOException {
+        releaseCurrent();
+        local.close();
+        this.file = file;
+        position = startPosition;
+        reading = true;
+        readingLocally = startPosition != 0 || !seek(file);
+        if (readingLocally) {
+            local.open(file, startPosition);
+        }
+    }
+
+    /**
+     * Discards queued chunks up to the start of the file.
+     *
+     * @return false if the file won't be coming from the read stage
+     */
+    private boolean seek(File file) throws IOException {
+        if (passed.contains(file)) {
+            return false;
+        }
+        while (true) {
+            SharedChunk chunk = take();
+            if (chunk == null) {
+                return false;
+            }
+            int kind = chunk.kind;
+            File chunkFile = chunk.file;
+            chunk.release();
+            if (kind == SharedChunk.END_OF_STREAM) {
+                streamEnded = true;
+                return false;
+            }
+            if (kind == SharedChunk.FILE_START) {
+                passed.add(chunkFile);
+                if (chunkFile.equals(file)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the next chunk, or null once the device is detached or the stream has ended
+     */
+    private SharedChunk take() throws IOException {
+        while (!streamEnded) {
+            try {
+                SharedChunk chunk = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    return chunk;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting on the read stage");
+            }
+            if (detached) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        lastChunkCrc = -1;
+        if (!reading) {
+            return 0;
+        }
+        if (!readingLocally && current == null) {
+            current = take();
+            currentOffset = 0;
+            if (current == null) {
+                // detached part way through the file, carry on from where the shared chunks stopped
+                readingLocally = true;
+                local.open(file, position);
+            } else if (current.kind != SharedChunk.DATA) {
+                if (current.kind == SharedChunk.END_OF_STREAM) {
+                    streamEnded = true;
+                }
+                releaseCurrent();
+                reading = false;
+                return 0;
+            }
+        }
+        if (readingLocally) {
+            int read = local.read(buffer);
+            position += read;
+            return read;
+        }
+
+        int length = Math.min(buffer.remaining(), current.length - currentOffset);
+        buffer.put(current.buffer.array(), currentOffset, length);
+        if (currentOffset == 0 && length == current.length) {
+            lastChunkCrc = current.crc;
+        }
+        currentOffset += length;
+        position += length;
+        if (currentOffset == current.length) {
+            releaseCurrent();
+        }
+        return length;
+    }
+
+    @Override
+    public long getLastChunkCrc() {
+        return lastChunkCrc;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reading = false;
+        local.close();
+    }
+
+    /**
+     * The device's send has finished, called on its sending thread.
+     */
+    void finish() {
+        releaseCurrent();
+        detach();
+    }
+
+    private void releaseCurrent() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+}
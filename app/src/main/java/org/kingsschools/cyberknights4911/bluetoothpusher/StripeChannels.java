@@ -0,0 +1,376 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.kingsschools.cyberknights4911.bluetoothpusher.BluetoothPusherService.TAG;
+
+/**
+ * The channels a large file is striped over, the device's own and the extra ones opened to the
+ * same receiver, each written by a thread of its own. The send loop reads and checksums the file
+ * into a small ring of chunk buffers and hands each chunk to the channel with the least queued,
+ * so a faster channel ends up carrying more of the file. Every chunk carries its offset, the
+ * receiver writes it in place whichever channel it came over.
+ * <p>
+ * On the device's own channel the chunks are DATA frames inside the STRIPED_FILE message, on the
+ * extra channels each is a STRIPE_DATA message. Chunks are compressed on the channel's thread.
+ */
+class StripeChannels implements Closeable {
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+    // chunks in the ring per channel, enough that no channel waits on the send loop
+    private static final int CHUNKS_PER_CHANNEL = 3;
+    private static final long POLL_MILLIS = 100;
+    private static final long CLOSE_JOIN_MILLIS = 1000;
+
+    private static class Chunk {
+        final int sequence;
+        final long offset;
+        final ByteBuffer buffer;
+        final int length;
+        final long crc;
+        // with FEATURE_MERKLE the leaf hash sent in place of the CRC
+        final byte[] leaf;
+        final byte compression;
+
+        Chunk(int sequence, long offset, ByteBuffer buffer, int length, long crc, byte[] leaf, byte compression) {
+            this.sequence = sequence;
+            this.offset = offset;
+            this.buffer = buffer;
+            this.length = length;
+            this.crc = crc;
+            this.leaf = leaf;
+            this.compression = compression;
+        }
+    }
+
+    // tells a channel to flush what it has written
+    private static final Chunk FLUSH = new Chunk(0, 0, null, 0, 0, null, FilePushMessage.COMPRESSION_NONE);
+
+    /**
+     * One channel and the thread writing to it
+     */
+    private class Channel {
+        // null for the device's own channel, which isn't ours to close
+        final Transport transport;
+        final DataOutputStream out;
+        final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        final Codec[] codecs = new Codec[8];
+        ByteBuffer compressed;
+        Thread thread;
+
+        Channel(Transport transport, DataOutputStream out) {
+            this.transport = transport;
+            this.out = out;
+        }
+
+        void start(String name) {
+            thread = new Thread() {
+                public void run() {
+                    try {
+                        while (!closed) {
+                            Chunk chunk = queue.take();
+                            if (chunk == FLUSH) {
+                                flush();
+                            } else {
+                                write(chunk);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            };
+            thread.setName(name);
+            thread.start();
+        }
+
+        private void flush() {
+            if (failure == null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+            flushed.countDown();
+        }
+
+        private void write(Chunk chunk) {
+            try {
+                if (failure == null) {
+                    writeFrame(chunk);
+                }
+            } catch (IOException e) {
+                fail(e);
+            } finally {
+                free.add(chunk.buffer);
+            }
+        }
+
+        private void writeFrame(Chunk chunk) throws IOException {
+            byte[] wire = chunk.buffer.array();
+            int wireLength = chunk.length;
+            if (chunk.compression != FilePushMessage.COMPRESSION_NONE) {
+                Codec codec = getCodec(chunk.compression);
+                int compressedLength = codec.compress(wire, 0, chunk.length, compressed.array(), 0);
+                // a chunk that didn't compress is stored
+                if (compressedLength < chunk.length) {
+                    wire = compressed.array();
+                    wireLength = compressedLength;
+                }
+            }
+
+            if (transport != null) {
+                out.writeByte(FilePushMessage.TYPE_STRIPE_DATA);
+                out.writeInt(chunk.sequence);
+            }
+            out.writeByte(FilePushMessage.FRAME_DATA);
+            out.writeLong(chunk.offset);
+            out.writeInt(chunk.length);
+            out.writeInt(wireLength);
+            out.write(wire, 0, wireLength);
+            if (chunk.leaf != null) {
+                out.write(chunk.leaf);
+            } else {
+                out.writeInt((int) chunk.crc);
+            }
+        }
+
+        private Codec getCodec(byte id) {
+            if (codecs[id] == null) {
+                codecs[id] = Codecs.create(id);
+            }
+            Codec codec = codecs[id];
+            int maxCompressed = codec.maxCompressedLength(chunkSize);
+            if (compressed == null || compressed.capacity() < maxCompressed) {
+                pool.release(compressed);
+                compressed = pool.acquire(maxCompressed);
+            }
+            return codec;
+        }
+    }
+
+    private final BufferPool pool;
+    private final int chunkSize;
+    private final List<Channel> channels = new ArrayList<>();
+    // the ring, buffers not holding a chunk
+    private final BlockingQueue<ByteBuffer> free;
+    // each ring buffer's leaf hash, written with the chunk it holds so nothing is allocated per chunk
+    private final Map<ByteBuffer, byte[]> leaves = new IdentityHashMap<>();
+    private final int ringSize;
+    private volatile CountDownLatch flushed = new CountDownLatch(0);
+    private volatile IOException failure;
+    private volatile boolean closed;
+    // where the search for the least busy channel starts, so ties are spread around
+    private int nextChannel;
+
+    private StripeChannels(DataOutputStream deviceOut, int chunkSize, int channelCount, BufferPool pool) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        channels.add(new Channel(null, deviceOut));
+        ringSize = channelCount * CHUNKS_PER_CHANNEL;
+        free = new ArrayBlockingQueue<>(ringSize);
+        for (int i = 0; i < ringSize; i++) {
+            ByteBuffer buffer = pool.acquire(chunkSize);
+            leaves.put(buffer, new byte[MerkleTree.HASH_LENGTH]);
+            free.add(buffer);
+        }
+    }
+
+    /**
+     * Connects the extra channels and joins each one to the receiver's session.
+     *
+     * @param deviceOut the device's own channel, only written between the STRIPED_FILE header and
+     *                  its END frame
+     * @param token     the receiver's stripe token from its HELLO
+     * @param metrics   the bytes written to the extra channels are counted here too
+     * @throws IOException if any of the extra channels can't be opened, the ones that were are closed
+     */
+    static StripeChannels open(DataOutputStream deviceOut, List<Transport> extras, int token,
+                               int chunkSize, BufferPool pool, DeviceMetrics metrics) throws IOException {
+        StripeChannels stripes = new StripeChannels(deviceOut, chunkSize, extras.size() + 1, pool);
+        try {
+            for (Transport transport : extras) {
+                transport.connect();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new CountingOutputStream(transport.getOutputStream(), metrics), OUTPUT_BUFFER_SIZE));
+                stripes.channels.add(stripes.new Channel(transport, out));
+                out.writeByte(FilePushMessage.TYPE_STRIPE_JOIN);
+                out.writeInt(token);
+                out.flush();
+                Log.d(TAG, "Opened stripe channel to " + transport.getName());
+            }
+        } catch (IOException e) {
+            for (Transport transport : extras) {
+                closeQuietly(transport);
+            }
+            stripes.close();
+            throw e;
+        }
+        for (int i = 0; i < stripes.channels.size(); i++) {
+            stripes.channels.get(i).start("StripeChannels-" + i);
+        }
+        return stripes;
+    }
+
+    int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * @return an empty chunk buffer from the ring, once a channel has finished with one
+     */
+    ByteBuffer acquire() throws IOException {
+        while (true) {
+            checkFailure();
+            ByteBuffer buffer;
+            try {
+                buffer = free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting on the stripe channels");
+            }
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+    }
+
+    /**
+     * Gives back a buffer from {@link #acquire()} that wasn't submitted.
+     */
+    void release(ByteBuffer buffer) {
+        free.add(buffer);
+    }
+
+    /**
+     * Queues a chunk on the channel with the fewest chunks waiting, the buffer goes back to the
+     * ring once it has been written.
+     *
+     * @param leaf the chunk's leaf hash to send instead of the CRC, or null. It is copied, the
+     *             caller's array can be reused straight away
+     */
+    void submit(int sequence, long offset, ByteBuffer buffer, int length, long crc, byte[] leaf, byte compression) throws IOException {
+        checkFailure();
+        if (leaf != null) {
+            byte[] slot = leaves.get(buffer);
+            System.arraycopy(leaf, 0, slot, 0, slot.length);
+            leaf = slot;
+        }
+        Channel least = null;
+        for (int i = 0; i < channels.size(); i++) {
+            Channel channel = channels.get((nextChannel + i) % channels.size());
+            if (least == null || channel.queue.size() < least.queue.size()) {
+                least = channel;
+            }
+        }
+        nextChannel = (nextChannel + 1) % channels.size();
+        least.queue.add(new Chunk(sequence, offset, buffer, length, crc, leaf, compression));
+    }
+
+    /**
+     * Blocks until every chunk submitted has been written and flushed on its channel.
+     */
+    void finish() throws IOException {
+        CountDownLatch latch = new CountDownLatch(channels.size());
+        flushed = latch;
+        for (Channel channel : channels) {
+            channel.queue.add(FLUSH);
+        }
+        while (true) {
+            checkFailure();
+            try {
+                if (latch.await(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting on the stripe channels");
+            }
+        }
+        checkFailure();
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (closed) {
+            throw new IOException("Stripe channels were closed");
+        }
+        if (failure != null) {
+            throw new IOException("Stripe channel failed", failure);
+        }
+    }
+
+    /**
+     * Stops the channel threads, closes the extra channels and hands the buffers back to the pool.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Channel channel : channels) {
+            if (channel.thread != null) {
+                channel.thread.interrupt();
+            }
+            if (channel.transport != null) {
+                closeQuietly(channel.transport);
+            }
+        }
+        int returned = 0;
+        for (Channel channel : channels) {
+            if (channel.thread != null) {
+                try {
+                    channel.thread.join(CLOSE_JOIN_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Chunk chunk;
+            while ((chunk = channel.queue.poll()) != null) {
+                if (chunk.buffer != null) {
+                    pool.release(chunk.buffer);
+                    returned++;
+                }
+            }
+            pool.release(channel.compressed);
+            channel.compressed = null;
+        }
+        ByteBuffer buffer;
+        while ((buffer = free.poll()) != null) {
+            pool.release(buffer);
+            returned++;
+        }
+        if (returned < ringSize) {
+            // a channel thread didn't stop in time, its buffer is left to the GC
+            Log.w(TAG, "Stripe channels closed with " + (ringSize - returned) + " buffers still in use");
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing more can be done with it
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Remembers on disk which files have been delivered to which device, so a send after the app
+ * restarts, or crashes part way, skips them without asking the receiver. Set one in the
+ * {@link PushOptions} and every acked file is recorded. A file is skipped while its length and
+ * modification time are the same as when it was delivered, any change sends it again.
+ * <p>
+ * The journal is append only, each delivery a fixed 12 byte record: an 8 byte fingerprint of the
+ * device address and the file's source and destination paths, then a 4 byte fingerprint of its
+ * length and modification time. Loading it is one sequential read into a {@link FingerprintIndex}
+ * where a later record replaces an earlier one for the same file. A crash can only leave a torn
+ * record at the end, which is cut off. Once most of the records have been superseded the journal
+ * is compacted, rewritten with just the latest record for each file and swapped in by a rename.
+ * <p>
+ * Files are only told apart by fingerprint, so two could in principle collide, which the 64 bit
+ * key makes vanishingly unlikely even for millions of files, and a change to a file goes unnoticed
+ * about one time in four billion. The records are buffered, deliveries not yet flushed when the
+ * app dies are sent again, never wrongly skipped.
+ */
+public class TransferJournal implements Closeable {
+    private static final String TAG = BluetoothPusherService.TAG;
+    private static final int MAGIC = 0x424A524E;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    static final int RECORD_SIZE = 12;
+    // compacted once this many records are in the file and under half of them are current
+    static final int MIN_COMPACT_RECORDS = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final FingerprintIndex index;
+    private DataOutputStream out;
+    // records in the file, current or superseded, including those still buffered
+    private long recordCount;
+    private boolean closed;
+
+    private TransferJournal(File file, FingerprintIndex index, long recordCount) {
+        this.file = file;
+        this.index = index;
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * Loads the journal, creating it if there is none. A journal that can't be read, such as one
+     * from a newer version of the app, is started over.
+     */
+    public static TransferJournal open(File file) throws IOException {
+        long length = file.length();
+        long records = Math.max(0, (length - HEADER_SIZE) / RECORD_SIZE);
+        FingerprintIndex index = new FingerprintIndex((int) Math.min(records, Integer.MAX_VALUE / 2));
+        if (length > 0 && !load(file, index, records)) {
+            Log.w(TAG, "Journal " + file + " is unreadable, starting it over");
+            index.clear();
+            records = 0;
+            length = 0;
+        }
+
+        TransferJournal journal = new TransferJournal(file, index, records);
+        if (length == 0) {
+            journal.rewrite();
+        } else {
+            if (length != HEADER_SIZE + records * RECORD_SIZE) {
+                // a record torn by a crash, the delivery is sent again
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(HEADER_SIZE + records * RECORD_SIZE);
+                }
+            }
+            journal.openForAppend();
+            journal.compactIfDue();
+        }
+        Log.d(TAG, "Journal " + file + " loaded with " + index.size() + " files from " + records + " records");
+        return journal;
+    }
+
+    /**
+     * @return false if the header isn't this version's
+     */
+    private static boolean load(File file, FingerprintIndex index, long records) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE - BUFFER_SIZE % RECORD_SIZE];
+            if (readFully(in, buffer, HEADER_SIZE) < HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.wrap(buffer, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return false;
+            }
+            long remaining = records;
+            while (remaining > 0) {
+                int count = (int) Math.min(remaining, buffer.length / RECORD_SIZE);
+                if (readFully(in, buffer, count * RECORD_SIZE) < count * RECORD_SIZE) {
+                    throw new IOException("Journal " + file + " shrank while loading");
+                }
+                ByteBuffer batch = ByteBuffer.wrap(buffer, 0, count * RECORD_SIZE);
+                for (int i = 0; i < count; i++) {
+                    long key = batch.getLong();
+                    int version = batch.getInt();
+                    if (key != 0 && version != 0) {
+                        index.put(key, version);
+                    }
+                }
+                remaining -= count;
+            }
+            return true;
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * @return whether the file was delivered to the device as it is now, to the same destination
+     */
+    public synchronized boolean isDelivered(String address, File source, String destinationPath) {
+        int version = index.get(key(address, source, destinationPath));
+        return version != 0 && version == version(source.length(), source.lastModified());
+    }
+
+    /**
+     * Records that the device has the file, as it was when it was sent.
+     */
+    public synchronized void delivered(String address, File source, String destinationPath,
+                                       long length, long lastModified) throws IOException {
+        if (closed) {
+            throw new IOException("Journal " + file + " is closed");
+        }
+        long key = key(address, source, destinationPath);
+        int version = version(length, lastModified);
+        if (index.get(key) == version) {
+            return;
+        }
+        index.put(key, version);
+        out.writeLong(key);
+        out.writeInt(version);
+        recordCount++;
+        compactIfDue();
+    }
+
+    /**
+     * Writes the buffered records to the file.
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Forgets every delivery, such as when a receiver's storage has been wiped.
+     */
+    public synchronized void clear() throws IOException {
+        if (closed) {
+            throw new IOException("Journal " + file + " is closed");
+        }
+        index.clear();
+        out.close();
+        rewrite();
+    }
+
+    /**
+     * @return how many files are recorded as delivered, across every device
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the records in the file, the superseded ones go at the next compaction
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+        }
+    }
+
+    private void compactIfDue() throws IOException {
+        if (recordCount >= MIN_COMPACT_RECORDS && recordCount > 2L * index.size()) {
+            long before = recordCount;
+            out.close();
+            rewrite();
+            Log.d(TAG, "Compacted journal " + file + " from " + before + " to " + recordCount + " records");
+        }
+    }
+
+    /**
+     * Writes the current records to a new file and swaps it in, then appends to it from there.
+     */
+    private void rewrite() throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(compacted)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                long key = index.keyAt(slot);
+                if (key != 0) {
+                    data.writeLong(key);
+                    data.writeInt(index.valueAt(slot));
+                }
+            }
+            data.flush();
+            // on disk before it replaces the old journal, or a crash could lose both
+            stream.getFD().sync();
+        }
+        if (!compacted.renameTo(file)) {
+            throw new IOException("Could not replace journal " + file);
+        }
+        recordCount = index.size();
+        openForAppend();
+    }
+
+    private void openForAppend() throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+    }
+
+    private static long key(String address, File source, String destinationPath) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, address);
+        hash = fnv(hash, source.getAbsolutePath());
+        hash = fnv(hash, destinationPath);
+        hash = mix(hash);
+        return hash != 0 ? hash : 1;
+    }
+
+    private static int version(long length, long lastModified) {
+        int version = (int) mix(length * 0x9E3779B97F4A7C15L + lastModified);
+        return version != 0 ? version : 1;
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, with a separator so the fields can't run into each other
+     */
+    private static long fnv(long hash, String value) {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= 0xFF;
+        hash *= 0x100000001b3L;
+        return hash;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreads every input bit over the whole result
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
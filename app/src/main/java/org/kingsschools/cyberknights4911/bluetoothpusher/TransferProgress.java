@@ -0,0 +1,147 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live progress of the send in progress on one device. A single instance per device is updated in
+ * place by the sending thread and handed to the UI as the obj of
+ * {@link BluetoothPusherService.StatusMessageTypes#PROGRESS} messages, so reporting allocates
+ * nothing per update. The values are read through the getters, which always return a consistent
+ * view even while the send carries on.
+ */
+public class TransferProgress {
+    // weight of the newest sample in the smoothed rate
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final String deviceName;
+    private final long intervalNanos;
+
+    private File path;
+    // when the send started, tells a late measurement which send it was for
+    private long startNanos;
+    private File currentFile;
+    private long totalBytes;
+    private long bytesDone;
+    private double bytesPerSecond;
+    private long lastPublishNanos;
+    private long lastSampleNanos;
+    private long lastSampleBytes;
+
+    /**
+     * @param intervalMillis the least time between two updates that are published
+     */
+    TransferProgress(String deviceName, long intervalMillis) {
+        this.deviceName = deviceName;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * @param totalBytes the length of everything to send, or 0 or less while it isn't known yet
+     */
+    synchronized void start(File path, long totalBytes, long now) {
+        this.path = path;
+        startNanos = now;
+        this.totalBytes = totalBytes;
+        currentFile = null;
+        bytesDone = 0;
+        bytesPerSecond = 0;
+        lastPublishNanos = now;
+        lastSampleNanos = now;
+        lastSampleBytes = 0;
+    }
+
+    /**
+     * Fills in the total of a send that started before it was measured.
+     *
+     * @param startNanos when the send that was measured started, a later send is left alone
+     */
+    synchronized void setTotalBytes(long startNanos, long totalBytes) {
+        if (startNanos != this.startNanos) {
+            return;
+        }
+        this.totalBytes = totalBytes;
+        if (totalBytes > 0 && bytesDone > totalBytes) {
+            bytesDone = totalBytes;
+        }
+    }
+
+    synchronized void setCurrentFile(File currentFile) {
+        this.currentFile = currentFile;
+    }
+
+    /**
+     * Counts bytes sent, or skipped because the receiver already has them.
+     *
+     * @return whether the update should be published, at most once per interval
+     */
+    synchronized boolean advance(long bytes, long now) {
+        bytesDone += bytes;
+        if (totalBytes > 0 && bytesDone > totalBytes) {
+            // files grew since they were measured, or a resumed file is being sent again
+            bytesDone = totalBytes;
+        }
+        if (now - lastPublishNanos < intervalNanos) {
+            return false;
+        }
+        lastPublishNanos = now;
+        double rate = (bytesDone - lastSampleBytes) * (double) TimeUnit.SECONDS.toNanos(1) / (now - lastSampleNanos);
+        bytesPerSecond = bytesPerSecond == 0 ? rate : bytesPerSecond + RATE_SMOOTHING * (rate - bytesPerSecond);
+        lastSampleNanos = now;
+        lastSampleBytes = bytesDone;
+        return true;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    /**
+     * @return the file or directory being sent
+     */
+    public synchronized File getPath() {
+        return path;
+    }
+
+    public synchronized File getCurrentFile() {
+        return currentFile;
+    }
+
+    public synchronized long getBytesDone() {
+        return bytesDone;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the recent rate, smoothed over the last few updates
+     */
+    public synchronized long getBytesPerSecond() {
+        return (long) bytesPerSecond;
+    }
+
+    /**
+     * @return 0 to 100
+     */
+    public synchronized int getPercent() {
+        return totalBytes <= 0 ? 0 : (int) Math.min(100, bytesDone * 100 / totalBytes);
+    }
+
+    /**
+     * @return the estimated time left at the recent rate, or -1 before there is a rate or a total
+     */
+    public synchronized long getEtaMillis() {
+        if (bytesPerSecond <= 0 || totalBytes <= 0) {
+            return -1;
+        }
+        return (long) (Math.max(0, totalBytes - bytesDone) * 1000 / bytesPerSecond);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return deviceName + ": " + getPercent() + "% of " + path + ", " + getBytesPerSecond() + " B/s, ETA "
+                + getEtaMillis() + " ms";
+    }
+}
@@ -0,0 +1,223 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sends waiting for a {@link ConnectedDevice}, taken one at a time by its sending thread in
+ * the order the ordering policy picks. Queuing a path that is already waiting doesn't queue it
+ * twice, the waiting transfer keeps the higher of the two priorities. Batches of files from
+ * under the same path are merged the same way, into one send.
+ */
+public class TransferQueue {
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+
+    /**
+     * In the order queued
+     */
+    public static final Comparator<QueuedTransfer> FIFO = new Comparator<QueuedTransfer>() {
+        @Override
+        public int compare(QueuedTransfer a, QueuedTransfer b) {
+            return Long.compare(a.getSequence(), b.getSequence());
+        }
+    };
+
+    /**
+     * Highest priority first, in the order queued within a priority
+     */
+    public static final Comparator<QueuedTransfer> PRIORITY = new Comparator<QueuedTransfer>() {
+        @Override
+        public int compare(QueuedTransfer a, QueuedTransfer b) {
+            int byPriority = Integer.compare(b.getPriority(), a.getPriority());
+            return byPriority != 0 ? byPriority : FIFO.compare(a, b);
+        }
+    };
+
+    /**
+     * Highest priority first, then the fewest bytes first, which minimizes the mean time to
+     * complete the waiting transfers. Choosing between several waiting transfers walks each of
+     * their trees to measure them, the queue does that before comparing. A transfer that hasn't
+     * been measured is compared as the largest rather than walked under the queue's lock.
+     */
+    public static final Comparator<QueuedTransfer> SHORTEST_FIRST = new Comparator<QueuedTransfer>() {
+        @Override
+        public int compare(QueuedTransfer a, QueuedTransfer b) {
+            int byPriority = Integer.compare(b.getPriority(), a.getPriority());
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            int bySize = Long.compare(measuredSize(a), measuredSize(b));
+            return bySize != 0 ? bySize : FIFO.compare(a, b);
+        }
+
+        private long measuredSize(QueuedTransfer transfer) {
+            long size = transfer.getKnownSize();
+            return size < 0 ? Long.MAX_VALUE : size;
+        }
+    };
+
+    private final Comparator<QueuedTransfer> ordering;
+    private final List<QueuedTransfer> queued = new ArrayList<>();
+    // whether a sending thread is working through the queue
+    private boolean draining;
+    private long nextSequence;
+
+    private long dequeuedCount;
+    private long duplicateCount;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long lastWaitNanos;
+    private int maxDepth;
+
+    TransferQueue(Comparator<QueuedTransfer> ordering) {
+        this.ordering = ordering;
+    }
+
+    /**
+     * @return true when nothing is draining the queue, the caller must start a sending thread
+     */
+    synchronized boolean add(File path, int priority) {
+        return add(path, null, priority);
+    }
+
+    /**
+     * @param files only these files from under the path, or null for all of it
+     * @return true when nothing is draining the queue, the caller must start a sending thread
+     */
+    synchronized boolean add(File path, Collection<File> files, int priority) {
+        QueuedTransfer existing = find(path);
+        if (existing != null) {
+            existing.raisePriority(priority);
+            existing.merge(files);
+            duplicateCount++;
+        } else {
+            queued.add(new QueuedTransfer(path, files, priority, nextSequence++));
+            maxDepth = Math.max(maxDepth, queued.size());
+        }
+        if (draining) {
+            return false;
+        }
+        draining = true;
+        return true;
+    }
+
+    /**
+     * Takes the next transfer to send. Sizes are measured outside the lock, so queuing never waits
+     * on the file system. A transfer queued or merged while they're measured is measured on the
+     * next pass, the choice is only made once every waiting transfer has a size.
+     *
+     * @return the next transfer, or null once the queue is empty, in which case draining stops
+     * and the next {@link #add} starts a new sending thread
+     */
+    QueuedTransfer poll() {
+        // the built in policies that don't look at sizes don't need them measured, nor does a
+        // transfer that has nothing to be compared with
+        boolean bySize = ordering != FIFO && ordering != PRIORITY;
+        while (true) {
+            List<QueuedTransfer> unmeasured = new ArrayList<>();
+            synchronized (this) {
+                if (queued.isEmpty()) {
+                    draining = false;
+                    return null;
+                }
+                if (bySize && queued.size() > 1) {
+                    for (QueuedTransfer transfer : queued) {
+                        if (transfer.getKnownSize() < 0) {
+                            unmeasured.add(transfer);
+                        }
+                    }
+                }
+                if (unmeasured.isEmpty()) {
+                    return take();
+                }
+            }
+            for (QueuedTransfer transfer : unmeasured) {
+                transfer.getSize();
+            }
+        }
+    }
+
+    /**
+     * Removes the transfer the ordering puts first, call with the lock held.
+     */
+    private QueuedTransfer take() {
+        QueuedTransfer next = queued.get(0);
+        for (int i = 1; i < queued.size(); i++) {
+            QueuedTransfer transfer = queued.get(i);
+            if (ordering.compare(transfer, next) < 0) {
+                next = transfer;
+            }
+        }
+        queued.remove(next);
+
+        long wait = System.nanoTime() - next.getEnqueuedAtNanos();
+        dequeuedCount++;
+        totalWaitNanos += wait;
+        lastWaitNanos = wait;
+        maxWaitNanos = Math.max(maxWaitNanos, wait);
+        return next;
+    }
+
+    private QueuedTransfer find(File path) {
+        String key = path.getAbsolutePath();
+        for (QueuedTransfer transfer : queued) {
+            if (transfer.getPath().getAbsolutePath().equals(key)) {
+                return transfer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of transfers waiting, not counting the one being sent
+     */
+    public synchronized int getDepth() {
+        return queued.size();
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return true while a send is in progress or waiting
+     */
+    public synchronized boolean isBusy() {
+        return draining;
+    }
+
+    /**
+     * @return how many times a path was queued while already waiting
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * @return how many transfers have been taken off the queue to send
+     */
+    public synchronized long getDequeuedCount() {
+        return dequeuedCount;
+    }
+
+    /**
+     * @return the average time from being queued to starting to send
+     */
+    public synchronized long getAverageWaitMillis() {
+        return dequeuedCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / dequeuedCount);
+    }
+
+    public synchronized long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    public synchronized long getLastWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastWaitNanos);
+    }
+}
@@ -0,0 +1,46 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * What the pusher knows about a send that hasn't finished yet, so that after the link drops it
+ * can skip the files already acked and continue the current file from the receiver's last
+ * committed offset instead of starting over.
+ */
+class TransferState {
+    private static final Random ids = new Random();
+
+    final long transferId;
+    // destination paths of files the receiver has acked
+    final Set<String> completedPaths = Collections.synchronizedSet(new HashSet<String>());
+
+    // the most recent CHECKPOINT from the receiver
+    volatile String checkpointPath;
+    volatile long checkpointOffset;
+
+    // where the receiver said to pick up, consumed by the first FILE message for that path
+    String resumePath;
+    long resumeOffset;
+
+    TransferState() {
+        synchronized (ids) {
+            transferId = ids.nextLong();
+        }
+    }
+
+    /**
+     * @return the offset to start the file at, 0 unless it is the file the receiver stopped in
+     */
+    long takeResumeOffset(String destinationPath) {
+        if (resumePath == null || !resumePath.equals(destinationPath)) {
+            return 0;
+        }
+        long offset = resumeOffset;
+        resumePath = null;
+        resumeOffset = 0;
+        return offset;
+    }
+}
@@ -0,0 +1,12 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+/**
+ * Creates new, unconnected transports to the same receiver, eg. for the extra channels a large
+ * file is striped over.
+ */
+public interface TransportFactory {
+    /**
+     * @param channel which extra channel the transport is for, from 1
+     */
+    Transport create(int channel);
+}
@@ -0,0 +1,98 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AckDispatcherTest {
+    @Test
+    public void cumulativeAck_releasesEveryEarlierFile() throws Exception {
+        AckDispatcher acks = new AckDispatcher(4, new PushOptions(), null);
+        for (int i = 1; i <= 4; i++) {
+            acks.register(i, null);
+            acks.sent(i);
+        }
+        acks.ackUpTo(3);
+        assertEquals(1, acks.pendingCount());
+        acks.ack(4);
+        acks.awaitAll();
+        assertEquals(4, acks.getRttCount());
+    }
+
+    @Test
+    public void timeout_retransmitsThenFails() throws Exception {
+        final List<Integer> retransmitted = new ArrayList<>();
+        PushOptions options = new PushOptions().setAckTimeoutMillis(10).setMaxRetransmits(2);
+        AckDispatcher acks = new AckDispatcher(1, options, new AckDispatcher.Callbacks() {
+            @Override
+            public void retransmit(int id, Object attachment) {
+                retransmitted.add(id);
+            }
+
+            @Override
+            public void retransmitChunk(int id, Object attachment, long offset, int length) {
+            }
+
+            @Override
+            public void acked(int id, Object attachment) {
+            }
+        });
+        acks.register(7, null);
+        acks.sent(7);
+        try {
+            acks.awaitAll();
+            fail("expected the ack to time out");
+        } catch (IOException e) {
+            assertEquals(2, retransmitted.size());
+        }
+    }
+
+    @Test
+    public void unsequencedTimeout_failsWithoutRetransmitting() throws Exception {
+        final List<Integer> retransmitted = new ArrayList<>();
+        PushOptions options = new PushOptions().setAckTimeoutMillis(10).setMaxRetransmits(2);
+        AckDispatcher acks = new AckDispatcher(1, options, new AckDispatcher.Callbacks() {
+            @Override
+            public void retransmit(int id, Object attachment) {
+                retransmitted.add(id);
+            }
+
+            @Override
+            public void retransmitChunk(int id, Object attachment, long offset, int length) {
+            }
+
+            @Override
+            public void acked(int id, Object attachment) {
+            }
+        }, null, null, false);
+        acks.register(1, null);
+        acks.sent(1);
+        try {
+            acks.awaitAll();
+            fail("expected the ack to time out");
+        } catch (IOException e) {
+            // a late original ack would be credited to whatever was sent next
+            assertTrue(retransmitted.isEmpty());
+            assertEquals(1, acks.pendingCount());
+        }
+    }
+
+    @Test
+    public void nack_withFailPolicy_failsImmediately() throws Exception {
+        PushOptions options = new PushOptions().setAckTimeoutPolicy(PushOptions.ACK_TIMEOUT_FAIL);
+        final AckDispatcher acks = new AckDispatcher(1, options, null);
+        acks.register(1, null);
+        acks.sent(1);
+        acks.nack(1);
+        try {
+            acks.awaitAll();
+            fail("expected the nack to fail the send");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("rejected"));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CodecTest {
+    private static final byte[] ALL = {FilePushMessage.COMPRESSION_DEFLATE, FilePushMessage.COMPRESSION_LZF};
+
+    @Test
+    public void codecs_roundTripTextAndRandomData() throws Exception {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            json.append("{\"match\":23,\"team\":").append(4911 + i % 7).append(",\"auto\":true},");
+        }
+        byte[] random = new byte[20000];
+        new Random(4911).nextBytes(random);
+
+        for (byte id : ALL) {
+            Codec codec = Codecs.create(id);
+            byte[] text = json.toString().getBytes(StandardCharsets.UTF_8);
+            assertTrue(roundTrip(codec, text) < text.length / 4);
+            roundTrip(codec, random);
+            roundTrip(codec, new byte[]{1, 2});
+        }
+    }
+
+    @Test
+    public void probe_skipsIncompressibleFiles() throws Exception {
+        File dir = TransportTest.createTempDir();
+        byte[] random = new byte[50000];
+        new Random(23).nextBytes(random);
+        File noise = new File(dir, "noise.bin");
+        write(noise, random);
+        File png = new File(dir, "img.png");
+        write(png, new byte[50000]);
+        File stats = new File(dir, "stats.json");
+        write(stats, new byte[50000]);
+
+        CompressionProbe probe = new CompressionProbe(0.9);
+        int mask = Codecs.supportedMask();
+        assertEquals(FilePushMessage.COMPRESSION_NONE, probe.choose(noise, ALL, mask));
+        assertEquals(FilePushMessage.COMPRESSION_NONE, probe.choose(png, ALL, mask));
+        assertEquals(FilePushMessage.COMPRESSION_DEFLATE, probe.choose(stats, ALL, mask));
+        assertEquals(FilePushMessage.COMPRESSION_LZF, probe.choose(stats, ALL, Codecs.bit(FilePushMessage.COMPRESSION_LZF)));
+        assertEquals(FilePushMessage.COMPRESSION_NONE, probe.choose(stats, ALL, 0));
+    }
+
+    private static int roundTrip(Codec codec, byte[] data) throws Exception {
+        byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+        int length = codec.compress(data, 0, data.length, compressed, 0);
+        byte[] restored = new byte[data.length];
+        codec.decompress(compressed, 0, length, restored, 0, data.length);
+        assertTrue(Arrays.equals(data, restored));
+        return length;
+    }
+
+    private static void write(File file, byte[] contents) throws Exception {
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(contents);
+        }
+    }
+}
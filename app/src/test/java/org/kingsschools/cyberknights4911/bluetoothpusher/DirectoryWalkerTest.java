@@ -0,0 +1,53 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DirectoryWalkerTest {
+    @Test
+    public void walker_prefetchingWalkMatchesTheInlineWalk() throws Exception {
+        File root = TransportTest.createTempDir();
+        File match = new File(root, "match");
+        File teams = new File(match, "teams");
+        teams.mkdirs();
+        TransportTest.write(new File(match, "stats.json"), "{}");
+        TransportTest.write(new File(teams, "4911.json"), "{\"team\":4911}");
+        new File(teams, "empty").mkdir();
+
+        List<String> inline = describe(new DirectoryWalker(match, new File("/")), false);
+        DirectoryWalker prefetching = new DirectoryWalker(match, new File("/"));
+        prefetching.start(1, true);
+        List<String> prefetched = describe(prefetching, true);
+
+        assertEquals(inline, prefetched);
+        assertEquals(5, inline.size());
+        // each directory comes before its contents
+        assertEquals("dir / 2", inline.get(0));
+        assertTrue(inline.indexOf("dir /teams 2") < inline.indexOf("file /teams/4911.json 13"));
+        assertTrue(inline.indexOf("dir /teams 2") < inline.indexOf("dir /teams/empty 0"));
+    }
+
+    private static List<String> describe(DirectoryWalker walker, boolean expectOpen) throws Exception {
+        List<String> entries = new ArrayList<>();
+        try {
+            DirectoryWalker.Entry entry;
+            while ((entry = walker.next()) != null) {
+                if (entry.directory) {
+                    entries.add("dir " + entry.destination.getPath() + " " + entry.childCount);
+                } else {
+                    assertEquals(expectOpen, entry.stream != null);
+                    entry.closeStream();
+                    entries.add("file " + Manifest.destinationPath(entry.file, entry.destination) + " " + entry.length);
+                }
+            }
+        } finally {
+            walker.close();
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,148 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FanOutPushTest {
+    @Test
+    public void fanOut_deliversToEveryDeviceAndDetachesTheSlowOne() throws Exception {
+        File root = TransportTest.createTempDir();
+        File match = new File(root, "match");
+        match.mkdir();
+        Random random = new Random(9);
+        for (int i = 0; i < 3; i++) {
+            byte[] contents = new byte[8 * 1024];
+            random.nextBytes(contents);
+            try (FileOutputStream stream = new FileOutputStream(new File(match, "file" + i))) {
+                stream.write(contents);
+            }
+        }
+
+        PipeTransport[] fast1 = PipeTransport.pair("fast1");
+        PipeTransport[] fast2 = PipeTransport.pair("fast2");
+        // a small pipe and a late reader, so this device can't keep up with the read stage
+        PipeTransport[] slow = PipeTransport.pair("slow", 1024);
+        PushOptions options = new PushOptions()
+                .setHelloTimeoutMillis(0)
+                .setChunkSize(512)
+                .setFanOutQueueChunks(2)
+                .setFanOutStallTimeoutMillis(200);
+        FanOutPush push = new FanOutPush(Arrays.asList(fast1[0], fast2[0], slow[0]), match, null, options);
+
+        final List<List<String>> received = Collections.synchronizedList(new ArrayList<List<String>>());
+        List<Thread> receivers = new ArrayList<>();
+        receivers.add(receive(fast1[1], 0, received));
+        receivers.add(receive(fast2[1], 0, received));
+        receivers.add(receive(slow[1], 1000, received));
+        push.start();
+
+        assertTrue(push.awaitCompletion(10000));
+        for (Thread receiver : receivers) {
+            receiver.join(10000);
+        }
+        assertEquals(3, received.size());
+        for (List<String> paths : received) {
+            assertEquals(3, paths.size());
+        }
+        List<ConnectedDevice> devices = push.getDevices();
+        for (ConnectedDevice device : devices) {
+            assertEquals(Boolean.TRUE, push.getResults().get(device));
+        }
+        assertFalse(push.wasDetached(devices.get(0)));
+        assertTrue(push.wasDetached(devices.get(2)));
+    }
+
+    @Test
+    public void fanOut_readFailurePartWayThroughAFile_devicesReadTheRestThemselves() throws Exception {
+        File match = new File(TransportTest.createTempDir(), "match");
+        match.mkdir();
+        // too big to be packed, so it goes through the shared read stage
+        byte[] contents = new byte[64 * 1024];
+        new Random(9).nextBytes(contents);
+        File photo = new File(match, "photo.jpg");
+        try (FileOutputStream stream = new FileOutputStream(photo)) {
+            stream.write(contents);
+        }
+
+        File[] roots = {TransportTest.createTempDir(), TransportTest.createTempDir()};
+        PushReceiver[] receivers = {new PushReceiver(roots[0]), new PushReceiver(roots[1])};
+        try {
+            List<Transport> transports = new ArrayList<>();
+            for (PushReceiver receiver : receivers) {
+                PipeTransport[] ends = PipeTransport.pair("device");
+                receiver.receive(ends[1]);
+                transports.add(ends[0]);
+            }
+            PushOptions options = new PushOptions().setNegotiationEnabled(true).setChunkSize(1024).setFanOutQueueChunks(2);
+            FanOutPush push = new FanOutPush(transports, match, null, options) {
+                @Override
+                FileChunkReader createReader() {
+                    // the shared read fails a few chunks into the file
+                    return new FileChunkReader(0) {
+                        private int reads;
+
+                        @Override
+                        public int read(ByteBuffer buffer) throws IOException {
+                            if (++reads == 4) {
+                                throw new IOException("Simulated read error");
+                            }
+                            return super.read(buffer);
+                        }
+                    };
+                }
+            };
+            push.start();
+
+            assertTrue(push.awaitCompletion(10000));
+            for (ConnectedDevice device : push.getDevices()) {
+                assertEquals(Boolean.TRUE, push.getResults().get(device));
+            }
+            for (File root : roots) {
+                assertArrayEquals(contents, read(new File(root, "photo.jpg")));
+            }
+        } finally {
+            for (PushReceiver receiver : receivers) {
+                receiver.close();
+            }
+        }
+    }
+
+    private static Thread receive(final Transport transport, final long delayMillis, final List<List<String>> received) {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(delayMillis);
+                    // verifies each file's CRC as it goes
+                    received.add(TransportTest.receiveAll(transport));
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        try (FileInputStream stream = new FileInputStream(file)) {
+            int read = 0;
+            while (read < contents.length) {
+                read += stream.read(contents, read, contents.length - read);
+            }
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,76 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FileChunkReaderTest {
+    @Test
+    public void channelAndMappedReads_returnTheSameBytes() throws Exception {
+        byte[] contents = new byte[100000];
+        new Random(4911).nextBytes(contents);
+        File file = new File(TransportTest.createTempDir(), "video.bin");
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(contents);
+        }
+
+        // 0 never maps, 1 maps everything
+        for (long threshold : new long[]{0, 1}) {
+            FileChunkReader reader = new FileChunkReader(threshold);
+            reader.open(file, 1000);
+            ByteBuffer chunk = BufferPool.getDefault().acquire(4096);
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            int n;
+            while ((n = reader.read(chunk)) > 0) {
+                read.write(chunk.array(), 0, n);
+                chunk.clear();
+            }
+            reader.close();
+            BufferPool.getDefault().release(chunk);
+
+            byte[] expected = new byte[contents.length - 1000];
+            System.arraycopy(contents, 1000, expected, 0, expected.length);
+            assertArrayEquals(expected, read.toByteArray());
+        }
+    }
+
+    @Test
+    public void mappedRead_ofTruncatedFile_endsEarly() throws Exception {
+        File file = new File(TransportTest.createTempDir(), "log.txt");
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(new byte[64 * 1024]);
+        }
+        ByteBuffer chunk = BufferPool.getDefault().acquire(4096);
+        try {
+            // one chunk is read from the mapped window, then the file is cut short under it
+            FileChunkReader reader = new FileChunkReader(1);
+            reader.open(file, 0);
+            int read = reader.read(chunk);
+            chunk.clear();
+            truncate(file, 10000);
+            int n;
+            while ((n = reader.read(chunk)) > 0) {
+                read += n;
+                chunk.clear();
+            }
+            reader.close();
+            assertEquals(10000, read);
+        } finally {
+            BufferPool.getDefault().release(chunk);
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+}
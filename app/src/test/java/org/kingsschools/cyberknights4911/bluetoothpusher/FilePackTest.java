@@ -0,0 +1,134 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class FilePackTest {
+    @Test
+    public void connectedDevice_packsSmallFilesIntoOneMessage() throws Exception {
+        File root = TransportTest.createTempDir();
+        File match = new File(root, "match");
+        File teams = new File(match, "teams");
+        teams.mkdirs();
+        for (int i = 0; i < 4; i++) {
+            TransportTest.write(new File(teams, i + ".json"), "{\"team\":" + i + "}");
+        }
+        TransportTest.write(new File(match, "stats.json"), "{\"date\":\"2017-01-16\"}");
+        // over the threshold, and random so it isn't compressed
+        byte[] large = new byte[2048];
+        new Random(4911).nextBytes(large);
+        try (FileOutputStream stream = new FileOutputStream(new File(match, "notes.txt"))) {
+            stream.write(large);
+        }
+
+        PipeTransport[] ends = PipeTransport.pair("test");
+        PushOptions options = new PushOptions().setNegotiationEnabled(true).setPackFileThreshold(1024);
+        new ConnectedDevice(ends[0], null, options).send(match);
+
+        List<String> messages = receivePacks(ends[1]);
+        // the large file on its own, the five small ones in a single pack
+        assertEquals(2, messages.size());
+        assertTrue(messages.contains("file /notes.txt"));
+        for (String message : messages) {
+            if (message.startsWith("pack")) {
+                assertTrue(message.contains("/stats.json"));
+                for (int i = 0; i < 4; i++) {
+                    assertTrue(message.contains("/teams/" + i + ".json"));
+                }
+            }
+        }
+    }
+
+    /**
+     * A receiver that agrees to packs and deflate, returns a line per FILE or PACK received.
+     */
+    private static List<String> receivePacks(Transport transport) throws IOException {
+        DataInputStream in = new DataInputStream(transport.getInputStream());
+        DataOutputStream out = new DataOutputStream(transport.getOutputStream());
+        Codec deflate = Codecs.create(FilePushMessage.COMPRESSION_DEFLATE);
+        List<String> received = new ArrayList<>();
+        while (true) {
+            int type = in.read();
+            switch (type) {
+                case FilePushMessage.TYPE_HELLO:
+                    out.writeByte(FilePushMessage.TYPE_HELLO);
+                    new Capabilities()
+                            .set(Capabilities.KEY_VERSION, Capabilities.VERSION_SEQUENCED)
+                            .set(Capabilities.KEY_WINDOW, 4)
+                            .set(Capabilities.KEY_CODECS, Codecs.bit(FilePushMessage.COMPRESSION_DEFLATE))
+                            .set(Capabilities.KEY_FEATURES, Capabilities.FEATURE_PACK)
+                            .writeTo(out);
+                    out.flush();
+                    break;
+                case FilePushMessage.TYPE_SETTINGS:
+                    Capabilities.readFrom(in);
+                    break;
+                case FilePushMessage.TYPE_DIRECTORY:
+                    in.readUTF();
+                    in.readShort();
+                    break;
+                case FilePushMessage.TYPE_FILE: {
+                    int sequence = in.readInt();
+                    String name = in.readUTF();
+                    String container = in.readUTF();
+                    assertEquals(FilePushMessage.COMPRESSION_NONE, in.readByte());
+                    byte[] contents = new byte[in.readInt()];
+                    in.readFully(contents);
+                    CRC32 crc = new CRC32();
+                    crc.update(contents);
+                    assertEquals(crc.getValue(), in.readLong());
+                    received.add("file " + new File(container, name).getPath());
+                    ack(out, sequence);
+                    break;
+                }
+                case FilePushMessage.TYPE_PACK: {
+                    int sequence = in.readInt();
+                    FilePack pack = FilePack.readIndex(in);
+                    byte compression = in.readByte();
+                    byte[] contents = new byte[in.readInt()];
+                    byte[] wire = new byte[in.readInt()];
+                    in.readFully(wire);
+                    if (compression == FilePushMessage.COMPRESSION_DEFLATE) {
+                        deflate.decompress(wire, 0, wire.length, contents, 0, contents.length);
+                    } else {
+                        contents = wire;
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(contents);
+                    assertEquals(crc.getValue(), in.readLong());
+                    assertEquals(pack.getContentLength(), contents.length);
+                    StringBuilder line = new StringBuilder("pack");
+                    for (FilePack.Entry entry : pack.getEntries()) {
+                        line.append(' ').append(entry.getDestinationPath());
+                    }
+                    received.add(line.toString());
+                    ack(out, sequence);
+                    break;
+                }
+                case FilePushMessage.TYPE_STOP:
+                case -1:
+                    transport.close();
+                    return received;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static void ack(DataOutputStream out, int sequence) throws IOException {
+        out.writeByte(FilePushMessage.TYPE_FILE_ACK);
+        out.writeInt(sequence);
+        out.flush();
+    }
+}
@@ -0,0 +1,127 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import android.os.FileObserver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams a watched folder to a {@link PushReceiver} over TCP. The observers don't run off-device,
+ * so the tests hand the watcher the events they would have seen.
+ */
+public class FolderWatcherTest {
+    @Test
+    public void watcher_pushesOnlyNewFilesInBatches() throws Exception {
+        File match = new File(TransportTest.createTempDir(), "match");
+        match.mkdirs();
+        TransportTest.write(new File(match, "old.txt"), "sent before the watch");
+        File root = TransportTest.createTempDir();
+        PushReceiver receiver = new PushReceiver(root);
+        FolderWatcher watcher = null;
+        try {
+            TcpAcceptor acceptor = new TcpAcceptor(0);
+            receiver.serve(acceptor);
+            PushOptions options = new PushOptions().setNegotiationEnabled(true)
+                    .setPersistentSession(true)
+                    .setWatchDebounceMillis(100)
+                    .setWatchMaxBatchDelayMillis(2000);
+            watcher = new FolderWatcher(new ConnectedDevice(TcpTransport.loopback(acceptor.getPort()), null, options),
+                    match, options);
+            watcher.start();
+
+            // a burst, a new directory with a file already in it and a file next to it
+            File teams = new File(match, "teams");
+            teams.mkdirs();
+            TransportTest.write(new File(teams, "4911.json"), "{\"team\":4911}");
+            TransportTest.write(new File(match, "notes.txt"), "scouting notes");
+            watcher.onEvent(match, FileObserver.CREATE, "teams");
+            watcher.onEvent(match, FileObserver.CLOSE_WRITE, "notes.txt");
+            awaitFileCount(watcher, 2);
+            assertEquals(1, watcher.getBatchCount());
+            assertEquals("{\"team\":4911}", read(new File(root, "teams/4911.json")));
+            assertEquals("scouting notes", read(new File(root, "notes.txt")));
+            assertFalse(new File(root, "old.txt").exists());
+
+            // later files go out over the same session without resending the earlier ones
+            TransportTest.write(new File(teams, "254.json"), "{\"team\":254}");
+            watcher.onEvent(teams, FileObserver.CLOSE_WRITE, "254.json");
+            awaitFileCount(watcher, 3);
+            assertEquals(2, watcher.getBatchCount());
+            assertEquals("{\"team\":254}", read(new File(root, "teams/254.json")));
+            assertEquals(3, receiver.getFilesReceived());
+            assertTrue(watcher.getDevice().isConnected());
+        } finally {
+            if (watcher != null) {
+                watcher.close();
+            }
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void watcher_waitsForFilesToSettle() throws Exception {
+        File match = TransportTest.createTempDir();
+        File root = TransportTest.createTempDir();
+        PushReceiver receiver = new PushReceiver(root);
+        FolderWatcher watcher = null;
+        try {
+            TcpAcceptor acceptor = new TcpAcceptor(0);
+            receiver.serve(acceptor);
+            PushOptions options = new PushOptions().setNegotiationEnabled(true).setWatchDebounceMillis(500).setWatchMaxBatchDelayMillis(10000);
+            watcher = new FolderWatcher(new ConnectedDevice(TcpTransport.loopback(acceptor.getPort()), null, options),
+                    match, options);
+            watcher.start();
+
+            File photo = new File(match, "photo.jpg");
+            TransportTest.write(photo, "half");
+            watcher.onEvent(match, FileObserver.MODIFY, "photo.jpg");
+            Thread.sleep(100);
+            TransportTest.write(photo, "half written");
+            watcher.onEvent(match, FileObserver.MODIFY, "photo.jpg");
+            assertEquals(0, watcher.getFileCount());
+            assertEquals(1, watcher.getPendingCount());
+
+            // a file removed before it settled is never sent
+            TransportTest.write(new File(match, "temp.txt"), "scratch");
+            watcher.onEvent(match, FileObserver.CREATE, "temp.txt");
+            assertEquals(2, watcher.getPendingCount());
+            new File(match, "temp.txt").delete();
+            watcher.onEvent(match, FileObserver.DELETE, "temp.txt");
+            assertEquals(1, watcher.getPendingCount());
+
+            awaitFileCount(watcher, 1);
+            assertEquals("half written", read(new File(root, "photo.jpg")));
+            assertFalse(new File(root, "temp.txt").exists());
+        } finally {
+            if (watcher != null) {
+                watcher.close();
+            }
+            receiver.close();
+        }
+    }
+
+    private static void awaitFileCount(FolderWatcher watcher, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (watcher.getFileCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, watcher.getFileCount());
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        try (FileInputStream stream = new FileInputStream(file)) {
+            int read = 0;
+            while (read < contents.length) {
+                read += stream.read(contents, read, contents.length - read);
+            }
+        }
+        return new String(contents, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,118 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LinkTunerTest {
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(40);
+
+    @Test
+    public void window_halvesOnLossAndGrowsByOnePerWindowOfAcks() {
+        DeviceMetrics metrics = new DeviceMetrics("00:11", "tablet");
+        LinkTuner tuner = new LinkTuner(true, 8, 32 * 1024, 8 * 1024, metrics);
+        assertEquals(8, tuner.getWindow());
+        assertEquals(8, metrics.getWindow());
+
+        tuner.lost();
+        assertEquals(4, tuner.getWindow());
+        tuner.lost();
+        tuner.lost();
+        tuner.lost();
+        assertEquals(1, tuner.getWindow());
+        assertEquals(1, metrics.getWindow());
+
+        // 1 ack to reach 2, 2 more to reach 3, 3 more to reach 4
+        for (int i = 0; i < 6; i++) {
+            tuner.acked(RTT);
+        }
+        assertEquals(4, tuner.getWindow());
+        for (int i = 0; i < 100; i++) {
+            tuner.acked(RTT);
+        }
+        assertEquals(8, tuner.getWindow());
+    }
+
+    @Test
+    public void window_shrinksWhenRoundTripsInflate() {
+        LinkTuner tuner = new LinkTuner(true, 8, 32 * 1024, 8 * 1024, null);
+        tuner.acked(RTT);
+        // files queueing in the link, well over twice the fastest round trip
+        tuner.acked(RTT * 4);
+        assertEquals(7, tuner.getWindow());
+        tuner.acked(RTT * 4);
+        assertEquals(6, tuner.getWindow());
+    }
+
+    @Test
+    public void chunkSize_halvesOnCorruptChunksAndRecovers() {
+        DeviceMetrics metrics = new DeviceMetrics("00:11", "tablet");
+        LinkTuner tuner = new LinkTuner(true, 1, 32 * 1024, 8 * 1024, metrics);
+        assertEquals(32 * 1024, tuner.getChunkSize());
+        for (int i = 0; i < 10; i++) {
+            tuner.chunkCorrupted();
+        }
+        assertEquals(LinkTuner.MIN_CHUNK_SIZE, tuner.getChunkSize());
+        assertEquals(LinkTuner.MIN_CHUNK_SIZE, metrics.getChunkSize());
+
+        // a window of 1, every clean ack doubles the chunk size
+        tuner.acked(RTT);
+        assertEquals(2 * LinkTuner.MIN_CHUNK_SIZE, tuner.getChunkSize());
+        for (int i = 0; i < 10; i++) {
+            tuner.acked(RTT);
+        }
+        assertEquals(32 * 1024, tuner.getChunkSize());
+    }
+
+    @Test
+    public void flushBytes_followDeliveredThroughput() {
+        DeviceMetrics metrics = new DeviceMetrics("00:11", "tablet");
+        LinkTuner tuner = new LinkTuner(true, 8, 32 * 1024, 8 * 1024, metrics);
+        long now = 1;
+        // 10 KB/s, a slow link flushes at the smallest chunk
+        tuner.delivered(0, now);
+        tuner.delivered(10 * 1024, now + TimeUnit.SECONDS.toNanos(1));
+        assertEquals(10 * 1024, tuner.getDeliveredBytesPerSecond());
+        assertEquals(LinkTuner.MIN_CHUNK_SIZE, tuner.getFlushBytes());
+        assertEquals(10 * 1024, metrics.snapshot().get(DeviceMetrics.Names.DELIVERED_BYTES_PER_SECOND).longValue());
+
+        // a fast link only flushes when the buffer is full
+        now += TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < 20; i++) {
+            now += TimeUnit.SECONDS.toNanos(1);
+            tuner.delivered(10 * 1024 * 1024, now);
+        }
+        assertEquals(8 * 1024, tuner.getFlushBytes());
+    }
+
+    @Test
+    public void notAdaptive_alwaysUsesTheMaximums() {
+        LinkTuner tuner = new LinkTuner(false, 8, 32 * 1024, 8 * 1024, null);
+        tuner.lost();
+        tuner.chunkCorrupted();
+        tuner.delivered(0, 1);
+        tuner.delivered(1024, 1 + TimeUnit.SECONDS.toNanos(1));
+        assertEquals(8, tuner.getWindow());
+        assertEquals(32 * 1024, tuner.getChunkSize());
+        assertEquals(8 * 1024, tuner.getFlushBytes());
+    }
+
+    @Test
+    public void dispatcher_usesTheTunersWindow() throws Exception {
+        LinkTuner tuner = new LinkTuner(true, 8, 32 * 1024, 8 * 1024, null);
+        AckDispatcher acks = new AckDispatcher(8, new PushOptions(), null, null, tuner);
+        assertEquals(8, acks.getWindow());
+        tuner.lost();
+        tuner.lost();
+        assertEquals(2, acks.getWindow());
+        acks.register(1, null);
+        acks.sent(1);
+        acks.ack(1);
+        acks.register(2, null);
+        acks.sent(2);
+        acks.ack(2);
+        assertEquals(3, acks.getWindow());
+    }
+}
@@ -0,0 +1,79 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MerkleTreeTest {
+    private static final int CHUNK = 100;
+
+    @Test
+    public void root_matchesRecursiveDefinitionForEveryShape() throws Exception {
+        byte[] file = new byte[9 * CHUNK];
+        new Random(4911).nextBytes(file);
+        MerkleTree tree = new MerkleTree();
+        for (int count = 1; count <= 9; count++) {
+            tree.reset();
+            byte[][] leaves = new byte[count][MerkleTree.HASH_LENGTH];
+            for (int i = 0; i < count; i++) {
+                tree.leaf(i * CHUNK, file, i * CHUNK, CHUNK, leaves[i], 0);
+                tree.add(leaves[i], 0);
+            }
+            byte[] root = new byte[MerkleTree.HASH_LENGTH];
+            tree.root(root, 0);
+            assertArrayEquals("with " + count + " leaves", recursiveRoot(leaves, 0, count), root);
+            assertEquals(count, tree.getLeafCount());
+        }
+    }
+
+    @Test
+    public void leaf_dependsOnOffsetAndPieces() {
+        byte[] chunk = new byte[CHUNK];
+        new Random(4911).nextBytes(chunk);
+        MerkleTree tree = new MerkleTree();
+        byte[] whole = new byte[MerkleTree.HASH_LENGTH];
+        tree.leaf(0, chunk, 0, CHUNK, whole, 0);
+
+        // a resumed prefix is read in pieces, it has to hash the same as sent whole
+        byte[] pieces = new byte[MerkleTree.HASH_LENGTH];
+        tree.beginLeaf(0);
+        tree.updateLeaf(chunk, 0, 30);
+        tree.updateLeaf(chunk, 30, CHUNK - 30);
+        tree.endLeaf(pieces, 0);
+        assertArrayEquals(whole, pieces);
+
+        // the same bytes somewhere else in the file are a different leaf
+        byte[] moved = new byte[MerkleTree.HASH_LENGTH];
+        tree.leaf(CHUNK, chunk, 0, CHUNK, moved, 0);
+        assertFalse(Arrays.equals(whole, moved));
+    }
+
+    @Test
+    public void root_ofEmptyFileIsEmptyLeaf() {
+        MerkleTree tree = new MerkleTree();
+        byte[] root = new byte[MerkleTree.HASH_LENGTH];
+        tree.root(root, 0);
+        byte[] empty = new byte[MerkleTree.HASH_LENGTH];
+        tree.leaf(0, new byte[0], 0, 0, empty, 0);
+        assertArrayEquals(empty, root);
+    }
+
+    /**
+     * RFC 6962's definition, the left subtree has the largest power of two fewer than all leaves
+     */
+    private static byte[] recursiveRoot(byte[][] leaves, int start, int count) throws Exception {
+        if (count == 1) {
+            return leaves[start];
+        }
+        int split = Integer.highestOneBit(count - 1);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((byte) 1);
+        digest.update(recursiveRoot(leaves, start, split));
+        digest.update(recursiveRoot(leaves, start + split, count - split));
+        return digest.digest();
+    }
+}
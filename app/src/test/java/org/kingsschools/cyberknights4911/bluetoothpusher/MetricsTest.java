@@ -0,0 +1,67 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    @Test
+    public void histogram_percentilesAreBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(3);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(100);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(4, histogram.getPercentileMillis(50));
+        assertEquals(4, histogram.getPercentileMillis(90));
+        assertEquals(100, histogram.getPercentileMillis(99));
+        assertEquals(100, histogram.getMaxMillis());
+        assertEquals(12, histogram.getAverageMillis());
+    }
+
+    @Test
+    public void push_recordsDeviceMetrics() throws Exception {
+        File match = new File(TransportTest.createTempDir(), "match");
+        match.mkdir();
+        for (int i = 0; i < 3; i++) {
+            TransportTest.write(new File(match, "file" + i), "contents " + i);
+        }
+        PushReceiver receiver = new PushReceiver(TransportTest.createTempDir(),
+                new ReceiverOptions().setFeatures(0));
+        try {
+            PipeTransport[] ends = PipeTransport.pair("metrics");
+            receiver.receive(ends[1]);
+            final CountDownLatch done = new CountDownLatch(1);
+            ConnectedDevice device = new ConnectedDevice(ends[0], null, new PushOptions().setNegotiationEnabled(true));
+            device.setSendListener(new ConnectedDevice.SendListener() {
+                @Override
+                public void onSendFinished(ConnectedDevice device, File path, boolean success) {
+                    done.countDown();
+                }
+            });
+            DeviceMetrics metrics = device.getMetrics();
+            long filesBefore = metrics.getFilesAcked();
+            long sendsBefore = metrics.getSendsSucceeded();
+            device.send(match);
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+
+            assertEquals(3, metrics.getFilesAcked() - filesBefore);
+            assertEquals(1, metrics.getSendsSucceeded() - sendsBefore);
+            assertTrue(metrics.getLastBytesPerSecond() > 0);
+
+            MetricsSnapshot snapshot = MetricsRegistry.getDefault().snapshot();
+            String address = ends[0].getAddress();
+            assertEquals(metrics.getFilesAcked(), snapshot.get(address, DeviceMetrics.Names.FILES_ACKED));
+            assertTrue(snapshot.toJson().contains("\"filesAcked\":" + metrics.getFilesAcked()));
+        } finally {
+            receiver.close();
+        }
+    }
+}
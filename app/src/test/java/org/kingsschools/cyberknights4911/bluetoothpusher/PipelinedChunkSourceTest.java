@@ -0,0 +1,58 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class PipelinedChunkSourceTest {
+    @Test
+    public void pipeline_returnsTheFileWithChunkCrcsAfterAnAbandonedFile() throws Exception {
+        File dir = TransportTest.createTempDir();
+        byte[] contents = new byte[100000];
+        new Random(4911).nextBytes(contents);
+        File file = new File(dir, "video.bin");
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(contents);
+        }
+        File abandoned = new File(dir, "abandoned.bin");
+        try (FileOutputStream stream = new FileOutputStream(abandoned)) {
+            stream.write(new byte[50000]);
+        }
+
+        PipelinedChunkSource source = new PipelinedChunkSource(4096, 2, 0, BufferPool.getDefault());
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate(4096);
+            // the stages read ahead of this, what they read has to be thrown away
+            source.open(abandoned, 0);
+            assertEquals(4096, source.read(chunk));
+            source.close();
+
+            source.open(file, 1000);
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            CRC32 crc = new CRC32();
+            int n;
+            chunk.clear();
+            while ((n = source.read(chunk)) > 0) {
+                crc.reset();
+                crc.update(chunk.array(), 0, n);
+                assertEquals(crc.getValue(), source.getLastChunkCrc());
+                read.write(chunk.array(), 0, n);
+                chunk.clear();
+            }
+            source.close();
+
+            byte[] expected = new byte[contents.length - 1000];
+            System.arraycopy(contents, 1000, expected, 0, expected.length);
+            assertArrayEquals(expected, read.toByteArray());
+        } finally {
+            source.shutdown();
+        }
+    }
+}
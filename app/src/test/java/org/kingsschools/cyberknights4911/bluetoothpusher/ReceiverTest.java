@@ -0,0 +1,493 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pushes trees with {@link ConnectedDevice} to a {@link PushReceiver}, in each protocol version.
+ */
+public class ReceiverTest {
+    @Test
+    public void framedPushOverPipe_writesTree() throws Exception {
+        File match = createMatch();
+        File root = TransportTest.createTempDir();
+        PushReceiver receiver = new PushReceiver(root);
+        try {
+            PipeTransport[] ends = PipeTransport.pair("test");
+            receiver.receive(ends[1]);
+            assertTrue(push(ends[0], match, new PushOptions().setNegotiationEnabled(true).setChunkSize(4096)));
+
+            assertTreeEquals(match, root);
+            assertEquals(7, receiver.getFilesReceived());
+            assertEquals(0, receiver.getCrcFailures());
+
+            // the manifest tells the pusher nothing changed, so nothing is sent the second time
+            ends = PipeTransport.pair("test");
+            receiver.receive(ends[1]);
+            assertTrue(push(ends[0], match, new PushOptions().setNegotiationEnabled(true)));
+            assertEquals(7, receiver.getFilesReceived());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void manifest_onlyStaleFilesAreSent() throws Exception {
+        File match = new File(TransportTest.createTempDir(), "match");
+        match.mkdirs();
+        byte[] photo = new byte[40000];
+        new Random(4911).nextBytes(photo);
+        try (FileOutputStream stream = new FileOutputStream(new File(match, "photo.jpg"))) {
+            stream.write(photo);
+        }
+        TransportTest.write(new File(match, "stats.json"), "{\"date\":\"2017-01-16\"}");
+
+        File root = TransportTest.createTempDir();
+        try (FileOutputStream stream = new FileOutputStream(new File(root, "photo.jpg"))) {
+            stream.write(photo);
+        }
+        // the same length, so only the hash tells them apart
+        TransportTest.write(new File(root, "stats.json"), "{\"date\":\"2017-01-09\"}");
+        PushReceiver receiver = new PushReceiver(root);
+        try {
+            PipeTransport[] ends = PipeTransport.pair("test");
+            receiver.receive(ends[1]);
+            assertTrue(push(ends[0], match, new PushOptions().setNegotiationEnabled(true)));
+
+            assertTreeEquals(match, root);
+            assertEquals(1, receiver.getFilesReceived());
+            assertEquals(new File(match, "stats.json").length(), receiver.getBytesReceived());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void framedPushWithoutMerkle_checksChunkCrcs() throws Exception {
+        File match = createMatch();
+        File root = TransportTest.createTempDir();
+        PushReceiver receiver = new PushReceiver(root, new ReceiverOptions().setFeatures(
+                Capabilities.FEATURE_RESUME | Capabilities.FEATURE_PACK | Capabilities.FEATURE_PATH_DICTIONARY));
+        try {
+            PipeTransport[] ends = PipeTransport.pair("test");
+            receiver.receive(ends[1]);
+            assertTrue(push(ends[0], match, new PushOptions().setNegotiationEnabled(true).setChunkSize(4096)));
+
+            assertTreeEquals(match, root);
+            assertEquals(0, receiver.getCrcFailures());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void framedPush_repairsCorruptChunkAlone() throws Exception {
+        File photo = new File(TransportTest.createTempDir(), "photo.jpg");
+        byte[] contents = new byte[64 * 1024];
+        new Random(4911).nextBytes(contents);
+        try (FileOutputStream stream = new FileOutputStream(photo)) {
+            stream.write(contents);
+        }
+        File root = TransportTest.createTempDir();
+        PushReceiver receiver = new PushReceiver(root);
+        try {
+            PipeTransport[] ends = PipeTransport.pair("corrupting");
+            receiver.receive(ends[1]);
+            // flips a byte in the middle of one chunk's DATA frame, the retransmit goes through
+            Transport corrupting = new CorruptingTransport(ends[0], Arrays.copyOfRange(contents, 20000, 20016));
+            ConnectedDevice device = new ConnectedDevice(corrupting, null,
+                    new PushOptions().setNegotiationEnabled(true).setChunkSize(4096));
+            assertTrue(push(device, photo));
+
+            assertArrayEquals(contents, read(new File(root, "photo.jpg")));
+            assertEquals(1, receiver.getCrcFailures());
+            assertEquals(1, device.getMetrics().getChunkRetransmits());
+            assertEquals(0, device.getMetrics().getRetransmits());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void sequencedAndLegacyPushesOverTcp_writeTree() throws Exception {
+        File match = createMatch();
+        File sequencedRoot = TransportTest.createTempDir();
+        PushReceiver sequenced = new PushReceiver(sequencedRoot,
+                new ReceiverOptions().setVersion(Capabilities.VERSION_SEQUENCED).setFeatures(0));
+        File legacyRoot = TransportTest.createTempDir();
+        PushReceiver legacy = new PushReceiver(legacyRoot, new ReceiverOptions().setAnswerHello(false));
+        try {
+            TcpAcceptor sequencedAcceptor = new TcpAcceptor(0);
+            sequenced.serve(sequencedAcceptor);
+            TcpAcceptor legacyAcceptor = new TcpAcceptor(0);
+            legacy.serve(legacyAcceptor);
+
+            assertTrue(push(TcpTransport.loopback(sequencedAcceptor.getPort()), match,
+                    new PushOptions().setNegotiationEnabled(true)));
+            assertTrue(push(TcpTransport.loopback(legacyAcceptor.getPort()), match,
+                    new PushOptions().setNegotiationEnabled(true).setHelloTimeoutMillis(200)));
+
+            assertTreeEquals(match, sequencedRoot);
+            assertTreeEquals(match, legacyRoot);
+            assertEquals(1, legacy.getSessionCount());
+        } finally {
+            sequenced.close();
+            legacy.close();
+        }
+    }
+
+    @Test
+    public void legacyReceiver_isOnlyOfferedHelloWhenEnabledAndOnce() throws Exception {
+        File match = createMatch();
+        PushReceiver legacy = new PushReceiver(TransportTest.createTempDir(), new ReceiverOptions().setAnswerHello(false));
+        try {
+            TcpAcceptor acceptor = new TcpAcceptor(0);
+            legacy.serve(acceptor);
+
+            // off by default, an original receiver is never sent a HELLO to wait out
+            long start = System.nanoTime();
+            assertTrue(push(TcpTransport.loopback(acceptor.getPort()), match, new PushOptions().setHelloTimeoutMillis(3000)));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+
+            // the first connection waits out the HELLO, the device's next one doesn't ask again
+            ConnectedDevice device = new ConnectedDevice(TcpTransport.loopback(acceptor.getPort()), null,
+                    new PushOptions().setNegotiationEnabled(true).setHelloTimeoutMillis(3000));
+            start = System.nanoTime();
+            assertTrue(push(device, match));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 3000);
+            start = System.nanoTime();
+            assertTrue(push(device, match));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+            assertEquals(3, legacy.getSessionCount());
+        } finally {
+            legacy.close();
+        }
+    }
+
+    @Test
+    public void pathDictionary_writesNestedTreeAndSingleFile() throws Exception {
+        File match = new File(TransportTest.createTempDir(), "match");
+        File deep = new File(match, "events/2017/week1/qualification");
+        deep.mkdirs();
+        for (int i = 0; i < 3; i++) {
+            TransportTest.write(new File(deep, "team" + i + ".json"), "{\"team\":" + i + "}");
+        }
+        // outside the BMP, where modified UTF-8 and standard UTF-8 differ
+        TransportTest.write(new File(match, "events/robot\uD83E\uDD16.txt"), "beep");
+        File single = new File(TransportTest.createTempDir(), "stats.json");
+        TransportTest.write(single, "{\"date\":\"2017-01-16\"}");
+
+        File root = TransportTest.createTempDir();
+        PushReceiver receiver = new PushReceiver(root);
+        try {
+            // no packs, so every file goes out as a FILE naming its directory by id
+            PipeTransport[] ends = PipeTransport.pair("test");
+            receiver.receive(ends[1]);
+            assertTrue(push(ends[0], match, new PushOptions().setNegotiationEnabled(true).setPackFileThreshold(0)));
+            assertTreeEquals(match, root);
+
+            ends = PipeTransport.pair("test");
+            receiver.receive(ends[1]);
+            assertTrue(push(ends[0], single, new PushOptions().setNegotiationEnabled(true).setPackFileThreshold(0)));
+            assertArrayEquals(read(single), read(new File(root, "stats.json")));
+            assertEquals(0, receiver.getCrcFailures());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void stripedPushOverTcp_reassemblesLargeFile() throws Exception {
+        File match = createMatch();
+        // compressible and not, so the stripes carry both stored and compressed frames
+        byte[] video = new byte[600000];
+        new Random(4911).nextBytes(video);
+        Arrays.fill(video, 200000, 400000, (byte) 7);
+        try (FileOutputStream stream = new FileOutputStream(new File(match, "video.mp4"))) {
+            stream.write(video);
+        }
+        File root = TransportTest.createTempDir();
+        PushReceiver receiver = new PushReceiver(root);
+        try {
+            final TcpAcceptor acceptor = new TcpAcceptor(0);
+            receiver.serve(acceptor);
+
+            PushOptions options = new PushOptions().setNegotiationEnabled(true)
+                    .setChunkSize(4096).setStripeCount(3).setStripeThreshold(100000);
+            ConnectedDevice device = new ConnectedDevice(TcpTransport.loopback(acceptor.getPort()), null, options);
+            device.setStripeTransports(new TransportFactory() {
+                @Override
+                public Transport create(int channel) {
+                    return TcpTransport.loopback(acceptor.getPort());
+                }
+            });
+            assertTrue(push(device, match));
+
+            assertTreeEquals(match, root);
+            assertEquals(0, receiver.getCrcFailures());
+            // the device's own channel and the two extra ones
+            assertEquals(3, receiver.getSessionCount());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void droppedLink_resumesFilePartWayThrough() throws Exception {
+        File video = new File(TransportTest.createTempDir(), "video.mp4");
+        byte[] contents = new byte[1024 * 1024];
+        new Random(4911).nextBytes(contents);
+        try (FileOutputStream stream = new FileOutputStream(video)) {
+            stream.write(contents);
+        }
+        File root = TransportTest.createTempDir();
+        PushReceiver receiver = new PushReceiver(root, new ReceiverOptions().setCheckpointBytes(64 * 1024));
+        try {
+            DroppingTransport transport = new DroppingTransport(receiver, 512 * 1024);
+            assertTrue(push(transport, video, new PushOptions().setNegotiationEnabled(true).setResumeBackoffMillis(10)));
+
+            assertArrayEquals(contents, read(new File(root, "video.mp4")));
+            assertEquals(2, transport.connections);
+            // picked up from a checkpoint, not from the start of the file
+            assertTrue(transport.written < contents.length - 256 * 1024);
+            assertEquals(1, receiver.getFilesReceived());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    /**
+     * A pipe to the receiver that opens a fresh pair on every connect. The first connection is
+     * dropped once the limit has been written, part way through whatever is being sent.
+     */
+    private static class DroppingTransport implements Transport {
+        private final PushReceiver receiver;
+        private final long limit;
+        private PipeTransport pipe;
+        int connections;
+        // bytes written over the latest connection
+        long written;
+
+        DroppingTransport(PushReceiver receiver, long limit) {
+            this.receiver = receiver;
+            this.limit = limit;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (isConnected()) {
+                return;
+            }
+            // small enough that the receiver keeps up, and checkpoints, as the pusher writes
+            PipeTransport[] ends = PipeTransport.pair("dropping", 16 * 1024);
+            receiver.receive(ends[1]);
+            pipe = ends[0];
+            connections++;
+            written = 0;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return pipe != null && pipe.isConnected();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return pipe.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            final PipeTransport pipe = this.pipe;
+            return new FilterOutputStream(pipe.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (connections == 1 && written + len > limit) {
+                        pipe.close();
+                        throw new IOException("Link dropped");
+                    }
+                    written += len;
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (pipe != null) {
+                pipe.close();
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "dropping";
+        }
+
+        @Override
+        public String getAddress() {
+            return "pipe:dropping";
+        }
+
+        @Override
+        public String getLinkType() {
+            return LinkTypes.PIPE;
+        }
+    }
+
+    /**
+     * Flips the last byte of the first copy of the marker written, whatever else is written goes
+     * through untouched.
+     */
+    private static class CorruptingTransport implements Transport {
+        private final Transport transport;
+        private final byte[] marker;
+        private int matched;
+        private boolean corrupted;
+
+        CorruptingTransport(Transport transport, byte[] marker) {
+            this.transport = transport;
+            this.marker = marker;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            transport.connect();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return transport.isConnected();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return transport.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new FilterOutputStream(transport.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    byte[] copy = Arrays.copyOfRange(b, off, off + len);
+                    for (int i = 0; i < len && !corrupted; i++) {
+                        matched = copy[i] == marker[matched] ? matched + 1 : (copy[i] == marker[0] ? 1 : 0);
+                        if (matched == marker.length) {
+                            copy[i] ^= 0x55;
+                            corrupted = true;
+                        }
+                    }
+                    out.write(copy, 0, len);
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            transport.close();
+        }
+
+        @Override
+        public String getName() {
+            return transport.getName();
+        }
+
+        @Override
+        public String getAddress() {
+            return transport.getAddress();
+        }
+
+        @Override
+        public String getLinkType() {
+            return transport.getLinkType();
+        }
+    }
+
+    /**
+     * A match directory with small files that are packed, and larger ones that are compressible
+     * or not, spanning several chunks.
+     */
+    private static File createMatch() throws IOException {
+        File match = new File(TransportTest.createTempDir(), "match");
+        File teams = new File(match, "teams");
+        teams.mkdirs();
+        for (int i = 0; i < 4; i++) {
+            TransportTest.write(new File(teams, i + ".json"), "{\"team\":" + i + "}");
+        }
+        StringBuilder notes = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            notes.append("scouting note ").append(i).append('\n');
+        }
+        TransportTest.write(new File(match, "notes.txt"), notes.toString());
+        TransportTest.write(new File(match, "stats.json"), "{\"date\":\"2017-01-16\"}");
+        byte[] photo = new byte[50000];
+        new Random(4911).nextBytes(photo);
+        try (FileOutputStream stream = new FileOutputStream(new File(match, "photo.jpg"))) {
+            stream.write(photo);
+        }
+        return match;
+    }
+
+    private static boolean push(Transport transport, File path, PushOptions options) throws InterruptedException {
+        return push(new ConnectedDevice(transport, null, options), path);
+    }
+
+    private static boolean push(ConnectedDevice device, File path) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] success = new boolean[1];
+        device.setSendListener(new ConnectedDevice.SendListener() {
+            @Override
+            public void onSendFinished(ConnectedDevice device, File path, boolean sent) {
+                success[0] = sent;
+                done.countDown();
+            }
+        });
+        device.send(path);
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        return success[0];
+    }
+
+    private static void assertTreeEquals(File expected, File actual) throws IOException {
+        String[] names = expected.list();
+        Arrays.sort(names);
+        for (String name : names) {
+            File child = new File(expected, name);
+            File received = new File(actual, name);
+            if (child.isDirectory()) {
+                assertTrue(received.isDirectory());
+                assertTreeEquals(child, received);
+            } else {
+                assertArrayEquals(name, read(child), read(received));
+            }
+        }
+        // nothing left behind half written
+        for (String name : actual.list()) {
+            assertFalse(name, name.endsWith(PartFile.SUFFIX));
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        try (FileInputStream stream = new FileInputStream(file)) {
+            int read = 0;
+            while (read < contents.length) {
+                read += stream.read(contents, read, contents.length - read);
+            }
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,175 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Persistent sessions over a loopback TCP link.
+ */
+public class SessionTest {
+    @Test
+    public void persistentSession_reusesTheConnectionAcrossSends() throws Exception {
+        File root = TransportTest.createTempDir();
+        File first = new File(root, "first.txt");
+        File second = new File(root, "second.txt");
+        TransportTest.write(first, "one");
+        TransportTest.write(second, "two");
+
+        ServerSocket server = new ServerSocket(0);
+        try {
+            PushOptions options = new PushOptions().setHelloTimeoutMillis(0).setPersistentSession(true);
+            ConnectedDevice device = new ConnectedDevice(TcpTransport.loopback(server.getLocalPort()), null, options);
+            LinkedBlockingQueue<Boolean> results = listen(device);
+
+            device.send(first);
+            List<String> received = Collections.synchronizedList(new ArrayList<String>());
+            Thread receiver = receive(new TcpTransport(server.accept()), received);
+            assertEquals(Boolean.TRUE, results.poll(5, TimeUnit.SECONDS));
+            assertTrue(device.isConnected());
+            device.send(second);
+            assertEquals(Boolean.TRUE, results.poll(5, TimeUnit.SECONDS));
+            device.closeSession();
+
+            receiver.join(5000);
+            assertEquals(2, received.size());
+            server.setSoTimeout(200);
+            try {
+                server.accept();
+                fail("The second send should not have opened another connection");
+            } catch (SocketTimeoutException expected) {
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void persistentSession_reconnectsAfterTheLinkDrops() throws Exception {
+        File root = TransportTest.createTempDir();
+        File file = new File(root, "file.txt");
+        TransportTest.write(file, "contents");
+
+        ServerSocket server = new ServerSocket(0);
+        server.setSoTimeout(5000);
+        try {
+            PushOptions options = new PushOptions()
+                    .setHelloTimeoutMillis(0)
+                    .setPersistentSession(true)
+                    .setKeepAliveIntervalMillis(50)
+                    .setResumeBackoffMillis(50);
+            ConnectedDevice device = new ConnectedDevice(TcpTransport.loopback(server.getLocalPort()), null, options);
+            LinkedBlockingQueue<Boolean> results = listen(device);
+            device.openSession();
+
+            Socket dropped = server.accept();
+            dropped.close();
+            // the heartbeat notices and connects again by itself
+            Socket reconnected = server.accept();
+            List<String> received = Collections.synchronizedList(new ArrayList<String>());
+            Thread receiver = receive(new TcpTransport(reconnected), received);
+
+            device.send(file);
+            assertEquals(Boolean.TRUE, results.poll(5, TimeUnit.SECONDS));
+            device.closeSession();
+            receiver.join(5000);
+            assertEquals(Collections.singletonList("/file.txt"), new ArrayList<>(received));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void prewarm_servesTheFirstSendFromTheWarmConnection() throws Exception {
+        File root = TransportTest.createTempDir();
+        File file = new File(root, "file.txt");
+        TransportTest.write(file, "contents");
+
+        ServerSocket server = new ServerSocket(0);
+        server.setSoTimeout(5000);
+        try {
+            PushOptions options = new PushOptions().setHelloTimeoutMillis(0);
+            ConnectedDevice device = new ConnectedDevice(TcpTransport.loopback(server.getLocalPort()), null, options);
+            LinkedBlockingQueue<Boolean> results = listen(device);
+            device.prewarm();
+
+            // connected before anything was sent
+            List<String> received = Collections.synchronizedList(new ArrayList<String>());
+            Thread receiver = receive(new TcpTransport(server.accept()), received);
+            device.send(file);
+            assertEquals(Boolean.TRUE, results.poll(5, TimeUnit.SECONDS));
+
+            // without a persistent session the send closes it
+            receiver.join(5000);
+            assertFalse(receiver.isAlive());
+            assertFalse(device.isConnected());
+            assertEquals(Collections.singletonList("/file.txt"), new ArrayList<>(received));
+            server.setSoTimeout(200);
+            try {
+                server.accept();
+                fail("The send should have used the prewarmed connection");
+            } catch (SocketTimeoutException expected) {
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void prewarm_withoutASend_closesAfterThePrewarmTimeout() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        server.setSoTimeout(5000);
+        try {
+            PushOptions options = new PushOptions().setHelloTimeoutMillis(0)
+                    .setKeepAliveIntervalMillis(50).setPrewarmTimeoutMillis(300);
+            ConnectedDevice device = new ConnectedDevice(TcpTransport.loopback(server.getLocalPort()), null, options);
+            device.prewarm();
+
+            List<String> received = Collections.synchronizedList(new ArrayList<String>());
+            Thread receiver = receive(new TcpTransport(server.accept()), received);
+            // long before the five minute idle timeout of a persistent session
+            receiver.join(5000);
+            assertFalse(receiver.isAlive());
+            assertFalse(device.isConnected());
+            assertTrue(received.isEmpty());
+        } finally {
+            server.close();
+        }
+    }
+
+    private static LinkedBlockingQueue<Boolean> listen(ConnectedDevice device) {
+        final LinkedBlockingQueue<Boolean> results = new LinkedBlockingQueue<>();
+        device.setSendListener(new ConnectedDevice.SendListener() {
+            @Override
+            public void onSendFinished(ConnectedDevice device, File path, boolean success) {
+                results.add(success);
+            }
+        });
+        return results;
+    }
+
+    private static Thread receive(final Transport transport, final List<String> received) {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    received.addAll(TransportTest.receiveAll(transport));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,140 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransferJournalTest {
+    private static final String TABLET = "00:11:22:33:44:55";
+
+    @Test
+    public void journal_remembersDeliveriesAcrossRestarts() throws Exception {
+        File dir = TransportTest.createTempDir();
+        File stats = new File(dir, "stats.json");
+        TransportTest.write(stats, "{\"date\":\"2017-01-16\"}");
+        File journalFile = new File(dir, "transfers.journal");
+
+        TransferJournal journal = TransferJournal.open(journalFile);
+        assertFalse(journal.isDelivered(TABLET, stats, "/stats.json"));
+        journal.delivered(TABLET, stats, "/stats.json", stats.length(), stats.lastModified());
+        assertTrue(journal.isDelivered(TABLET, stats, "/stats.json"));
+        assertFalse(journal.isDelivered("66:77:88:99:AA:BB", stats, "/stats.json"));
+        assertFalse(journal.isDelivered(TABLET, stats, "/match/stats.json"));
+        journal.close();
+
+        journal = TransferJournal.open(journalFile);
+        assertEquals(1, journal.size());
+        assertTrue(journal.isDelivered(TABLET, stats, "/stats.json"));
+        // a changed file goes again
+        assertTrue(stats.setLastModified(stats.lastModified() + 2000));
+        assertFalse(journal.isDelivered(TABLET, stats, "/stats.json"));
+        journal.close();
+    }
+
+    @Test
+    public void journal_dropsATornRecordAndCompacts() throws Exception {
+        File dir = TransportTest.createTempDir();
+        File notes = new File(dir, "notes.txt");
+        TransportTest.write(notes, "scouting notes");
+        File journalFile = new File(dir, "transfers.journal");
+
+        TransferJournal journal = TransferJournal.open(journalFile);
+        for (int i = 0; i < 10; i++) {
+            journal.delivered(TABLET, new File(dir, i + ".json"), "/" + i + ".json", 10, 1000);
+        }
+        journal.close();
+        // a crash part way through appending a record
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(new byte[5]);
+        }
+
+        journal = TransferJournal.open(journalFile);
+        assertEquals(10, journal.size());
+        long header = journalFile.length() - 10 * TransferJournal.RECORD_SIZE;
+
+        // the same file delivered over and over only ever keeps its latest record
+        for (int i = 0; i < 3 * TransferJournal.MIN_COMPACT_RECORDS; i++) {
+            journal.delivered(TABLET, notes, "/notes.txt", notes.length(), i * 1000L);
+        }
+        journal.delivered(TABLET, notes, "/notes.txt", notes.length(), notes.lastModified());
+        assertTrue(journal.getRecordCount() < TransferJournal.MIN_COMPACT_RECORDS);
+        journal.flush();
+        assertEquals(header + journal.getRecordCount() * TransferJournal.RECORD_SIZE, journalFile.length());
+        journal.close();
+
+        journal = TransferJournal.open(journalFile);
+        assertEquals(11, journal.size());
+        assertTrue(journal.isDelivered(TABLET, notes, "/notes.txt"));
+        journal.close();
+    }
+
+    @Test
+    public void index_growsAndKeepsEveryEntry() {
+        FingerprintIndex index = new FingerprintIndex(0);
+        for (long key = 1; key <= 100000; key++) {
+            assertEquals(0, index.put(key * 0x9E3779B97F4A7C15L, (int) key));
+        }
+        assertEquals(100000, index.size());
+        assertEquals(7, index.put(7 * 0x9E3779B97F4A7C15L, 70));
+        for (long key = 1; key <= 100000; key++) {
+            assertEquals(key == 7 ? 70 : (int) key, index.get(key * 0x9E3779B97F4A7C15L));
+        }
+        assertEquals(0, index.get(123));
+    }
+
+    @Test
+    public void connectedDevice_skipsFilesTheJournalHasAsDelivered() throws Exception {
+        File match = new File(TransportTest.createTempDir(), "match");
+        match.mkdirs();
+        File stats = new File(match, "stats.json");
+        TransportTest.write(stats, "{\"date\":\"2017-01-16\"}");
+        TransportTest.write(new File(match, "notes.txt"), "scouting notes");
+        File journalFile = new File(TransportTest.createTempDir(), "transfers.journal");
+
+        // no manifest, only the journal keeps files from being sent again
+        PushReceiver receiver = new PushReceiver(TransportTest.createTempDir(),
+                new ReceiverOptions().setFeatures(Capabilities.FEATURE_RESUME));
+        try {
+            TcpAcceptor acceptor = new TcpAcceptor(0);
+            receiver.serve(acceptor);
+
+            TransferJournal journal = TransferJournal.open(journalFile);
+            assertTrue(push(TcpTransport.loopback(acceptor.getPort()), match, journal));
+            assertEquals(2, receiver.getFilesReceived());
+            journal.close();
+
+            // as if the app had restarted
+            journal = TransferJournal.open(journalFile);
+            assertTrue(push(TcpTransport.loopback(acceptor.getPort()), match, journal));
+            assertEquals(2, receiver.getFilesReceived());
+
+            assertTrue(stats.setLastModified(stats.lastModified() + 2000));
+            assertTrue(push(TcpTransport.loopback(acceptor.getPort()), match, journal));
+            assertEquals(3, receiver.getFilesReceived());
+            journal.close();
+        } finally {
+            receiver.close();
+        }
+    }
+
+    private static boolean push(Transport transport, File path, TransferJournal journal) throws InterruptedException {
+        ConnectedDevice device = new ConnectedDevice(transport, null, new PushOptions().setNegotiationEnabled(true).setJournal(journal));
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] success = new boolean[1];
+        device.setSendListener(new ConnectedDevice.SendListener() {
+            @Override
+            public void onSendFinished(ConnectedDevice device, File path, boolean sent) {
+                success[0] = sent;
+                done.countDown();
+            }
+        });
+        device.send(path);
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        return success[0];
+    }
+}
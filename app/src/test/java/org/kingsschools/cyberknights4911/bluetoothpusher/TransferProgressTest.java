@@ -0,0 +1,48 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransferProgressTest {
+    @Test
+    public void advance_publishesOncePerIntervalWithRateAndEta() {
+        TransferProgress progress = new TransferProgress("tablet", 250);
+        long start = 0;
+        progress.start(new File("match"), 1000000, start);
+        assertEquals(-1, progress.getEtaMillis());
+
+        // many chunks inside one interval, only the one after it is published
+        for (int i = 1; i < 10; i++) {
+            assertFalse(progress.advance(10000, start + TimeUnit.MILLISECONDS.toNanos(i * 10)));
+        }
+        assertTrue(progress.advance(10000, start + TimeUnit.MILLISECONDS.toNanos(500)));
+
+        // 100000 bytes in half a second, 900000 left
+        assertEquals(100000, progress.getBytesDone());
+        assertEquals(10, progress.getPercent());
+        assertEquals(200000, progress.getBytesPerSecond());
+        assertEquals(4500, progress.getEtaMillis());
+    }
+
+    @Test
+    public void setTotalBytes_fillsInTheTotalOfTheSendMeasured() {
+        TransferProgress progress = new TransferProgress("tablet", 250);
+        long start = 0;
+        progress.start(new File("match"), -1, start);
+        progress.advance(100000, start + TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(0, progress.getPercent());
+        assertEquals(-1, progress.getEtaMillis());
+
+        // a measurement of an earlier send that finished late
+        progress.setTotalBytes(start - 1, 200000);
+        assertEquals(0, progress.getPercent());
+
+        progress.setTotalBytes(start, 1000000);
+        assertEquals(10, progress.getPercent());
+        assertEquals(4500, progress.getEtaMillis());
+    }
+}
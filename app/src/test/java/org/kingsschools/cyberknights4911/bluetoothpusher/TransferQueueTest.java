@@ -0,0 +1,107 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransferQueueTest {
+    @Test
+    public void queue_ordersByPolicyAndDeduplicates() throws Exception {
+        File root = TransportTest.createTempDir();
+        File big = new File(root, "big");
+        File small = new File(root, "small");
+        File urgent = new File(root, "urgent");
+        TransportTest.write(big, "a much longer file than the others");
+        TransportTest.write(small, "short");
+        TransportTest.write(urgent, "longer than short");
+
+        TransferQueue queue = new TransferQueue(TransferQueue.SHORTEST_FIRST);
+        assertTrue(queue.add(big, TransferQueue.PRIORITY_NORMAL));
+        assertFalse(queue.add(small, TransferQueue.PRIORITY_NORMAL));
+        assertFalse(queue.add(urgent, TransferQueue.PRIORITY_NORMAL));
+        // queued again while waiting, only the priority changes
+        assertFalse(queue.add(new File(root, "urgent"), TransferQueue.PRIORITY_HIGH));
+        assertEquals(3, queue.getDepth());
+        assertEquals(1, queue.getDuplicateCount());
+
+        assertEquals(urgent, queue.poll().getPath());
+        assertEquals(small, queue.poll().getPath());
+        assertEquals(big, queue.poll().getPath());
+        assertTrue(queue.isBusy());
+        assertNull(queue.poll());
+        assertFalse(queue.isBusy());
+        assertEquals(3, queue.getDequeuedCount());
+    }
+
+    @Test
+    public void queue_mergesBatchesFromTheSameRoot() throws Exception {
+        File root = TransportTest.createTempDir();
+        File first = new File(root, "first");
+        File second = new File(root, "second");
+        TransportTest.write(first, "one");
+        TransportTest.write(second, "two");
+
+        TransferQueue queue = new TransferQueue(TransferQueue.FIFO);
+        assertTrue(queue.add(root, Collections.singletonList(first), TransferQueue.PRIORITY_NORMAL));
+        assertFalse(queue.add(root, Arrays.asList(first, second), TransferQueue.PRIORITY_NORMAL));
+        assertEquals(1, queue.getDepth());
+        QueuedTransfer batch = queue.poll();
+        assertEquals(Arrays.asList(first, second), batch.getFiles());
+        assertEquals(6, batch.getSize());
+
+        // the whole root covers any batch from it
+        queue.add(root, Collections.singletonList(first), TransferQueue.PRIORITY_NORMAL);
+        queue.add(root, TransferQueue.PRIORITY_NORMAL);
+        assertNull(queue.poll().getFiles());
+    }
+
+    @Test
+    public void connectedDevice_coalescesQueuedSendsIntoOneConnection() throws Exception {
+        File root = TransportTest.createTempDir();
+        File[] files = new File[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(root, "file" + i);
+            TransportTest.write(files[i], "contents " + i);
+        }
+
+        ServerSocket server = new ServerSocket(0);
+        try {
+            ConnectedDevice device = new ConnectedDevice(TcpTransport.loopback(server.getLocalPort()), null,
+                    new PushOptions().setHelloTimeoutMillis(0));
+            final LinkedBlockingQueue<Boolean> results = new LinkedBlockingQueue<>();
+            device.setSendListener(new ConnectedDevice.SendListener() {
+                @Override
+                public void onSendFinished(ConnectedDevice device, File path, boolean success) {
+                    results.add(success);
+                }
+            });
+            // sending before the last one finished used to throw
+            for (File file : files) {
+                device.send(file);
+            }
+
+            List<String> received = TransportTest.receiveAll(new TcpTransport(server.accept()));
+            assertEquals(3, received.size());
+            for (int i = 0; i < files.length; i++) {
+                assertEquals(Boolean.TRUE, results.poll(5, TimeUnit.SECONDS));
+            }
+            server.setSoTimeout(200);
+            try {
+                server.accept();
+                fail("The queued sends should have shared the first connection");
+            } catch (SocketTimeoutException expected) {
+            }
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the transports, and the push protocol over them, on the host JVM.
+ */
+public class TransportTest {
+    @Test
+    public void pipe_roundTrip() throws Exception {
+        PipeTransport[] ends = PipeTransport.pair("test", 16);
+        final Transport pusher = ends[0];
+        Transport receiver = ends[1];
+        pusher.connect();
+
+        final byte[] payload = new byte[1000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        // larger than the pipe, so the writer has to block on the reader
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    pusher.getOutputStream().write(payload);
+                    pusher.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+
+        byte[] received = new byte[payload.length];
+        new DataInputStream(receiver.getInputStream()).readFully(received);
+        assertArrayEquals(payload, received);
+        writer.join();
+        assertEquals(-1, receiver.getInputStream().read());
+    }
+
+    @Test
+    public void tcp_loopbackRoundTrip() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        try {
+            TcpTransport pusher = TcpTransport.loopback(server.getLocalPort());
+            pusher.connect();
+            Socket accepted = server.accept();
+            TcpTransport receiver = new TcpTransport(accepted);
+
+            pusher.getOutputStream().write(new byte[]{1, 2, 3});
+            byte[] received = new byte[3];
+            new DataInputStream(receiver.getInputStream()).readFully(received);
+            assertArrayEquals(new byte[]{1, 2, 3}, received);
+            assertEquals(Transport.LinkTypes.TCP, pusher.getLinkType());
+
+            pusher.close();
+            receiver.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void connectedDevice_pushesDirectoryOverPipe() throws Exception {
+        File root = createTempDir();
+        File match = new File(root, "match");
+        match.mkdir();
+        write(new File(match, "stats.json"), "{\"date\":\"2017-01-16\"}");
+        write(new File(match, "notes.txt"), "scouting notes");
+
+        PipeTransport[] ends = PipeTransport.pair("test");
+        new ConnectedDevice(ends[0], null).send(match);
+
+        List<String> received = receiveAll(ends[1]);
+        assertTrue(received.contains("/stats.json"));
+        assertTrue(received.contains("/notes.txt"));
+    }
+
+    @Test
+    public void connectedDevice_pipelinesFilesWhenReceiverNegotiates() throws Exception {
+        File root = createTempDir();
+        File match = new File(root, "match");
+        match.mkdir();
+        for (int i = 0; i < 3; i++) {
+            write(new File(match, "file" + i), "contents " + i);
+        }
+
+        PipeTransport[] ends = PipeTransport.pair("test");
+        new ConnectedDevice(ends[0], null, new PushOptions().setNegotiationEnabled(true).setWindowSize(4)).send(match);
+
+        // withholding acks until all three files arrive only works if the pusher doesn't
+        // wait for each ack before sending the next file
+        List<String> received = receiveAll(ends[1], 4);
+        assertEquals(3, received.size());
+    }
+
+    /**
+     * A minimal receiver for the original stop-and-wait protocol, returns the paths received.
+     */
+    static List<String> receiveAll(Transport transport) throws IOException {
+        return receiveAll(transport, 0);
+    }
+
+    /**
+     * A minimal receiver, when the window is greater than 0 it answers the HELLO and acks
+     * cumulatively after every window - 1 files.
+     */
+    static List<String> receiveAll(Transport transport, int window) throws IOException {
+        DataInputStream in = new DataInputStream(transport.getInputStream());
+        DataOutputStream out = new DataOutputStream(transport.getOutputStream());
+        List<String> received = new ArrayList<>();
+        boolean sequenced = false;
+        int lastSequence = 0;
+        while (true) {
+            int type = in.read();
+            switch (type) {
+                case FilePushMessage.TYPE_HELLO:
+                    if (window > 0) {
+                        out.writeByte(FilePushMessage.TYPE_HELLO);
+                        new Capabilities()
+                                .set(Capabilities.KEY_VERSION, Capabilities.VERSION_SEQUENCED)
+                                .set(Capabilities.KEY_WINDOW, window)
+                                .writeTo(out);
+                        out.flush();
+                    }
+                    break;
+                case FilePushMessage.TYPE_SETTINGS:
+                    Capabilities.readFrom(in);
+                    sequenced = true;
+                    break;
+                case FilePushMessage.TYPE_FILE: {
+                    if (sequenced) {
+                        lastSequence = in.readInt();
+                    }
+                    String name = in.readUTF();
+                    String container = in.readUTF();
+                    in.readByte();
+                    byte[] contents = new byte[in.readInt()];
+                    in.readFully(contents);
+                    CRC32 crc = new CRC32();
+                    crc.update(contents);
+                    assertEquals(crc.getValue(), in.readLong());
+                    received.add(new File(container, name).getPath());
+                    if (!sequenced) {
+                        out.writeByte(FilePushMessage.TYPE_FILE_ACK);
+                        out.flush();
+                    } else if (received.size() % window == window - 1) {
+                        out.writeByte(FilePushMessage.TYPE_FILE_ACK);
+                        out.writeInt(lastSequence);
+                        out.flush();
+                    }
+                    break;
+                }
+                case FilePushMessage.TYPE_DIRECTORY:
+                    in.readUTF();
+                    in.readShort();
+                    break;
+                case FilePushMessage.TYPE_STOP:
+                case -1:
+                    transport.close();
+                    return received;
+                default:
+                    // unknown single byte messages are ignored
+                    break;
+            }
+        }
+    }
+
+    static File createTempDir() throws IOException {
+        File dir = File.createTempFile("pusher", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    static void write(File file, String contents) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of chunk buffers shared by every {@code ConnectedDevice}, so pushes reuse the same few
+ * large buffers instead of allocating new ones for every connection.
+ * <p>
+ * The buffers are heap buffers on purpose: the send loop checksums and writes each chunk through
+ * its backing array, and {@link java.util.zip.CRC32} can't read a direct buffer without a copy
+ * before API 26.
+ */
+public class BufferPool {
+    private static final BufferPool DEFAULT = new BufferPool(8);
+
+    private final int maxPooledPerSize;
+    private final Map<Integer, Deque<ByteBuffer>> free = new HashMap<>();
+
+    /**
+     * @param maxPooledPerSize released buffers of one size beyond this are left to the GC
+     */
+    public BufferPool(int maxPooledPerSize) {
+        this.maxPooledPerSize = maxPooledPerSize;
+    }
+
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return a cleared, array backed buffer of exactly the capacity
+     */
+    public synchronized ByteBuffer acquire(int capacity) {
+        Deque<ByteBuffer> buffers = free.get(capacity);
+        ByteBuffer buffer = buffers == null ? null : buffers.pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        Deque<ByteBuffer> buffers = free.get(buffer.capacity());
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            free.put(buffer.capacity(), buffers);
+        }
+        if (buffers.size() < maxPooledPerSize) {
+            buffers.addFirst(buffer);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of protocol options exchanged during the HELLO/SETTINGS handshake. Each option is a
+ * one byte key with an int value, so either side can add options without breaking the other,
+ * unknown keys are ignored.
+ * <p>
+ * On the wire:
+ * 2 byte - Option Count
+ * then per option:
+ * 1 byte - Key
+ * 4 byte - Value
+ */
+public class Capabilities {
+    /**
+     * Protocol version, peers that never answer the HELLO are treated as {@link #VERSION_LEGACY}
+     */
+    public static final byte KEY_VERSION = 1;
+    /**
+     * The maximum number of files that can be sent before their acks are received
+     */
+    public static final byte KEY_WINDOW = 2;
+    /**
+     * Bitmask of supported codecs, bit n set for compression byte n, see {@link Codecs}
+     */
+    public static final byte KEY_CODECS = 3;
+    /**
+     * Bitmask of optional protocol features, the FEATURE_ constants
+     */
+    public static final byte KEY_FEATURES = 4;
+    /**
+     * Sent by a receiver offering {@link #FEATURE_STRIPES}, extra channels join the session with it
+     */
+    public static final byte KEY_STRIPE_TOKEN = 5;
+
+    public static final int VERSION_LEGACY = 1;
+    public static final int VERSION_SEQUENCED = 2;
+    /**
+     * File contents are sent as checksummed frames with 64 bit offsets
+     */
+    public static final int VERSION_FRAMED = 3;
+
+    /**
+     * A MANIFEST is sent before the files so the receiver can skip ones it already has
+     */
+    public static final int FEATURE_MANIFEST = 1;
+    /**
+     * Sends are tagged with a transfer id and can be resumed part way through a file
+     */
+    public static final int FEATURE_RESUME = 2;
+    /**
+     * The receiver answers every KEEP_ALIVE with one, so a persistent session can tell a dead link
+     * from an idle one
+     */
+    public static final int FEATURE_KEEP_ALIVE = 4;
+    /**
+     * DIRECTORY messages carry a 4 byte child count, the original 2 byte count overflows
+     */
+    public static final int FEATURE_UNBOUNDED_DIRECTORIES = 8;
+    /**
+     * Small files are bundled into PACK messages, each acked as a whole
+     */
+    public static final int FEATURE_PACK = 16;
+    /**
+     * DIRECTORY messages give each directory an id that FILE messages refer to, see {@link PathDictionary}
+     */
+    public static final int FEATURE_PATH_DICTIONARY = 32;
+    /**
+     * A large file's DATA frames can be spread over extra channels opened to the same receiver,
+     * framed protocol only
+     */
+    public static final int FEATURE_STRIPES = 64;
+    /**
+     * DATA frames carry a SHA-256 leaf hash rather than a CRC32, the END frame the root of the
+     * file's {@link MerkleTree}, and the receiver confirms every file with the root it verified,
+     * framed protocol only
+     */
+    public static final int FEATURE_MERKLE = 128;
+
+    private final Map<Byte, Integer> options = new TreeMap<>();
+
+    public int get(byte key, int defaultValue) {
+        Integer value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public boolean has(byte key) {
+        return options.containsKey(key);
+    }
+
+    public Capabilities set(byte key, int value) {
+        options.put(key, value);
+        return this;
+    }
+
+    public int getVersion() {
+        return get(KEY_VERSION, VERSION_LEGACY);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeShort(options.size());
+        for (Map.Entry<Byte, Integer> option : options.entrySet()) {
+            out.writeByte(option.getKey());
+            out.writeInt(option.getValue());
+        }
+    }
+
+    public static Capabilities readFrom(DataInputStream in) throws IOException {
+        Capabilities capabilities = new Capabilities();
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            byte key = in.readByte();
+            capabilities.set(key, in.readInt());
+        }
+        return capabilities;
+    }
+
+    @Override
+    public String toString() {
+        return "Capabilities" + options;
+    }
+}
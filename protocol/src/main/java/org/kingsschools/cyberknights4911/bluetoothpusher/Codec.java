@@ -0,0 +1,30 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.IOException;
+
+/**
+ * A block compression codec for file contents. Instances keep their working state between calls
+ * so they are not thread safe, use one per connection.
+ */
+public interface Codec {
+    /**
+     * @return the compression byte sent in the FILE message, one of the COMPRESSION_ constants
+     * in {@link FilePushMessage}
+     */
+    byte getId();
+
+    /**
+     * @return the largest output {@link #compress} can produce for the given input length
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * @return the number of bytes written to dst
+     */
+    int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException;
+
+    /**
+     * Decompresses a block that is known to expand to exactly dstLength bytes.
+     */
+    void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws IOException;
+}
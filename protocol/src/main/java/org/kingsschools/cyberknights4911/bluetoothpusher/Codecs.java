@@ -0,0 +1,39 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+/**
+ * The codecs this side of the link supports, and helpers for the codec bitmask that is exchanged
+ * in {@link Capabilities#KEY_CODECS}.
+ */
+public final class Codecs {
+    private Codecs() {
+    }
+
+    /**
+     * @return a new codec for the compression byte, or null for none or an unknown codec
+     */
+    public static Codec create(byte id) {
+        switch (id) {
+            case FilePushMessage.COMPRESSION_DEFLATE:
+                return new DeflateCodec();
+            case FilePushMessage.COMPRESSION_LZF:
+                return new LzfCodec();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the bitmask of every codec supported here
+     */
+    public static int supportedMask() {
+        return bit(FilePushMessage.COMPRESSION_DEFLATE) | bit(FilePushMessage.COMPRESSION_LZF);
+    }
+
+    public static int bit(byte id) {
+        return 1 << id;
+    }
+
+    public static boolean supports(int mask, byte id) {
+        return (mask & bit(id)) != 0;
+    }
+}
@@ -0,0 +1,90 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+/**
+ * Computes the CRC32 of two concatenated blocks from the CRC32 of each block, the same as zlib's
+ * crc32_combine. This lets the send loop checksum each chunk once and derive the whole file CRC
+ * from the chunk CRCs, rather than running a second CRC over the same bytes.
+ * <p>
+ * The operator for the common chunk length is precomputed, so combining a full chunk is a single
+ * 32x32 bit matrix multiply. Instances are not thread safe.
+ */
+class CrcCombiner {
+    private static final int GF2_DIM = 32;
+
+    private final long chunkLength;
+    private final long[] chunkOperator = new long[GF2_DIM];
+    private final long[] even = new long[GF2_DIM];
+    private final long[] odd = new long[GF2_DIM];
+
+    CrcCombiner(int chunkLength) {
+        this.chunkLength = chunkLength;
+        // column i of the operator is what a crc of just bit i becomes after chunkLength zeros
+        for (int i = 0; i < GF2_DIM; i++) {
+            chunkOperator[i] = shift(1L << i, chunkLength);
+        }
+    }
+
+    /**
+     * @return the CRC32 of block 1 followed by block 2
+     */
+    long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long shifted = length2 == chunkLength ? times(chunkOperator, crc1) : shift(crc1, length2);
+        return shifted ^ crc2;
+    }
+
+    /**
+     * Applies length zero bytes to the crc register, without the pre and post conditioning.
+     */
+    private long shift(long crc, long length) {
+        // the operator for one zero bit
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < GF2_DIM; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // two zero bits, then four
+        square(even, odd);
+        square(odd, even);
+
+        // one zero byte first, then doubling for each bit of the length
+        do {
+            square(even, odd);
+            if ((length & 1) != 0) {
+                crc = times(even, crc);
+            }
+            length >>= 1;
+            if (length == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            length >>= 1;
+        } while (length != 0);
+        return crc;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < GF2_DIM; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
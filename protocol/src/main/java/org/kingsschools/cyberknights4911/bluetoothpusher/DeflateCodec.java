@@ -0,0 +1,66 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib deflate, the best ratio of the codecs and the right choice for slow links.
+ */
+public class DeflateCodec implements Codec {
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DeflateCodec(int level) {
+        deflater = new Deflater(level);
+    }
+
+    @Override
+    public byte getId() {
+        return FilePushMessage.COMPRESSION_DEFLATE;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        // zlib's deflateBound plus the stream header and trailer
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+        deflater.reset();
+        deflater.setInput(src, srcOffset, srcLength);
+        deflater.finish();
+        int written = 0;
+        while (!deflater.finished()) {
+            written += deflater.deflate(dst, dstOffset + written, dst.length - dstOffset - written);
+        }
+        return written;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws IOException {
+        inflater.reset();
+        inflater.setInput(src, srcOffset, srcLength);
+        int read = 0;
+        try {
+            while (read < dstLength) {
+                int n = inflater.inflate(dst, dstOffset + read, dstLength - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                read += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate block", e);
+        }
+        if (read != dstLength) {
+            throw new IOException("Deflate block expanded to " + read + " bytes, expected " + dstLength);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Walks a directory tree depth first, a directory before its contents, in the order every part of
+ * a send has to agree on. Only the listing of each directory on the current path is held, so
+ * memory grows with the depth of the tree rather than its size.
+ * <p>
+ * Once {@link #start()}ed the walk runs ahead on its own thread as a pipeline stage, up to the
+ * prefetch count of entries ahead of the consumer, with each file's length and last modified
+ * time already read and optionally the file already opened.
+ */
+class DirectoryWalker implements Closeable {
+    static class Entry {
+        final File file;
+        // for a file the destination directory it goes in, for a directory its own destination path
+        final File destination;
+        final boolean directory;
+        final int childCount;
+        final long length;
+        final long lastModified;
+        // opened ahead of time by a prefetching walk, whoever takes the entry must close it
+        FileInputStream stream;
+
+        private Entry(File file, File destination, boolean directory, int childCount, long length, long lastModified) {
+            this.file = file;
+            this.destination = destination;
+            this.directory = directory;
+            this.childCount = childCount;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Takes the prefetched stream, or opens the file if there isn't one.
+         */
+        FileInputStream openStream() throws IOException {
+            FileInputStream stream = this.stream;
+            this.stream = null;
+            return stream != null ? stream : new FileInputStream(file);
+        }
+
+        void closeStream() {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // only read from, nothing was lost
+                }
+                stream = null;
+            }
+        }
+    }
+
+    private static class Level {
+        final File dir;
+        final File destination;
+        final String[] names;
+        int index;
+
+        Level(File dir, File destination, String[] names) {
+            this.dir = dir;
+            this.destination = destination;
+            this.names = names;
+        }
+    }
+
+    // marks the end of a prefetching walk
+    private static final Entry END = new Entry(null, null, false, 0, 0, 0);
+
+    private final Deque<Level> stack = new ArrayDeque<>();
+    private File root;
+    private File rootDestination;
+    private boolean openFiles;
+
+    private BlockingQueue<Entry> prefetched;
+    private Thread walkingThread;
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    /**
+     * @param root            the directory to walk, it is sent to the destination
+     * @param rootDestination where the root's contents go on the receiver
+     */
+    DirectoryWalker(File root, File rootDestination) {
+        this.root = root;
+        this.rootDestination = rootDestination;
+    }
+
+    /**
+     * Runs the walk on its own thread from here on.
+     *
+     * @param prefetch  how many entries the walk may get ahead
+     * @param openFiles whether to open the files ahead of time too
+     */
+    void start(int prefetch, boolean openFiles) {
+        this.openFiles = openFiles;
+        prefetched = new ArrayBlockingQueue<>(Math.max(1, prefetch));
+        walkingThread = new Thread() {
+            public void run() {
+                try {
+                    Entry entry;
+                    while (!closed && (entry = walk()) != null) {
+                        try {
+                            prefetched.put(entry);
+                        } catch (InterruptedException e) {
+                            entry.closeStream();
+                            return;
+                        }
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+                try {
+                    prefetched.put(END);
+                } catch (InterruptedException e) {
+                    // closed while the consumer wasn't taking entries
+                }
+            }
+        };
+        walkingThread.start();
+    }
+
+    /**
+     * @return the next directory or file, or null when the walk is complete
+     */
+    Entry next() throws IOException {
+        if (prefetched == null) {
+            return walk();
+        }
+        Entry entry;
+        try {
+            entry = prefetched.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on the directory walk");
+        }
+        if (entry == END) {
+            // leave the marker for anyone calling again
+            prefetched.offer(END);
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    private Entry walk() throws IOException {
+        if (root != null) {
+            Entry entry = enter(root, rootDestination);
+            root = null;
+            return entry;
+        }
+        while (!stack.isEmpty()) {
+            Level level = stack.peek();
+            if (level.index >= level.names.length) {
+                stack.pop();
+                continue;
+            }
+            File child = new File(level.dir, level.names[level.index++]);
+            if (child.isFile()) {
+                Entry entry = new Entry(child, level.destination, false, 0, child.length(), child.lastModified());
+                if (openFiles) {
+                    entry.stream = new FileInputStream(child);
+                }
+                return entry;
+            } else if (child.isDirectory()) {
+                return enter(child, new File(level.destination, child.getName()));
+            }
+        }
+        return null;
+    }
+
+    private Entry enter(File dir, File destination) {
+        String[] names = dir.list();
+        if (names == null) {
+            names = new String[0];
+        }
+        stack.push(new Level(dir, destination, names));
+        return new Entry(dir, destination, true, names.length, 0, dir.lastModified());
+    }
+
+    /**
+     * Stops the walk and closes any files it opened ahead of time.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (walkingThread != null) {
+            walkingThread.interrupt();
+            Entry entry;
+            while ((entry = prefetched.poll()) != null) {
+                entry.closeStream();
+            }
+            try {
+                walkingThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // the walk may have put one more before it noticed
+            while ((entry = prefetched.poll()) != null) {
+                entry.closeStream();
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content hashes for the manifest. The same folders are pushed many times, so hashes are cached
+ * against the file's path, size and modification time and only recomputed when one changes.
+ */
+public class FileHasher {
+    public static final int HASH_LENGTH = 20;
+
+    private static final int MAX_CACHED = 4096;
+
+    private static final Map<String, CachedHash> cache = new LinkedHashMap<String, CachedHash>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedHash> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    private static class CachedHash {
+        final long length;
+        final long lastModified;
+        final byte[] hash;
+
+        CachedHash(long length, long lastModified, byte[] hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private FileHasher() {
+    }
+
+    /**
+     * @return the SHA-1 of the file's contents
+     */
+    public static byte[] hash(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (cache) {
+            CachedHash cached = cache.get(key);
+            if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+                return cached.hash;
+            }
+        }
+
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[16 * 1024];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        byte[] hash = digest.digest();
+
+        synchronized (cache) {
+            cache.put(key, new CachedHash(length, lastModified, hash));
+        }
+        return hash;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is always available", e);
+        }
+    }
+}
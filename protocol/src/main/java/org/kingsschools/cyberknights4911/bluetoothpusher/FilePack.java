@@ -0,0 +1,103 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The index of a PACK message, the small files it bundles and where each goes. Each destination
+ * directory is written once in a table and the entries refer to it by position, a pack of files
+ * from the same directory costs little more than their names and lengths.
+ */
+class FilePack {
+    static class Entry {
+        final File file;
+        final File destinationDirectory;
+        final int length;
+
+        Entry(File file, File destinationDirectory, int length) {
+            this.file = file;
+            this.destinationDirectory = destinationDirectory;
+            this.length = length;
+        }
+
+        String getDestinationPath() {
+            return Manifest.destinationPath(file, destinationDirectory);
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private int contentLength;
+
+    void add(File file, File destinationDirectory, int length) {
+        entries.add(new Entry(file, destinationDirectory, length));
+        contentLength += length;
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total length of the files, back to back
+     */
+    int getContentLength() {
+        return contentLength;
+    }
+
+    void writeIndex(DataOutputStream out) throws IOException {
+        List<String> directories = new ArrayList<>();
+        Map<String, Integer> directoryIndex = new HashMap<>();
+        int[] refs = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            File directory = entries.get(i).destinationDirectory;
+            String path = directory == null ? "" : directory.getPath();
+            Integer index = directoryIndex.get(path);
+            if (index == null) {
+                index = directories.size();
+                directories.add(path);
+                directoryIndex.put(path, index);
+            }
+            refs[i] = index;
+        }
+
+        out.writeShort(directories.size());
+        for (String directory : directories) {
+            out.writeUTF(directory);
+        }
+        out.writeShort(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            out.writeShort(refs[i]);
+            out.writeUTF(entry.file.getName());
+            out.writeInt(entry.length);
+        }
+    }
+
+    /**
+     * Reads an index, the files are the names the receiver would create, relative to no directory.
+     */
+    static FilePack readIndex(DataInputStream in) throws IOException {
+        String[] directories = new String[in.readUnsignedShort()];
+        for (int i = 0; i < directories.length; i++) {
+            directories[i] = in.readUTF();
+        }
+        FilePack pack = new FilePack();
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            String directory = directories[in.readUnsignedShort()];
+            File file = new File(in.readUTF());
+            pack.add(file, directory.isEmpty() ? null : new File(directory), in.readInt());
+        }
+        return pack;
+    }
+}
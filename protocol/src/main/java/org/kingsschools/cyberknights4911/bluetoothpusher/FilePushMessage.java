@@ -0,0 +1,40 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+/**
+ * Constants for message types for the internal protocol. See the protocol description in
+ * {@code ConnectedDevice} for the layout of each message.
+ */
+public interface FilePushMessage {
+    public static final byte TYPE_FILE = 1;
+    public static final byte TYPE_DIRECTORY = 2;
+    public static final byte TYPE_STOP = 3;
+    public static final byte TYPE_KEEP_ALIVE = 4;
+    public static final byte TYPE_FILE_ACK = 5;
+    public static final byte TYPE_HELLO = 6;
+    public static final byte TYPE_SETTINGS = 7;
+    public static final byte TYPE_FILE_SACK = 8;
+    public static final byte TYPE_FILE_NAK = 9;
+    public static final byte TYPE_MANIFEST = 10;
+    public static final byte TYPE_MANIFEST_REPLY = 11;
+    public static final byte TYPE_TRANSFER_BEGIN = 12;
+    public static final byte TYPE_CHECKPOINT = 13;
+    public static final byte TYPE_RESUME_QUERY = 14;
+    public static final byte TYPE_RESUME_STATE = 15;
+    public static final byte TYPE_CHUNK_NAK = 16;
+    public static final byte TYPE_CHUNK_RETRANSMIT = 17;
+    public static final byte TYPE_PACK = 18;
+    public static final byte TYPE_STRIPE_JOIN = 19;
+    public static final byte TYPE_STRIPE_DATA = 20;
+    public static final byte TYPE_STRIPED_FILE = 21;
+    public static final byte TYPE_ROOT_HASH = 22;
+
+    /**
+     * Frame types inside a framed FILE message
+     */
+    public static final byte FRAME_DATA = 1;
+    public static final byte FRAME_END = 2;
+
+    public static final byte COMPRESSION_NONE = 0;
+    public static final byte COMPRESSION_DEFLATE = 1;
+    public static final byte COMPRESSION_LZF = 2;
+}
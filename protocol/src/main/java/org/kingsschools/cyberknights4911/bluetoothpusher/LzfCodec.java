@@ -0,0 +1,135 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The LZF format from liblzf, a byte oriented LZ77 variant that trades ratio for speed. Useful
+ * when the pusher, rather than the link, is the bottleneck.
+ * <p>
+ * The compressed block is a sequence of runs, each starting with a control byte:
+ * 000lllll - a run of l + 1 literal bytes follows
+ * lllooooo - a back reference, length l + 2 (when l is 7 an extra length byte follows),
+ * offset from the next byte plus the low 5 bits of the control byte, minus one
+ */
+public class LzfCodec implements Codec {
+    private static final int HASH_LOG = 14;
+    private static final int MAX_LITERAL = 32;
+    private static final int MAX_OFFSET = 1 << 13;
+    private static final int MAX_REFERENCE = (1 << 8) + (1 << 3);
+
+    private final int[] hashTable = new int[1 << HASH_LOG];
+
+    @Override
+    public byte getId() {
+        return FilePushMessage.COMPRESSION_LZF;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        // all literals, one control byte per run
+        return length + (length + MAX_LITERAL - 1) / MAX_LITERAL;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+        Arrays.fill(hashTable, -1);
+        int end = srcOffset + srcLength;
+        int ip = srcOffset;
+        int op = dstOffset;
+        int literalStart = ip;
+
+        while (ip < end - 2) {
+            int hash = hash(src, ip);
+            int ref = hashTable[hash];
+            hashTable[hash] = ip;
+
+            int offset = ip - ref - 1;
+            if (ref < 0 || offset >= MAX_OFFSET
+                    || src[ref] != src[ip] || src[ref + 1] != src[ip + 1] || src[ref + 2] != src[ip + 2]) {
+                ip++;
+                continue;
+            }
+
+            int maxLength = Math.min(MAX_REFERENCE, end - ip);
+            int length = 3;
+            while (length < maxLength && src[ref + length] == src[ip + length]) {
+                length++;
+            }
+
+            op = writeLiterals(src, literalStart, ip - literalStart, dst, op);
+            int encodedLength = length - 2;
+            if (encodedLength < 7) {
+                dst[op++] = (byte) ((encodedLength << 5) | (offset >> 8));
+            } else {
+                dst[op++] = (byte) ((7 << 5) | (offset >> 8));
+                dst[op++] = (byte) (encodedLength - 7);
+            }
+            dst[op++] = (byte) offset;
+
+            ip += length;
+            literalStart = ip;
+        }
+
+        op = writeLiterals(src, literalStart, end - literalStart, dst, op);
+        return op - dstOffset;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws IOException {
+        int ip = srcOffset;
+        int end = srcOffset + srcLength;
+        int op = dstOffset;
+        int dstEnd = dstOffset + dstLength;
+        try {
+            while (ip < end) {
+                int control = src[ip++] & 0xFF;
+                if (control < MAX_LITERAL) {
+                    int length = control + 1;
+                    if (op + length > dstEnd) {
+                        break;
+                    }
+                    System.arraycopy(src, ip, dst, op, length);
+                    ip += length;
+                    op += length;
+                } else {
+                    int length = control >> 5;
+                    if (length == 7) {
+                        length += src[ip++] & 0xFF;
+                    }
+                    length += 2;
+                    int ref = op - ((control & 0x1F) << 8) - (src[ip++] & 0xFF) - 1;
+                    if (ref < dstOffset || op + length > dstEnd) {
+                        break;
+                    }
+                    // the reference may overlap the output, so copy a byte at a time
+                    for (int i = 0; i < length; i++) {
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZF block", e);
+        }
+        if (ip != end || op != dstEnd) {
+            throw new IOException("Corrupt LZF block, expanded to " + (op - dstOffset) + " bytes, expected " + dstLength);
+        }
+    }
+
+    private static int writeLiterals(byte[] src, int start, int length, byte[] dst, int op) {
+        while (length > 0) {
+            int run = Math.min(length, MAX_LITERAL);
+            dst[op++] = (byte) (run - 1);
+            System.arraycopy(src, start, dst, op, run);
+            op += run;
+            start += run;
+            length -= run;
+        }
+        return op;
+    }
+
+    private static int hash(byte[] src, int i) {
+        int v = ((src[i] & 0xFF) << 16) | ((src[i + 1] & 0xFF) << 8) | (src[i + 2] & 0xFF);
+        return (v * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,132 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The list of files in a send, described well enough for the receiver to tell which ones it
+ * already has an identical copy of. Paths are the receiver side paths, the FILE message's
+ * container joined with its file name.
+ */
+public class Manifest {
+    public static class Entry {
+        public final String path;
+        public final long length;
+        public final long lastModified;
+        public final byte[] hash;
+
+        public Entry(String path, long length, long lastModified, byte[] hash) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * Describes a file or a directory tree, using the same destination paths that
+     * {@code ConnectedDevice} sends them to.
+     */
+    public static Manifest build(File path) throws IOException {
+        Manifest manifest = new Manifest();
+        if (!path.isDirectory()) {
+            manifest.addFile(path, null);
+            return manifest;
+        }
+        DirectoryWalker walker = new DirectoryWalker(path, new File("/"));
+        DirectoryWalker.Entry entry;
+        while ((entry = walker.next()) != null) {
+            if (!entry.directory) {
+                manifest.addFile(entry.file, entry.destination);
+            }
+        }
+        return manifest;
+    }
+
+    private void addFile(File file, File destinationContainer) throws IOException {
+        add(new Entry(destinationPath(file, destinationContainer), file.length(), file.lastModified(), FileHasher.hash(file)));
+    }
+
+    public static String destinationPath(File file, File destinationContainer) {
+        return destinationContainer == null ? file.getName() : new File(destinationContainer, file.getName()).getPath();
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeUTF(entry.path);
+            out.writeLong(entry.length);
+            out.writeLong(entry.lastModified);
+            out.write(entry.hash);
+        }
+    }
+
+    public static Manifest readFrom(DataInputStream in) throws IOException {
+        Manifest manifest = new Manifest();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String path = in.readUTF();
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            byte[] hash = new byte[FileHasher.HASH_LENGTH];
+            in.readFully(hash);
+            manifest.add(new Entry(path, length, lastModified, hash));
+        }
+        return manifest;
+    }
+
+    /**
+     * @return the paths of the entries whose bit is clear, ie. the ones the receiver doesn't need
+     */
+    public Set<String> unneeded(BitSet needed) {
+        Set<String> paths = new HashSet<>();
+        for (int i = 0; i < entries.size(); i++) {
+            if (!needed.get(i)) {
+                paths.add(entries.get(i).path);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * The MANIFEST_REPLY body, entry count then a bit per entry, set when the file must be sent
+     */
+    public static void writeNeeded(DataOutputStream out, BitSet needed, int count) throws IOException {
+        out.writeInt(count);
+        byte[] bits = new byte[(count + 7) / 8];
+        for (int i = needed.nextSetBit(0); i >= 0 && i < count; i = needed.nextSetBit(i + 1)) {
+            bits[i / 8] |= 1 << (i % 8);
+        }
+        out.write(bits);
+    }
+
+    public static BitSet readNeeded(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        byte[] bits = new byte[(count + 7) / 8];
+        in.readFully(bits);
+        BitSet needed = new BitSet(count);
+        for (int i = 0; i < count; i++) {
+            if ((bits[i / 8] & (1 << (i % 8))) != 0) {
+                needed.set(i);
+            }
+        }
+        return needed;
+    }
+}
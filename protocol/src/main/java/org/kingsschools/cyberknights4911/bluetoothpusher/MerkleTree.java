@@ -0,0 +1,138 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The SHA-256 Merkle tree of a file's chunks, see {@link Capabilities#FEATURE_MERKLE}. Each DATA
+ * frame is a leaf, hashed with its offset so chunks can't be swapped, and the root over the
+ * leaves in offset order stands for the whole file. The tree has the shape of RFC 6962's, the
+ * left subtree of every node is the largest power of two that leaves anything on the right.
+ * <p>
+ * Leaves are added in offset order and folded into perfect subtrees as they come, so only one
+ * hash per level is kept however long the file is, and nothing is allocated per leaf. Instances
+ * are not thread safe.
+ */
+class MerkleTree {
+    static final int HASH_LENGTH = 32;
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+    // enough levels for more leaves than a long can count
+    private static final int MAX_LEVELS = 64;
+
+    private final MessageDigest digest;
+    private final byte[] offsetBytes = new byte[8];
+    // the roots of the perfect subtrees so far, largest first, and how many leaves each covers as a power of 2
+    private final byte[][] subtrees = new byte[MAX_LEVELS][HASH_LENGTH];
+    private final int[] heights = new int[MAX_LEVELS];
+    private int subtreeCount;
+    private long leafCount;
+
+    MerkleTree() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    /**
+     * Starts over for the next file.
+     */
+    void reset() {
+        subtreeCount = 0;
+        leafCount = 0;
+    }
+
+    /**
+     * Hashes a chunk as the leaf at the offset, without adding it to the tree.
+     */
+    void leaf(long offset, byte[] data, int start, int length, byte[] hash, int hashOffset) {
+        beginLeaf(offset);
+        updateLeaf(data, start, length);
+        endLeaf(hash, hashOffset);
+    }
+
+    /**
+     * Starts hashing a leaf that arrives in pieces, such as the part of a resumed file the
+     * receiver already has, see {@link #updateLeaf} and {@link #endLeaf}.
+     */
+    void beginLeaf(long offset) {
+        digest.reset();
+        digest.update(LEAF);
+        for (int i = 0; i < 8; i++) {
+            offsetBytes[i] = (byte) (offset >>> (56 - 8 * i));
+        }
+        digest.update(offsetBytes);
+    }
+
+    void updateLeaf(byte[] data, int start, int length) {
+        digest.update(data, start, length);
+    }
+
+    void endLeaf(byte[] hash, int hashOffset) {
+        finish(hash, hashOffset);
+    }
+
+    /**
+     * Adds the next leaf, in offset order.
+     */
+    void add(byte[] hash, int hashOffset) {
+        if (subtreeCount == MAX_LEVELS) {
+            throw new IllegalStateException("Too many leaves: " + leafCount);
+        }
+        System.arraycopy(hash, hashOffset, subtrees[subtreeCount], 0, HASH_LENGTH);
+        heights[subtreeCount] = 0;
+        subtreeCount++;
+        leafCount++;
+        // two subtrees of the same size make one twice as big
+        while (subtreeCount > 1 && heights[subtreeCount - 1] == heights[subtreeCount - 2]) {
+            byte[] left = subtrees[subtreeCount - 2];
+            node(left, 0, subtrees[subtreeCount - 1], 0, left, 0);
+            heights[subtreeCount - 2]++;
+            subtreeCount--;
+        }
+    }
+
+    /**
+     * The root of the leaves added so far, the tree can still be added to afterwards. A file
+     * without any chunks has the hash of an empty leaf at offset 0 as its root.
+     */
+    void root(byte[] hash, int hashOffset) {
+        if (subtreeCount == 0) {
+            beginLeaf(0);
+            endLeaf(hash, hashOffset);
+            return;
+        }
+        // the smaller subtrees on the right fold into the larger ones on their left
+        System.arraycopy(subtrees[subtreeCount - 1], 0, hash, hashOffset, HASH_LENGTH);
+        for (int i = subtreeCount - 2; i >= 0; i--) {
+            node(subtrees[i], 0, hash, hashOffset, hash, hashOffset);
+        }
+    }
+
+    long getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Hashes the left and right children into the parent, which may overwrite either of them.
+     */
+    private void node(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] parent, int parentOffset) {
+        digest.reset();
+        digest.update(NODE);
+        digest.update(left, leftOffset, HASH_LENGTH);
+        digest.update(right, rightOffset, HASH_LENGTH);
+        finish(parent, parentOffset);
+    }
+
+    private void finish(byte[] hash, int hashOffset) {
+        try {
+            digest.digest(hash, hashOffset, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException("SHA-256 digest is " + HASH_LENGTH + " bytes", e);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The directories sent over one connection by their id, when {@link Capabilities#FEATURE_PATH_DICTIONARY}
+ * was agreed. Each DIRECTORY message gives its directory the next id and names it relative to its
+ * parent's id, and FILE messages name their container by id, so a deep path is only ever sent a
+ * component at a time. Both ends start a new dictionary with each connection.
+ * <p>
+ * Also holds the compact encodings used with the dictionary: unsigned varints, 7 bits a byte
+ * least significant first, and strings as a varint byte length followed by standard UTF-8.
+ */
+public class PathDictionary {
+    /**
+     * Stands for no directory, a FILE sent without a container or a DIRECTORY named by its full path
+     */
+    public static final int NO_DIRECTORY = 0;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // no name a file system allows comes close, a larger length means a corrupt stream
+    private static final int MAX_STRING_BYTES = 1024 * 1024;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Map<Integer, String> paths = new HashMap<>();
+    private int nextId = NO_DIRECTORY + 1;
+
+    /**
+     * Pusher side, gives the directory path the next id.
+     */
+    public int assign(String path) {
+        int id = nextId++;
+        ids.put(path, id);
+        paths.put(id, path);
+        return id;
+    }
+
+    /**
+     * @return the id of a directory already sent, or {@link #NO_DIRECTORY}
+     */
+    public int idOf(String path) {
+        Integer id = ids.get(path);
+        return id == null ? NO_DIRECTORY : id;
+    }
+
+    /**
+     * Receiver side, records the directory a DIRECTORY message named.
+     */
+    public void put(int id, String path) {
+        ids.put(path, id);
+        paths.put(id, path);
+    }
+
+    /**
+     * @throws IOException for an id no DIRECTORY message has given out
+     */
+    public String pathOf(int id) throws IOException {
+        String path = paths.get(id);
+        if (path == null) {
+            throw new IOException("Unknown directory id " + id);
+        }
+        return path;
+    }
+
+    public void clear() {
+        ids.clear();
+        paths.clear();
+        nextId = NO_DIRECTORY + 1;
+    }
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint longer than 5 bytes");
+    }
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,207 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * An in-memory transport. Transports are created in connected pairs with {@link #pair(String)},
+ * whatever is written to one end's output stream is read from the other end's input stream.
+ * Used to run a pusher and a receiver in the same process without any sockets.
+ */
+public class PipeTransport implements Transport {
+    private static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    private final String name;
+    private final Pipe in;
+    private final Pipe out;
+    private PipeTransport remote;
+
+    private PipeTransport(String name, Pipe in, Pipe out) {
+        this.name = name;
+        this.in = in;
+        this.out = out;
+    }
+
+    public static PipeTransport[] pair(String name) {
+        return pair(name, DEFAULT_PIPE_CAPACITY);
+    }
+
+    /**
+     * @param name     name of the link, reported by both ends
+     * @param capacity bytes buffered in each direction before writers block
+     * @return the two connected ends, index 0 is conventionally the pusher and 1 the receiver
+     */
+    public static PipeTransport[] pair(String name, int capacity) {
+        Pipe toReceiver = new Pipe(capacity);
+        Pipe toPusher = new Pipe(capacity);
+        PipeTransport pusher = new PipeTransport(name, toPusher, toReceiver);
+        PipeTransport receiver = new PipeTransport(name, toReceiver, toPusher);
+        pusher.remote = receiver;
+        receiver.remote = pusher;
+        return new PipeTransport[]{pusher, receiver};
+    }
+
+    public PipeTransport getRemote() {
+        return remote;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (!isConnected()) {
+            throw new IOException("Pipe closed: " + name);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !in.isClosed() && !out.isClosed();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in.inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out.outputStream;
+    }
+
+    @Override
+    public void close() {
+        // closing either end tears down both directions, like a socket
+        in.close();
+        out.close();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getAddress() {
+        return "pipe:" + name;
+    }
+
+    @Override
+    public String getLinkType() {
+        return LinkTypes.PIPE;
+    }
+
+    /**
+     * A bounded single producer, single consumer ring buffer. Unlike {@link java.io.PipedInputStream}
+     * it does not poll and does not care which threads read and write.
+     */
+    private static class Pipe {
+        private final byte[] buffer;
+        private int readPos;
+        private int count;
+        private boolean closed;
+
+        final InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return count;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (count == 0) {
+                if (closed) {
+                    return -1;
+                }
+                waitForChange();
+            }
+            int n = Math.min(len, count);
+            int first = Math.min(n, buffer.length - readPos);
+            System.arraycopy(buffer, readPos, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            readPos = (readPos + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (count == buffer.length && !closed) {
+                    waitForChange();
+                }
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+                int writePos = (readPos + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePos));
+                System.arraycopy(b, off, buffer, writePos, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        private void waitForChange() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting on pipe");
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A transport over a TCP socket. Used to run the push protocol against a receiver on the
+ * loopback interface, or any other host, when profiling off-device.
+ */
+public class TcpTransport implements Transport {
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+
+    public TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Wraps an already connected socket, such as one returned from a server socket accept.
+     */
+    public TcpTransport(Socket socket) {
+        this(socket.getInetAddress().getHostAddress(), socket.getPort());
+        this.socket = socket;
+    }
+
+    /**
+     * @return a transport to a receiver listening on the loopback interface
+     */
+    public static TcpTransport loopback(int port) {
+        return new TcpTransport("127.0.0.1", port);
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if (isConnected()) {
+            return;
+        }
+        Socket socket = new Socket();
+        // the protocol is full of small messages followed by a wait for an ack
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        this.socket = socket;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return socket != null && socket.isConnected() && !socket.isClosed();
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        checkConnected();
+        return socket.getInputStream();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        checkConnected();
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public String getLinkType() {
+        return LinkTypes.TCP;
+    }
+
+    private void checkConnected() throws IOException {
+        if (socket == null) {
+            throw new IOException("Not connected to: " + getAddress());
+        }
+    }
+}
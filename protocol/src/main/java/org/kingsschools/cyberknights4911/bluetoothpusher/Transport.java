@@ -0,0 +1,55 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte link to a receiving server. The push protocol in {@code ConnectedDevice}
+ * is written against this interface so it can run over RFCOMM on a device, or over a TCP
+ * socket or an in-memory pipe on a plain JVM.
+ */
+public interface Transport extends Closeable {
+    /**
+     * Link type names reported by {@link #getLinkType()}
+     */
+    public interface LinkTypes {
+        public static final String RFCOMM = "RFCOMM";
+        public static final String TCP = "TCP";
+        public static final String PIPE = "PIPE";
+    }
+
+    /**
+     * Opens the link. Calling this on a transport that was closed opens a fresh link to the same
+     * remote end where the implementation supports it.
+     */
+    void connect() throws IOException;
+
+    boolean isConnected();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Closes the link, unblocking any thread reading from the input stream.
+     */
+    @Override
+    void close() throws IOException;
+
+    /**
+     * @return a human readable name for the remote end, used in logs and status messages
+     */
+    String getName();
+
+    /**
+     * @return the address of the remote end, eg. the bluetooth MAC or host:port
+     */
+    String getAddress();
+
+    /**
+     * @return one of the {@link LinkTypes}
+     */
+    String getLinkType();
+}
@@ -0,0 +1,162 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A file being received. It is written next to its destination with a .part suffix and only
+ * renamed into place once verified, so a half received file never replaces a good one and an
+ * interrupted transfer can carry on from what is already on disk.
+ */
+class PartFile implements Closeable {
+    static final String SUFFIX = ".part";
+
+    private final File target;
+    private final File part;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private long position;
+
+    private PartFile(File target, File part, RandomAccessFile file, long position) {
+        this.target = target;
+        this.part = part;
+        this.file = file;
+        this.channel = file.getChannel();
+        this.position = position;
+    }
+
+    static File partFor(File target) {
+        return new File(target.getPath() + SUFFIX);
+    }
+
+    /**
+     * Opens the part file, keeping the first startOffset bytes of an earlier attempt.
+     *
+     * @param prefixCrc reset and updated with the bytes kept, the file CRC covers them too
+     */
+    static PartFile open(File target, long startOffset, CRC32 prefixCrc, byte[] buffer) throws IOException {
+        return open(target, startOffset, prefixCrc, null, buffer);
+    }
+
+    /**
+     * @param prefixTree with FEATURE_MERKLE, given the bytes kept as its first leaf, or null
+     */
+    static PartFile open(File target, long startOffset, CRC32 prefixCrc, MerkleTree prefixTree, byte[] buffer) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        File part = partFor(target);
+        if (startOffset > 0 && part.length() < startOffset) {
+            throw new IOException("Cannot resume " + target + " at " + startOffset + ", only "
+                    + part.length() + " bytes are on disk");
+        }
+
+        RandomAccessFile file = new RandomAccessFile(part, "rw");
+        try {
+            file.setLength(startOffset);
+            prefixCrc.reset();
+            if (prefixTree != null) {
+                prefixTree.beginLeaf(0);
+            }
+            long read = 0;
+            while (read < startOffset) {
+                int n = file.read(buffer, 0, (int) Math.min(buffer.length, startOffset - read));
+                if (n < 0) {
+                    throw new IOException("Part file shrank while resuming: " + part);
+                }
+                prefixCrc.update(buffer, 0, n);
+                if (prefixTree != null) {
+                    prefixTree.updateLeaf(buffer, 0, n);
+                }
+                read += n;
+            }
+            if (prefixTree != null && startOffset > 0) {
+                byte[] leaf = new byte[MerkleTree.HASH_LENGTH];
+                prefixTree.endLeaf(leaf, 0);
+                prefixTree.add(leaf, 0);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return new PartFile(target, part, file, startOffset);
+    }
+
+    /**
+     * Appends at the current position.
+     */
+    void write(byte[] data, int offset, int length) throws IOException {
+        write(position, data, offset, length);
+    }
+
+    /**
+     * Writes at an offset, the position moves to the end of the write if that is further.
+     */
+    void write(long at, byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        long writeAt = at;
+        while (buffer.hasRemaining()) {
+            writeAt += channel.write(buffer, writeAt);
+        }
+        position = Math.max(position, writeAt);
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    void truncate(long length) throws IOException {
+        channel.truncate(length);
+        position = Math.min(position, length);
+    }
+
+    /**
+     * Makes everything written so far durable.
+     */
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Moves the verified file into place.
+     */
+    void commit(boolean sync) throws IOException {
+        if (sync) {
+            sync();
+        }
+        close();
+        if (!part.renameTo(target)) {
+            // some file systems won't rename over an existing file
+            if (!target.delete() || !part.renameTo(target)) {
+                throw new IOException("Could not move " + part + " to " + target);
+            }
+        }
+    }
+
+    /**
+     * Throws away a file that failed verification.
+     */
+    void discard() {
+        try {
+            close();
+        } catch (IOException e) {
+            // it is being deleted anyway
+        }
+        part.delete();
+    }
+
+    File getTarget() {
+        return target;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
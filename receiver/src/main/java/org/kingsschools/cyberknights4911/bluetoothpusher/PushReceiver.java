@@ -0,0 +1,299 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The receiving end of the push protocol, files pushed to it are written under a root directory.
+ * Each connected pusher is served by its own session, at most {@link ReceiverOptions#getMaxSessions()}
+ * at a time on a fixed pool of threads, further pushers wait until a session ends.
+ * <p>
+ * Pushers connect through any number of {@link TransportAcceptor}s, eg. RFCOMM on a device and
+ * TCP for testing, or their transports can be handed over directly with {@link #receive(Transport)}.
+ * <p>
+ * A pusher striping a large file over several channels opens each extra channel the same way,
+ * so every one of them takes up a session too.
+ */
+public class PushReceiver implements Closeable {
+    private static final Logger LOG = Logger.getLogger(PushReceiver.class.getName());
+
+    // transfers that can be resumed after their pusher reconnects, the oldest are forgotten
+    private static final int MAX_RESUME_POINTS = 64;
+
+    /**
+     * How far a transfer got, the file it was part way through and how much of it is on disk
+     */
+    static class ResumePoint {
+        final String path;
+        final long committedOffset;
+
+        ResumePoint(String path, long committedOffset) {
+            this.path = path;
+            this.committedOffset = committedOffset;
+        }
+    }
+
+    private final File root;
+    private final String rootPrefix;
+    private final ReceiverOptions options;
+    private final ExecutorService sessions;
+    private final Semaphore sessionSlots;
+    private final List<TransportAcceptor> acceptors = new CopyOnWriteArrayList<>();
+    private final Set<Transport> connected = Collections.synchronizedSet(new HashSet<Transport>());
+    private final Map<Long, ResumePoint> resumePoints = new LinkedHashMap<Long, ResumePoint>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ResumePoint> eldest) {
+            return size() > MAX_RESUME_POINTS;
+        }
+    };
+    // sessions that extra channels can join by token, see FEATURE_STRIPES
+    private final ConcurrentMap<Integer, ReceiverSession> stripeOwners = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private volatile boolean closed;
+
+    private final AtomicLong sessionCount = new AtomicLong();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong filesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong crcFailures = new AtomicLong();
+
+    public PushReceiver(File root) throws IOException {
+        this(root, new ReceiverOptions());
+    }
+
+    public PushReceiver(File root, ReceiverOptions options) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Could not create receive root " + root);
+        }
+        this.root = root.getCanonicalFile();
+        this.rootPrefix = this.root.getPath().endsWith(File.separator)
+                ? this.root.getPath() : this.root.getPath() + File.separator;
+        this.options = options;
+        this.sessionSlots = new Semaphore(options.getMaxSessions());
+        this.sessions = Executors.newFixedThreadPool(options.getMaxSessions(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PushReceiver-session-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Accepts pushers from the acceptor on a thread of its own until the receiver is closed.
+     * A pusher is only accepted once a session is free for it.
+     */
+    public void serve(final TransportAcceptor acceptor) {
+        acceptors.add(acceptor);
+        Thread acceptThread = new Thread() {
+            public void run() {
+                LOG.info("Receiving on " + acceptor.getAddress() + " into " + root);
+                while (!closed) {
+                    try {
+                        acquireSession();
+                        Transport transport;
+                        try {
+                            transport = acceptor.accept();
+                        } catch (IOException e) {
+                            sessionSlots.release();
+                            throw e;
+                        }
+                        startSession(transport);
+                    } catch (IOException e) {
+                        if (!closed) {
+                            LOG.log(Level.WARNING, "Stopped accepting on " + acceptor.getAddress(), e);
+                        }
+                        break;
+                    }
+                }
+            }
+        };
+        acceptThread.setName("PushReceiver-accept-" + acceptor.getAddress());
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Serves a pusher that is already connected, blocking until a session is free for it.
+     */
+    public void receive(Transport transport) throws IOException {
+        acquireSession();
+        startSession(transport);
+    }
+
+    private void acquireSession() throws IOException {
+        try {
+            sessionSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a free session");
+        }
+    }
+
+    // called holding a session slot, which the session gives back when it ends
+    private void startSession(final Transport transport) {
+        if (closed) {
+            sessionSlots.release();
+            closeQuietly(transport);
+            return;
+        }
+        sessionCount.incrementAndGet();
+        activeSessions.incrementAndGet();
+        connected.add(transport);
+        sessions.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new ReceiverSession(PushReceiver.this, transport).run();
+                } finally {
+                    connected.remove(transport);
+                    closeQuietly(transport);
+                    activeSessions.decrementAndGet();
+                    sessionSlots.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops accepting pushers and drops the ones connected, files they were part way through
+     * are left to be resumed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (TransportAcceptor acceptor : acceptors) {
+            closeQuietly(acceptor);
+        }
+        synchronized (connected) {
+            for (Transport transport : connected) {
+                closeQuietly(transport);
+            }
+        }
+        sessions.shutdownNow();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    ReceiverOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the file for a path sent by a pusher, always inside the root
+     * @throws IOException if the path would escape the root, eg. with ".."
+     */
+    File resolve(String path) throws IOException {
+        File file = new File(root, path).getCanonicalFile();
+        if (!file.equals(root) && !file.getPath().startsWith(rootPrefix)) {
+            throw new IOException("Path escapes the receive root: " + path);
+        }
+        return file;
+    }
+
+    void recordResumePoint(long transferId, String path, long committedOffset) {
+        synchronized (resumePoints) {
+            resumePoints.put(transferId, new ResumePoint(path, committedOffset));
+        }
+    }
+
+    ResumePoint getResumePoint(long transferId) {
+        synchronized (resumePoints) {
+            return resumePoints.get(transferId);
+        }
+    }
+
+    /**
+     * @return a token that extra channels join the session with, never 0
+     */
+    int registerStripeOwner(ReceiverSession session) {
+        while (true) {
+            int token = random.nextInt();
+            if (token != 0 && stripeOwners.putIfAbsent(token, session) == null) {
+                return token;
+            }
+        }
+    }
+
+    void unregisterStripeOwner(int token) {
+        stripeOwners.remove(token);
+    }
+
+    /**
+     * @return the session the token was given out by, or null if it has ended
+     */
+    ReceiverSession getStripeOwner(int token) {
+        return stripeOwners.get(token);
+    }
+
+    void fileReceived(long length) {
+        filesReceived.incrementAndGet();
+        bytesReceived.addAndGet(length);
+    }
+
+    void crcFailed() {
+        crcFailures.incrementAndGet();
+    }
+
+    /**
+     * @return pushers served since the receiver started
+     */
+    public long getSessionCount() {
+        return sessionCount.get();
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    public long getFilesReceived() {
+        return filesReceived.get();
+    }
+
+    /**
+     * @return the uncompressed length of the files received
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return files and chunks that failed their CRC check and were NAKed
+     */
+    public long getCrcFailures() {
+        return crcFailures.get();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing more can be done with it
+        }
+    }
+}
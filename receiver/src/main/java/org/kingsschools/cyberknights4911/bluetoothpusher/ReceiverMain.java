@@ -0,0 +1,43 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs a receiver from the command line, serving pushers over TCP:
+ * <pre>
+ * java -jar receiver.jar &lt;root directory&gt; [port] [max sessions]
+ * </pre>
+ */
+public class ReceiverMain {
+    public static final int DEFAULT_PORT = 4911;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReceiverMain <root directory> [port] [max sessions]");
+            System.exit(2);
+        }
+        File root = new File(args[0]);
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        ReceiverOptions options = new ReceiverOptions();
+        if (args.length > 2) {
+            options.setMaxSessions(Integer.parseInt(args[2]));
+        }
+
+        final PushReceiver receiver = new PushReceiver(root, options);
+        TcpAcceptor acceptor = new TcpAcceptor(port);
+        receiver.serve(acceptor);
+        System.out.println("Receiving into " + receiver.getRoot() + " on port " + acceptor.getPort());
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                receiver.close();
+                System.out.println("Received " + receiver.getFilesReceived() + " files, "
+                        + receiver.getBytesReceived() + " bytes from " + receiver.getSessionCount()
+                        + " sessions, " + receiver.getCrcFailures() + " CRC failures");
+            }
+        });
+        // the accept thread is a daemon, keep the JVM up until it is killed
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,115 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+/**
+ * Tunable settings for a {@link PushReceiver}. The protocol settings are what the receiver
+ * offers in its HELLO, the pusher may agree to less.
+ */
+public class ReceiverOptions {
+    private int version = Capabilities.VERSION_FRAMED;
+    private boolean answerHello = true;
+    private int windowSize = 16;
+    private int codecs = Codecs.supportedMask();
+    private int features = Capabilities.FEATURE_MANIFEST | Capabilities.FEATURE_RESUME
+            | Capabilities.FEATURE_KEEP_ALIVE | Capabilities.FEATURE_UNBOUNDED_DIRECTORIES | Capabilities.FEATURE_PACK
+            | Capabilities.FEATURE_PATH_DICTIONARY | Capabilities.FEATURE_STRIPES | Capabilities.FEATURE_MERKLE;
+    private int maxSessions = 4;
+    private long checkpointBytes = 1024 * 1024;
+    private boolean syncOnCommit = true;
+
+    /**
+     * @return the highest protocol version offered
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public ReceiverOptions setVersion(int version) {
+        this.version = version;
+        return this;
+    }
+
+    /**
+     * @return false to ignore the HELLO like the original receivers, so pushers fall back to
+     * the original stop-and-wait protocol
+     */
+    public boolean isAnswerHello() {
+        return answerHello;
+    }
+
+    public ReceiverOptions setAnswerHello(boolean answerHello) {
+        this.answerHello = answerHello;
+        return this;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public ReceiverOptions setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    /**
+     * @return bitmask of the codecs offered, see {@link Codecs#bit(byte)}
+     */
+    public int getCodecs() {
+        return codecs;
+    }
+
+    public ReceiverOptions setCodecs(int codecs) {
+        this.codecs = codecs;
+        return this;
+    }
+
+    /**
+     * @return bitmask of the Capabilities FEATURE_ constants offered
+     */
+    public int getFeatures() {
+        return features;
+    }
+
+    public ReceiverOptions setFeatures(int features) {
+        this.features = features;
+        return this;
+    }
+
+    /**
+     * @return how many pushers are served at once, more wait to be accepted
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public ReceiverOptions setMaxSessions(int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("Must serve at least 1 session: " + maxSessions);
+        }
+        this.maxSessions = maxSessions;
+        return this;
+    }
+
+    /**
+     * @return how much of a file is written between CHECKPOINTs, when resuming was agreed
+     */
+    public long getCheckpointBytes() {
+        return checkpointBytes;
+    }
+
+    public ReceiverOptions setCheckpointBytes(long checkpointBytes) {
+        this.checkpointBytes = checkpointBytes;
+        return this;
+    }
+
+    /**
+     * @return whether each file is synced to storage before it is acked
+     */
+    public boolean isSyncOnCommit() {
+        return syncOnCommit;
+    }
+
+    public ReceiverOptions setSyncOnCommit(boolean syncOnCommit) {
+        this.syncOnCommit = syncOnCommit;
+        return this;
+    }
+}
@@ -0,0 +1,852 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Serves one pusher for as long as it stays connected, see the protocol description in
+ * {@code ConnectedDevice}. Messages are handled in the order they arrive on the session's thread,
+ * replies are written straight back.
+ * <p>
+ * A file is written to a .part file and renamed into place once it checks out. Framed files are
+ * verified a chunk at a time, a bad chunk is NAKed and the file is held back until the chunk has
+ * been retransmitted, the rest of it is kept. With FEATURE_MERKLE the chunks are checked against
+ * their leaf hashes and the file against its root, which is sent back before the file is acked.
+ * <p>
+ * An extra channel that joins the session to carry stripes of its large files gets a session of
+ * its own, which writes the stripes into the owning session's {@link StripedFile}s.
+ */
+class ReceiverSession implements Runnable {
+    private static final Logger LOG = Logger.getLogger(ReceiverSession.class.getName());
+
+    private static final int STREAM_BUFFER = 64 * 1024;
+    // the most a single block, frame or pack is allowed to claim, so a corrupt length can't exhaust memory
+    private static final int MAX_BLOCK = 64 * 1024 * 1024;
+    // how long a striped file waits on its other channels, and they wait on its header
+    private static final long STRIPE_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * A framed file that arrived with bad chunks, waiting for their retransmits
+     */
+    private static class Repair {
+        final PartFile part;
+        final String path;
+        final long length;
+        // offset to length of the chunks still bad
+        final SortedMap<Long, Integer> badChunks;
+        // with FEATURE_MERKLE, the file's root and the leaf hash each bad chunk has to match, otherwise null
+        final byte[] root;
+        final Map<Long, byte[]> badLeaves;
+
+        Repair(PartFile part, String path, long length, SortedMap<Long, Integer> badChunks,
+               byte[] root, Map<Long, byte[]> badLeaves) {
+            this.part = part;
+            this.path = path;
+            this.length = length;
+            this.badChunks = badChunks;
+            this.root = root;
+            this.badLeaves = badLeaves;
+        }
+    }
+
+    private final PushReceiver receiver;
+    private final ReceiverOptions options;
+    private final Transport transport;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    // settings the pusher chose, null while speaking the original protocol
+    private Capabilities settings;
+    private long transferId = -1;
+    private final Map<Integer, Repair> repairs = new HashMap<>();
+    // files NAKed and not yet received again, while there are any acks can't be cumulative
+    private final Set<Integer> nacked = new HashSet<>();
+    // the directories the pusher has sent, see FEATURE_PATH_DICTIONARY
+    private final PathDictionary directories = new PathDictionary();
+    // the token extra channels join this session with, 0 until one is given out
+    private int stripeToken;
+    // striped files being received, by sequence number, shared with the extra channels' sessions
+    private final Map<Integer, StripedFile> stripedFiles = new HashMap<>();
+    // for an extra channel, the session it carries stripes for
+    private ReceiverSession stripeOwner;
+
+    private final CRC32 crc = new CRC32();
+    private CrcCombiner crcCombiner;
+    private final MerkleTree merkle = new MerkleTree();
+    private final byte[] leafHash = new byte[MerkleTree.HASH_LENGTH];
+    private final byte[] expectedHash = new byte[MerkleTree.HASH_LENGTH];
+    private final Codec[] codecs = new Codec[8];
+    private byte[] wire = new byte[STREAM_BUFFER];
+    private byte[] data = new byte[STREAM_BUFFER];
+
+    ReceiverSession(PushReceiver receiver, Transport transport) {
+        this.receiver = receiver;
+        this.options = receiver.getOptions();
+        this.transport = transport;
+    }
+
+    @Override
+    public void run() {
+        LOG.info("Session started with " + transport.getName());
+        try {
+            in = new DataInputStream(new BufferedInputStream(transport.getInputStream(), STREAM_BUFFER));
+            out = new DataOutputStream(new BufferedOutputStream(transport.getOutputStream()));
+            while (readMessage()) {
+                // until STOP or the pusher disconnects
+            }
+            LOG.info("Session ended with " + transport.getName());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Session with " + transport.getName() + " failed", e);
+        } finally {
+            for (Repair repair : repairs.values()) {
+                repair.part.discard();
+            }
+            repairs.clear();
+            if (stripeToken != 0) {
+                receiver.unregisterStripeOwner(stripeToken);
+            }
+            synchronized (stripedFiles) {
+                for (StripedFile file : stripedFiles.values()) {
+                    if (file.part != null) {
+                        file.part.discard();
+                    }
+                }
+                stripedFiles.clear();
+            }
+        }
+    }
+
+    /**
+     * @return false once the pusher is done
+     */
+    private boolean readMessage() throws IOException {
+        int type = in.read();
+        switch (type) {
+            case -1:
+            case FilePushMessage.TYPE_STOP:
+                return false;
+            case FilePushMessage.TYPE_HELLO:
+                receiveHello();
+                break;
+            case FilePushMessage.TYPE_SETTINGS:
+                settings = Capabilities.readFrom(in);
+                LOG.fine("Agreed " + settings + " with " + transport.getName());
+                break;
+            case FilePushMessage.TYPE_KEEP_ALIVE:
+                if (hasFeature(Capabilities.FEATURE_KEEP_ALIVE)) {
+                    out.writeByte(FilePushMessage.TYPE_KEEP_ALIVE);
+                    out.flush();
+                }
+                break;
+            case FilePushMessage.TYPE_MANIFEST:
+                receiveManifest();
+                break;
+            case FilePushMessage.TYPE_TRANSFER_BEGIN:
+                transferId = in.readLong();
+                break;
+            case FilePushMessage.TYPE_RESUME_QUERY:
+                receiveResumeQuery(in.readLong());
+                break;
+            case FilePushMessage.TYPE_DIRECTORY:
+                receiveDirectory();
+                break;
+            case FilePushMessage.TYPE_FILE:
+                receiveFile(false);
+                break;
+            case FilePushMessage.TYPE_STRIPED_FILE:
+                receiveFile(true);
+                break;
+            case FilePushMessage.TYPE_STRIPE_JOIN:
+                receiveStripeJoin();
+                break;
+            case FilePushMessage.TYPE_STRIPE_DATA:
+                receiveStripeData();
+                break;
+            case FilePushMessage.TYPE_CHUNK_RETRANSMIT:
+                receiveChunkRetransmit();
+                break;
+            case FilePushMessage.TYPE_PACK:
+                receivePack();
+                break;
+            default:
+                // the message's length isn't known, there is no way to skip it
+                throw new IOException("Unknown message type " + type + " from " + transport.getName());
+        }
+        return true;
+    }
+
+    private void receiveHello() throws IOException {
+        if (!options.isAnswerHello()) {
+            return;
+        }
+        Capabilities capabilities = new Capabilities()
+                .set(Capabilities.KEY_VERSION, options.getVersion())
+                .set(Capabilities.KEY_WINDOW, options.getWindowSize())
+                .set(Capabilities.KEY_CODECS, options.getCodecs() & Codecs.supportedMask())
+                .set(Capabilities.KEY_FEATURES, options.getFeatures());
+        if ((options.getFeatures() & Capabilities.FEATURE_STRIPES) != 0) {
+            if (stripeToken == 0) {
+                stripeToken = receiver.registerStripeOwner(this);
+            }
+            capabilities.set(Capabilities.KEY_STRIPE_TOKEN, stripeToken);
+        }
+        out.writeByte(FilePushMessage.TYPE_HELLO);
+        capabilities.writeTo(out);
+        out.flush();
+    }
+
+    private boolean isSequenced() {
+        return settings != null;
+    }
+
+    private boolean isFramed() {
+        return settings != null && settings.getVersion() >= Capabilities.VERSION_FRAMED;
+    }
+
+    private boolean hasFeature(int feature) {
+        return settings != null && (settings.get(Capabilities.KEY_FEATURES, 0) & feature) != 0;
+    }
+
+    private boolean isMerkle() {
+        return isFramed() && hasFeature(Capabilities.FEATURE_MERKLE);
+    }
+
+    /**
+     * Answers with the files that are missing or differ from the copy here.
+     */
+    private void receiveManifest() throws IOException {
+        Manifest manifest = Manifest.readFrom(in);
+        List<Manifest.Entry> entries = manifest.getEntries();
+        BitSet needed = new BitSet(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Manifest.Entry entry = entries.get(i);
+            File file;
+            try {
+                file = receiver.resolve(entry.path);
+            } catch (IOException e) {
+                // it would be rejected anyway
+                LOG.warning(e.getMessage());
+                continue;
+            }
+            if (!file.isFile() || file.length() != entry.length
+                    || !Arrays.equals(FileHasher.hash(file), entry.hash)) {
+                needed.set(i);
+            }
+        }
+        out.writeByte(FilePushMessage.TYPE_MANIFEST_REPLY);
+        Manifest.writeNeeded(out, needed, entries.size());
+        out.flush();
+    }
+
+    private void receiveResumeQuery(long queriedId) throws IOException {
+        PushReceiver.ResumePoint point = receiver.getResumePoint(queriedId);
+        String path = "";
+        long offset = 0;
+        if (point != null && point.path != null) {
+            path = point.path;
+            // never more than made it to disk, whatever was recorded
+            File part = PartFile.partFor(receiver.resolve(path));
+            offset = Math.min(point.committedOffset, part.length());
+        }
+        out.writeByte(FilePushMessage.TYPE_RESUME_STATE);
+        out.writeLong(queriedId);
+        out.writeUTF(path);
+        out.writeLong(offset);
+        out.flush();
+    }
+
+    private void receiveDirectory() throws IOException {
+        String path;
+        if (hasFeature(Capabilities.FEATURE_PATH_DICTIONARY)) {
+            int id = PathDictionary.readVarInt(in);
+            int parentId = PathDictionary.readVarInt(in);
+            String name = PathDictionary.readString(in);
+            // built the same way the pusher built it, so manifest and resume paths match
+            path = parentId == PathDictionary.NO_DIRECTORY ? name
+                    : new File(directories.pathOf(parentId), name).getPath();
+            directories.put(id, path);
+        } else {
+            path = in.readUTF();
+        }
+        // the child count is only informational
+        if (hasFeature(Capabilities.FEATURE_UNBOUNDED_DIRECTORIES)) {
+            in.readInt();
+        } else {
+            in.readShort();
+        }
+        File directory = receiver.resolve(path);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+    }
+
+    /**
+     * @param striped whether the file's DATA frames may come over the extra channels too
+     */
+    private void receiveFile(boolean striped) throws IOException {
+        int sequence = isSequenced() ? in.readInt() : -1;
+        String name;
+        String container;
+        if (hasFeature(Capabilities.FEATURE_PATH_DICTIONARY)) {
+            int directoryId = PathDictionary.readVarInt(in);
+            name = PathDictionary.readString(in);
+            container = directoryId == PathDictionary.NO_DIRECTORY ? "" : directories.pathOf(directoryId);
+        } else {
+            name = in.readUTF();
+            container = in.readUTF();
+        }
+        String path = Manifest.destinationPath(new File(name), container.isEmpty() ? null : new File(container));
+        byte compression = in.readByte();
+        Codec codec = getCodec(compression);
+
+        // a whole file retransmit replaces whatever was being repaired
+        Repair stale = repairs.remove(sequence);
+        if (stale != null) {
+            stale.part.discard();
+        }
+
+        if (striped) {
+            if (!isFramed() || !hasFeature(Capabilities.FEATURE_STRIPES)) {
+                throw new IOException("Striped file without FEATURE_STRIPES from " + transport.getName());
+            }
+            receiveStripedFile(sequence, path, compression, codec);
+        } else if (isFramed()) {
+            receiveFramedFile(sequence, path, codec);
+        } else {
+            receiveFileContents(sequence, path, codec);
+        }
+    }
+
+    /**
+     * The unframed FILE body, the contents are checked against the CRC at the end.
+     */
+    private void receiveFileContents(int sequence, String path, Codec codec) throws IOException {
+        long length = in.readInt();
+        long startOffset = hasFeature(Capabilities.FEATURE_RESUME) ? in.readLong() : 0;
+        PartFile part = openPart(sequence, path, startOffset);
+        long lastCheckpoint = startOffset;
+
+        long remaining = length - startOffset;
+        while (remaining > 0) {
+            byte[] block;
+            int blockLength;
+            if (codec == null) {
+                blockLength = (int) Math.min(wire.length, remaining);
+                in.readFully(wire, 0, blockLength);
+                block = wire;
+            } else {
+                blockLength = in.readInt();
+                block = readBlock(codec, blockLength, in.readInt());
+            }
+            if (blockLength <= 0 || blockLength > remaining) {
+                throw new IOException("Bad block length " + blockLength + " with " + remaining + " remaining");
+            }
+            remaining -= blockLength;
+            crc.update(block, 0, blockLength);
+            if (part != null) {
+                part.write(block, 0, blockLength);
+                lastCheckpoint = checkpoint(sequence, path, part, part.getPosition(), lastCheckpoint);
+            }
+        }
+        long expectedCrc = in.readLong();
+
+        if (part == null) {
+            nack(sequence, path);
+        } else if (crc.getValue() != expectedCrc) {
+            part.discard();
+            nack(sequence, path);
+        } else {
+            commit(sequence, path, part);
+        }
+    }
+
+    /**
+     * The framed FILE body, each DATA frame is checked as it arrives and the file CRC is combined
+     * from the frame CRCs rather than computed over the contents a second time. With
+     * FEATURE_MERKLE the root is made from the frames' leaf hashes the same way.
+     */
+    private void receiveFramedFile(int sequence, String path, Codec codec) throws IOException {
+        boolean merkle = isMerkle();
+        long startOffset = in.readLong();
+        PartFile part = openPart(sequence, path, startOffset);
+        long fileCrc = startOffset > 0 ? crc.getValue() : 0;
+        long lastCheckpoint = startOffset;
+        SortedMap<Long, Integer> badChunks = new TreeMap<>();
+        Map<Long, byte[]> badLeaves = merkle ? new HashMap<Long, byte[]>() : null;
+
+        while (true) {
+            byte frame = in.readByte();
+            if (frame == FilePushMessage.FRAME_END) {
+                break;
+            }
+            if (frame != FilePushMessage.FRAME_DATA) {
+                throw new IOException("Unknown frame type " + frame + " in " + path);
+            }
+            long offset = in.readLong();
+            int length = in.readInt();
+            byte[] chunk = readBlock(codec, length, in.readInt());
+            boolean good;
+            if (merkle) {
+                in.readFully(expectedHash);
+                this.merkle.add(expectedHash, 0);
+                good = part != null && isLeafGood(offset, chunk, length, expectedHash);
+            } else {
+                long chunkCrc = in.readInt() & 0xFFFFFFFFL;
+                fileCrc = combine(fileCrc, chunkCrc, length);
+                good = part != null && isChunkGood(chunk, length, chunkCrc);
+            }
+            if (part == null) {
+                continue;
+            }
+
+            if (good) {
+                part.write(offset, chunk, 0, length);
+            } else {
+                badChunks.put(offset, length);
+                if (merkle) {
+                    badLeaves.put(offset, expectedHash.clone());
+                }
+                nackChunk(sequence, offset, length);
+            }
+            // nothing past the first bad chunk is committed until it has been repaired
+            long committed = badChunks.isEmpty() ? part.getPosition() : badChunks.firstKey();
+            lastCheckpoint = checkpoint(sequence, path, part, committed, lastCheckpoint);
+        }
+        long length = in.readLong();
+        byte[] root = null;
+        boolean fileGood;
+        if (merkle) {
+            in.readFully(expectedHash);
+            root = new byte[MerkleTree.HASH_LENGTH];
+            this.merkle.root(root, 0);
+            fileGood = Arrays.equals(root, expectedHash);
+        } else {
+            fileGood = fileCrc == in.readLong();
+        }
+
+        if (part == null) {
+            nack(sequence, path);
+        } else if (!fileGood) {
+            // a frame CRC or leaf hash itself was damaged, none of the file can be trusted
+            part.discard();
+            nack(sequence, path);
+        } else if (!badChunks.isEmpty()) {
+            LOG.fine("Holding " + path + " for " + badChunks.size() + " chunk retransmits");
+            repairs.put(sequence, new Repair(part, path, length, badChunks, root, badLeaves));
+        } else {
+            finishFramed(sequence, path, part, length, root);
+        }
+    }
+
+    /**
+     * The STRIPED_FILE body, frames are written in place as they arrive over this channel or any
+     * of the extra ones. Once the END frame is in and every chunk has arrived the file is checked
+     * as a whole, then handled like a framed file.
+     */
+    private void receiveStripedFile(int sequence, String path, byte compression, Codec codec) throws IOException {
+        boolean merkle = isMerkle();
+        long startOffset = in.readLong();
+        PartFile part = openPart(sequence, path, startOffset);
+        long prefixCrc = startOffset > 0 ? crc.getValue() : 0;
+        StripedFile file = new StripedFile(sequence, path, part, compression, startOffset);
+        synchronized (stripedFiles) {
+            stripedFiles.put(sequence, file);
+            stripedFiles.notifyAll();
+        }
+
+        long length;
+        long expectedCrc = 0;
+        boolean complete;
+        try {
+            while (true) {
+                byte frame = in.readByte();
+                if (frame == FilePushMessage.FRAME_END) {
+                    break;
+                }
+                if (frame != FilePushMessage.FRAME_DATA) {
+                    throw new IOException("Unknown frame type " + frame + " in " + path);
+                }
+                receiveStripeFrame(file, codec);
+            }
+            length = in.readLong();
+            if (merkle) {
+                in.readFully(expectedHash);
+            } else {
+                expectedCrc = in.readLong();
+            }
+            complete = file.awaitLength(length, STRIPE_TIMEOUT_MILLIS);
+        } finally {
+            synchronized (stripedFiles) {
+                stripedFiles.remove(sequence);
+            }
+        }
+
+        if (part == null) {
+            nack(sequence, path);
+            return;
+        }
+        byte[] root = merkle ? new byte[MerkleTree.HASH_LENGTH] : null;
+        boolean fileGood = merkle
+                ? file.root(this.merkle, root) && Arrays.equals(root, expectedHash)
+                : file.combineCrc(prefixCrc) == expectedCrc;
+        if (!complete || !fileGood) {
+            LOG.warning((complete ? "Stripes don't add up for " : "Stripes never arrived for ") + path);
+            part.discard();
+            nack(sequence, path);
+            return;
+        }
+        SortedMap<Long, Integer> badChunks = file.getBadChunks();
+        if (badChunks.isEmpty()) {
+            finishFramed(sequence, path, part, length, root);
+            return;
+        }
+        Map<Long, byte[]> badLeaves = merkle ? new HashMap<Long, byte[]>() : null;
+        for (Map.Entry<Long, Integer> chunk : badChunks.entrySet()) {
+            if (merkle) {
+                badLeaves.put(chunk.getKey(), file.getLeaf(chunk.getKey()));
+            }
+            nackChunk(sequence, chunk.getKey(), chunk.getValue());
+        }
+        LOG.fine("Holding " + path + " for " + badChunks.size() + " chunk retransmits");
+        repairs.put(sequence, new Repair(part, path, length, badChunks, root, badLeaves));
+    }
+
+    /**
+     * An extra channel joining the session that gave out the token, from here on it only carries
+     * STRIPE_DATA.
+     */
+    private void receiveStripeJoin() throws IOException {
+        int token = in.readInt();
+        stripeOwner = receiver.getStripeOwner(token);
+        if (stripeOwner == null) {
+            throw new IOException("No session for the stripe token from " + transport.getName());
+        }
+        LOG.fine("Stripe channel " + transport.getName() + " joined");
+    }
+
+    private void receiveStripeData() throws IOException {
+        if (stripeOwner == null) {
+            throw new IOException("Stripe data before joining a session from " + transport.getName());
+        }
+        int sequence = in.readInt();
+        if (in.readByte() != FilePushMessage.FRAME_DATA) {
+            throw new IOException("Stripe without a data frame");
+        }
+        StripedFile file = stripeOwner.awaitStripedFile(sequence);
+        receiveStripeFrame(file, getCodec(file.compression));
+    }
+
+    /**
+     * Reads the rest of a DATA frame for a striped file, on whichever channel it came over. The
+     * settings are the owning session's, an extra channel never agrees any of its own.
+     */
+    private void receiveStripeFrame(StripedFile file, Codec codec) throws IOException {
+        ReceiverSession owner = stripeOwner != null ? stripeOwner : this;
+        long offset = in.readLong();
+        int length = in.readInt();
+        byte[] chunk = readBlock(codec, length, in.readInt());
+        if (owner.isMerkle()) {
+            in.readFully(expectedHash);
+            file.chunk(offset, chunk, length, -1, expectedHash, isLeafGood(offset, chunk, length, expectedHash));
+        } else {
+            long chunkCrc = in.readInt() & 0xFFFFFFFFL;
+            file.chunk(offset, chunk, length, chunkCrc, null, isChunkGood(chunk, length, chunkCrc));
+        }
+    }
+
+    /**
+     * Called on an extra channel's session, waits for the STRIPED_FILE header to arrive here,
+     * the channels aren't in step with each other.
+     */
+    private StripedFile awaitStripedFile(int sequence) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STRIPE_TIMEOUT_MILLIS);
+        synchronized (stripedFiles) {
+            StripedFile file;
+            while ((file = stripedFiles.get(sequence)) == null) {
+                long waitNanos = deadline - System.nanoTime();
+                if (waitNanos <= 0) {
+                    throw new IOException("Stripe for file " + sequence + " that never started");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(stripedFiles, waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting on file " + sequence);
+                }
+            }
+            return file;
+        }
+    }
+
+    private void receiveChunkRetransmit() throws IOException {
+        int sequence = in.readInt();
+        if (in.readByte() != FilePushMessage.FRAME_DATA) {
+            throw new IOException("Chunk retransmit without a data frame");
+        }
+        long offset = in.readLong();
+        int length = in.readInt();
+        // retransmits are always sent stored, a compressed one can't be read and ends the session
+        byte[] chunk = readBlock(null, length, in.readInt());
+        long chunkCrc = -1;
+        if (isMerkle()) {
+            in.readFully(expectedHash);
+        } else {
+            chunkCrc = in.readInt() & 0xFFFFFFFFL;
+        }
+
+        Repair repair = repairs.get(sequence);
+        if (repair == null || !repair.badChunks.containsKey(offset)) {
+            // the file was already given up on, or retransmitted whole
+            return;
+        }
+        // the chunk has to match the leaf the root was made from, not just the one it came with
+        boolean good = repair.badLeaves != null
+                ? isLeafGood(offset, chunk, length, repair.badLeaves.get(offset))
+                : isChunkGood(chunk, length, chunkCrc);
+        if (!good) {
+            nackChunk(sequence, offset, length);
+            return;
+        }
+        repair.part.write(offset, chunk, 0, length);
+        repair.badChunks.remove(offset);
+        if (repair.badChunks.isEmpty()) {
+            repairs.remove(sequence);
+            finishFramed(sequence, repair.path, repair.part, repair.length, repair.root);
+        }
+    }
+
+    /**
+     * @param root the root the file checked out against, sent back before the ack, or null
+     */
+    private void finishFramed(int sequence, String path, PartFile part, long length, byte[] root) throws IOException {
+        if (part.getPosition() != length) {
+            part.discard();
+            nack(sequence, path);
+            return;
+        }
+        if (root != null) {
+            out.writeByte(FilePushMessage.TYPE_ROOT_HASH);
+            out.writeInt(sequence);
+            out.write(root);
+        }
+        commit(sequence, path, part);
+    }
+
+    /**
+     * Writes every file in the pack, then moves them all into place, or NAKs the whole pack.
+     */
+    private void receivePack() throws IOException {
+        int sequence = in.readInt();
+        FilePack pack = FilePack.readIndex(in);
+        Codec codec = getCodec(in.readByte());
+        int contentLength = in.readInt();
+        byte[] contents = readBlock(codec, contentLength, in.readInt());
+        long expectedCrc = in.readLong();
+
+        crc.reset();
+        crc.update(contents, 0, contentLength);
+        if (crc.getValue() != expectedCrc || pack.getContentLength() != contentLength) {
+            receiver.crcFailed();
+            nack(sequence, "pack of " + pack.size());
+            return;
+        }
+
+        List<PartFile> parts = new ArrayList<>();
+        try {
+            int offset = 0;
+            for (FilePack.Entry entry : pack.getEntries()) {
+                PartFile part = PartFile.open(receiver.resolve(entry.getDestinationPath()), 0, crc, wire);
+                parts.add(part);
+                part.write(contents, offset, entry.length);
+                offset += entry.length;
+                if (options.isSyncOnCommit()) {
+                    part.sync();
+                }
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not write pack of " + pack.size(), e);
+            for (PartFile part : parts) {
+                part.discard();
+            }
+            nack(sequence, "pack of " + pack.size());
+            return;
+        }
+        // everything is on disk, only the renames are left
+        for (PartFile part : parts) {
+            part.commit(false);
+        }
+        for (FilePack.Entry entry : pack.getEntries()) {
+            receiver.fileReceived(entry.length);
+        }
+        ack(sequence);
+    }
+
+    /**
+     * @return the part file to write into, or null when the file can't be received, its
+     * contents are still read so the stream stays in step
+     */
+    private PartFile openPart(int sequence, String path, long startOffset) throws IOException {
+        try {
+            merkle.reset();
+            PartFile part = PartFile.open(receiver.resolve(path), startOffset, crc, isMerkle() ? merkle : null, wire);
+            if (hasFeature(Capabilities.FEATURE_RESUME) && transferId != -1) {
+                receiver.recordResumePoint(transferId, path, startOffset);
+            }
+            return part;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Rejecting file " + sequence + " " + path, e);
+            crc.reset();
+            return null;
+        }
+    }
+
+    /**
+     * Syncs what has been written and tells the pusher, once a checkpoint's worth has arrived.
+     *
+     * @return the offset of the last checkpoint
+     */
+    private long checkpoint(int sequence, String path, PartFile part, long committed, long lastCheckpoint) throws IOException {
+        if (!hasFeature(Capabilities.FEATURE_RESUME) || transferId == -1
+                || committed - lastCheckpoint < options.getCheckpointBytes()) {
+            return lastCheckpoint;
+        }
+        part.sync();
+        receiver.recordResumePoint(transferId, path, committed);
+        out.writeByte(FilePushMessage.TYPE_CHECKPOINT);
+        out.writeInt(sequence);
+        out.writeLong(committed);
+        out.flush();
+        return committed;
+    }
+
+    private void commit(int sequence, String path, PartFile part) throws IOException {
+        long length = part.getPosition();
+        part.commit(options.isSyncOnCommit());
+        if (hasFeature(Capabilities.FEATURE_RESUME) && transferId != -1) {
+            receiver.recordResumePoint(transferId, null, 0);
+        }
+        receiver.fileReceived(length);
+        LOG.fine("Received " + path + " (" + length + " bytes)");
+        ack(sequence);
+    }
+
+    private void ack(int sequence) throws IOException {
+        nacked.remove(sequence);
+        if (!isSequenced()) {
+            out.writeByte(FilePushMessage.TYPE_FILE_ACK);
+        } else if (repairs.isEmpty() && nacked.isEmpty()) {
+            // nothing earlier is outstanding, so the ack can cover every file up to this one
+            out.writeByte(FilePushMessage.TYPE_FILE_ACK);
+            out.writeInt(sequence);
+        } else {
+            out.writeByte(FilePushMessage.TYPE_FILE_SACK);
+            out.writeInt(sequence);
+        }
+        out.flush();
+    }
+
+    private void nack(int sequence, String path) throws IOException {
+        receiver.crcFailed();
+        if (!isSequenced()) {
+            // the original protocol has no NAK, dropping the link is the only way to fail the send
+            throw new IOException("File failed verification: " + path);
+        }
+        LOG.warning("NAKing file " + sequence + " " + path);
+        nacked.add(sequence);
+        out.writeByte(FilePushMessage.TYPE_FILE_NAK);
+        out.writeInt(sequence);
+        out.flush();
+    }
+
+    private void nackChunk(int sequence, long offset, int length) throws IOException {
+        receiver.crcFailed();
+        out.writeByte(FilePushMessage.TYPE_CHUNK_NAK);
+        out.writeInt(sequence);
+        out.writeLong(offset);
+        out.writeInt(length);
+        out.flush();
+    }
+
+    private boolean isChunkGood(byte[] chunk, int length, long expectedCrc) {
+        crc.reset();
+        crc.update(chunk, 0, length);
+        return crc.getValue() == expectedCrc;
+    }
+
+    private boolean isLeafGood(long offset, byte[] chunk, int length, byte[] expectedLeaf) {
+        merkle.leaf(offset, chunk, 0, length, leafHash, 0);
+        return Arrays.equals(leafHash, expectedLeaf);
+    }
+
+    private long combine(long fileCrc, long chunkCrc, int length) {
+        // the first frame's length is the pusher's chunk size, most frames are that long
+        if (crcCombiner == null) {
+            crcCombiner = new CrcCombiner(length);
+        }
+        return crcCombiner.combine(fileCrc, chunkCrc, length);
+    }
+
+    /**
+     * Reads a block as sent, stored when the wire length equals the length.
+     *
+     * @return a buffer holding the uncompressed block at its start
+     */
+    private byte[] readBlock(Codec codec, int length, int wireLength) throws IOException {
+        if (length < 0 || length > MAX_BLOCK || wireLength < 0 || wireLength > MAX_BLOCK) {
+            throw new IOException("Bad block length " + length + "/" + wireLength);
+        }
+        wire = ensureCapacity(wire, wireLength);
+        in.readFully(wire, 0, wireLength);
+        if (wireLength == length) {
+            return wire;
+        }
+        if (codec == null) {
+            throw new IOException("Compressed block without a codec");
+        }
+        data = ensureCapacity(data, length);
+        codec.decompress(wire, 0, wireLength, data, 0, length);
+        return data;
+    }
+
+    /**
+     * @return the codec for the compression byte, or null for none
+     */
+    private Codec getCodec(byte id) throws IOException {
+        if (id == FilePushMessage.COMPRESSION_NONE) {
+            return null;
+        }
+        if (id < 0 || id >= codecs.length) {
+            throw new IOException("Unknown compression " + id);
+        }
+        if (codecs[id] == null) {
+            codecs[id] = Codecs.create(id);
+            if (codecs[id] == null) {
+                throw new IOException("Unsupported compression " + id);
+            }
+        }
+        return codecs[id];
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int length) {
+        return buffer.length >= length ? buffer : new byte[Math.max(length, buffer.length * 2)];
+    }
+}
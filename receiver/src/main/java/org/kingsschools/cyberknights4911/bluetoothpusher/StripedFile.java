@@ -0,0 +1,148 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file whose DATA frames arrive over several channels at once, see {@code STRIPED_FILE} in the
+ * protocol. Every channel's session writes its chunks in place as they arrive, in whatever order
+ * that is, and the session the file was started on verifies it as a whole once they are all in.
+ * <p>
+ * The chunk CRCs are kept by offset, so the whole file CRC is combined from them in file order
+ * rather than computed over the contents a second time. With FEATURE_MERKLE the leaf hashes are
+ * kept instead, and the root made from them the same way.
+ */
+class StripedFile {
+    final int sequence;
+    final String path;
+    // null when the file can't be received, the chunks are still read
+    final PartFile part;
+    final byte compression;
+    final long startOffset;
+
+    // offset to {length, crc} of every chunk that arrived, good or bad
+    private final SortedMap<Long, long[]> chunks = new TreeMap<>();
+    // offset to length of the chunks that failed verification
+    private final SortedMap<Long, Integer> badChunks = new TreeMap<>();
+    // offset to leaf hash of every chunk that arrived, with FEATURE_MERKLE
+    private final SortedMap<Long, byte[]> leaves = new TreeMap<>();
+    private long arrivedBytes;
+    private IOException failure;
+
+    StripedFile(int sequence, String path, PartFile part, byte compression, long startOffset) {
+        this.sequence = sequence;
+        this.path = path;
+        this.part = part;
+        this.compression = compression;
+        this.startOffset = startOffset;
+    }
+
+    /**
+     * Records a chunk from any channel, writing it in place when it checked out.
+     *
+     * @param leaf the leaf hash the chunk was sent with, or null without FEATURE_MERKLE
+     */
+    synchronized void chunk(long offset, byte[] data, int length, long crc, byte[] leaf, boolean good) {
+        if (chunks.containsKey(offset) || offset < startOffset) {
+            // the pusher never sends a chunk twice within a file, nothing to do with it but drop it
+            return;
+        }
+        chunks.put(offset, new long[]{length, crc});
+        if (leaf != null) {
+            leaves.put(offset, leaf.clone());
+        }
+        arrivedBytes += length;
+        if (part != null && failure == null) {
+            if (good) {
+                try {
+                    part.write(offset, data, 0, length);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            } else {
+                badChunks.put(offset, length);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Blocks until the chunks up to the length have arrived over every channel.
+     *
+     * @return false if they didn't all arrive in time
+     */
+    synchronized boolean awaitLength(long length, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (arrivedBytes < length - startOffset) {
+            long waitNanos = deadline - System.nanoTime();
+            if (waitNanos <= 0) {
+                return false;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting on stripes of " + path);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return arrivedBytes == length - startOffset;
+    }
+
+    /**
+     * @return the CRC of the whole file from the chunk CRCs, or -1 if the chunks leave a gap
+     */
+    synchronized long combineCrc(long prefixCrc) {
+        long crc = prefixCrc;
+        long expected = startOffset;
+        CrcCombiner combiner = null;
+        for (Map.Entry<Long, long[]> chunk : chunks.entrySet()) {
+            if (chunk.getKey() != expected) {
+                return -1;
+            }
+            long length = chunk.getValue()[0];
+            if (combiner == null) {
+                // the first chunk's length is the pusher's chunk size, most chunks are that long
+                combiner = new CrcCombiner((int) length);
+            }
+            crc = combiner.combine(crc, chunk.getValue()[1], length);
+            expected += length;
+        }
+        return crc;
+    }
+
+    /**
+     * Adds the leaves to the tree in file order, after the prefix's leaf, and gives its root.
+     *
+     * @return false if the leaves leave a gap
+     */
+    synchronized boolean root(MerkleTree tree, byte[] root) {
+        long expected = startOffset;
+        for (Map.Entry<Long, byte[]> leaf : leaves.entrySet()) {
+            if (leaf.getKey() != expected) {
+                return false;
+            }
+            tree.add(leaf.getValue(), 0);
+            expected += chunks.get(leaf.getKey())[0];
+        }
+        tree.root(root, 0);
+        return true;
+    }
+
+    /**
+     * @return the leaf hash the chunk at the offset was sent with
+     */
+    synchronized byte[] getLeaf(long offset) {
+        return leaves.get(offset);
+    }
+
+    synchronized SortedMap<Long, Integer> getBadChunks() {
+        return new TreeMap<>(badChunks);
+    }
+}
@@ -0,0 +1,44 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Accepts pushers over TCP, so a receiver can run on any machine for load testing.
+ */
+public class TcpAcceptor implements TransportAcceptor {
+    private final ServerSocket serverSocket;
+
+    /**
+     * @param port the port to listen on, 0 picks a free one, see {@link #getPort()}
+     */
+    public TcpAcceptor(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public Transport accept() throws IOException {
+        Socket socket = serverSocket.accept();
+        // acks are small and the pusher waits on them
+        socket.setTcpNoDelay(true);
+        return new TcpTransport(socket);
+    }
+
+    @Override
+    public String getAddress() {
+        return "tcp:" + getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,20 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The listening end of a link, hands out a connected {@link Transport} for each pusher that
+ * connects. Closing it stops a blocked {@link #accept()}.
+ */
+public interface TransportAcceptor extends Closeable {
+    /**
+     * Blocks until a pusher connects.
+     */
+    Transport accept() throws IOException;
+
+    /**
+     * @return where pushers connect to, for logging
+     */
+    String getAddress();
+}
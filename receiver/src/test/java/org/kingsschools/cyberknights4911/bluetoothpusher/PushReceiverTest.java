@@ -0,0 +1,78 @@
+package org.kingsschools.cyberknights4911.bluetoothpusher;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class PushReceiverTest {
+    @Test
+    public void resolve_rejectsPathsOutsideRoot() throws Exception {
+        File root = createTempDir();
+        PushReceiver receiver = new PushReceiver(root);
+        try {
+            assertEquals(new File(root, "match/stats.json").getCanonicalFile(), receiver.resolve("/match/stats.json"));
+            assertEquals(root.getCanonicalFile(), receiver.resolve("/"));
+            try {
+                receiver.resolve("/match/../../escaped");
+                fail("Resolved a path outside the root");
+            } catch (IOException expected) {
+                // rejected
+            }
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void legacyFile_isAckedAndWritten() throws Exception {
+        File root = createTempDir();
+        PushReceiver receiver = new PushReceiver(root);
+        try {
+            PipeTransport[] ends = PipeTransport.pair("test");
+            receiver.receive(ends[1]);
+            DataOutputStream out = new DataOutputStream(ends[0].getOutputStream());
+            DataInputStream in = new DataInputStream(ends[0].getInputStream());
+
+            byte[] contents = "scouting notes".getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            out.writeByte(FilePushMessage.TYPE_DIRECTORY);
+            out.writeUTF("/match");
+            out.writeShort(1);
+            out.writeByte(FilePushMessage.TYPE_FILE);
+            out.writeUTF("notes.txt");
+            out.writeUTF("/match");
+            out.writeByte(FilePushMessage.COMPRESSION_NONE);
+            out.writeInt(contents.length);
+            out.write(contents);
+            out.writeLong(crc.getValue());
+            out.flush();
+
+            assertEquals(FilePushMessage.TYPE_FILE_ACK, in.read());
+            File received = new File(root, "match/notes.txt");
+            assertEquals(contents.length, received.length());
+            assertFalse(PartFile.partFor(received).exists());
+
+            out.writeByte(FilePushMessage.TYPE_STOP);
+            out.flush();
+            assertEquals(-1, in.read());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("receiver", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir;
+    }
+}